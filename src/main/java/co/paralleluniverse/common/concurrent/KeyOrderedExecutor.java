@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.common.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on a work-stealing {@link ForkJoinPool}, so that tasks submitted with the same key run one at a time and in submission order,
+ * while tasks with different keys run in parallel.
+ * <p>
+ * Unlike {@link OrderedThreadPoolExecutor}, submission takes no locks: each key has a lock-free queue and a counter of pending tasks,
+ * and the submitter that takes the counter from zero schedules the key's queue on the pool. A queue runs at most {@code batchSize} tasks
+ * before yielding its thread to other keys. A queue that runs out of tasks retires itself and is removed, so keys don't accumulate.
+ *
+ * @author pron
+ */
+public class KeyOrderedExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyOrderedExecutor.class);
+    private final ConcurrentMap<Object, KeyQueue> queues = new ConcurrentHashMap<Object, KeyQueue>();
+    private final ForkJoinPool pool;
+    private final int batchSize;
+
+    public KeyOrderedExecutor(int parallelism, int batchSize) {
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.batchSize = batchSize;
+    }
+
+    public void execute(Object key, Runnable task) {
+        for (;;) {
+            KeyQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new KeyQueue(key);
+                final KeyQueue oldQueue = queues.putIfAbsent(key, queue);
+                if (oldQueue != null)
+                    queue = oldQueue;
+            }
+            if (queue.execute(task))
+                return;
+            queues.remove(key, queue); // the queue has retired; make sure it's gone and try again
+        }
+    }
+
+    int getNumQueues() {
+        return queues.size();
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    private final class KeyQueue implements Runnable {
+        private static final int RETIRED = -1;
+        private final Object key;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        KeyQueue(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * @return {@code false} if the queue has retired, and the task must be submitted to a new one.
+         */
+        boolean execute(Runnable task) {
+            int p;
+            do {
+                p = pending.get();
+                if (p == RETIRED)
+                    return false;
+            } while (!pending.compareAndSet(p, p + 1));
+            tasks.add(task);
+            if (p == 0)
+                pool.execute(this);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            // whoever moved pending from 0 owns the queue until it brings it back to 0, and each pending count stands for a task that's
+            // in the queue or about to be added by its submitter
+            for (int i = 1;; i++) {
+                Runnable task;
+                while ((task = tasks.poll()) == null)
+                    Thread.yield();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Error while executing task " + task, e);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    if (pending.compareAndSet(0, RETIRED)) // otherwise, a new task has just been counted, and we've been rescheduled
+                        queues.remove(key, this);
+                    return;
+                }
+                if (i >= batchSize) {
+                    pool.execute(this); // let other keys have a go
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ * 
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *  
+ *   or (per the licensee's choosing)
+ *  
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns ids to {@link PersistableLineFunction} types, so that invoking them on a remote item sends the id and the function's arguments
+ * rather than the whole serialized function.
+ * <p>
+ * A type must be registered, with the same id, on all nodes before it is invoked, and must have a no-argument constructor. On the
+ * receiving node, the arguments are read into a new instance of the type.
+ */
+public final class LineFunctionRegistry {
+    public static final int MAX_ID = Short.MAX_VALUE;
+    private static final ConcurrentMap<Class<?>, Entry> byType = new ConcurrentHashMap<Class<?>, Entry>();
+    private static final ConcurrentMap<Integer, Entry> byId = new ConcurrentHashMap<Integer, Entry>();
+
+    /**
+     * Registers a function type.
+     *
+     * @param id The id, between 1 and {@link #MAX_ID}.
+     * @param type The function type.
+     */
+    public static synchronized void register(int id, Class<? extends PersistableLineFunction<?>> type) {
+        if (id <= 0 || id > MAX_ID)
+            throw new IllegalArgumentException("Id must be between 1 and " + MAX_ID + " but is " + id);
+        final Entry existing = byId.get(id);
+        if (existing != null && existing.type != type)
+            throw new IllegalArgumentException("Id " + id + " is already registered to " + existing.type.getName());
+        if (byType.containsKey(type) && byType.get(type).id != id)
+            throw new IllegalArgumentException(type.getName() + " is already registered with id " + byType.get(type).id);
+        final Constructor<? extends PersistableLineFunction<?>> ctor;
+        try {
+            ctor = type.getDeclaredConstructor();
+            ctor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " does not have a no-argument constructor");
+        }
+        final Entry entry = new Entry(id, type, ctor);
+        byId.put(id, entry);
+        byType.put(type, entry);
+    }
+
+    /**
+     * Returns the id registered for the given function's type, or {@code 0} if the type hasn't been registered.
+     */
+    public static int getId(LineFunction<?> function) {
+        if (!(function instanceof PersistableLineFunction) || byType.isEmpty())
+            return 0;
+        final Entry entry = byType.get(function.getClass());
+        return entry != null ? entry.id : 0;
+    }
+
+    /**
+     * Reads a new function of the type registered with the given id from its persisted form.
+     */
+    public static PersistableLineFunction<?> read(int id, ByteBuffer buffer) {
+        final Entry entry = byId.get(id);
+        if (entry == null)
+            throw new IllegalStateException("No line function registered with id " + id);
+        final PersistableLineFunction<?> function = entry.newInstance();
+        function.read(buffer);
+        return function;
+    }
+
+    private static class Entry {
+        final int id;
+        final Class<?> type;
+        private final Constructor<? extends PersistableLineFunction<?>> ctor;
+
+        Entry(int id, Class<?> type, Constructor<? extends PersistableLineFunction<?>> ctor) {
+            this.id = id;
+            this.type = type;
+            this.ctor = ctor;
+        }
+
+        PersistableLineFunction<?> newInstance() {
+            try {
+                return ctor.newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new RuntimeException(e);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private LineFunctionRegistry() {
+    }
+}
@@ -15,6 +15,8 @@ package co.paralleluniverse.galaxy;
 
 import co.paralleluniverse.common.io.Streamable;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The grid's messaging service. All messages are guaranteed delivery in the order they've been sent.
@@ -169,4 +171,108 @@ public interface Messenger {
      * @param data The message.
      */
     ListenableFuture<Void> sendToOwnerOfAsync(long ref, String topic, Streamable data);
+
+    /**
+     * Sends several messages to a known node, on a {@code long} topic. The messages are packed together, so that they take less
+     * room on the network than if each was sent with {@link #send(short, long, byte[]) send}, and are received in the order of the list.
+     *
+     * @param node The node to which to send the messages.
+     * @param topic The messages' topic.
+     * @param data The messages.
+     */
+    void sendBatch(short node, long topic, List<byte[]> data);
+
+    /**
+     * Sends several messages to a known node, on a {@code String} topic. The messages are packed together, so that they take less
+     * room on the network than if each was sent with {@link #send(short, String, byte[]) send}, and are received in the order of the list.
+     *
+     * @param node The node to which to send the messages.
+     * @param topic The messages' topic.
+     * @param data The messages.
+     */
+    void sendBatch(short node, String topic, List<byte[]> data);
+
+    /**
+     * Sends a message to all other nodes in the cluster, on a {@code long} topic. The message is multicast if the cluster's comm
+     * supports it. Broadcasts are not ordered with respect to messages sent with {@code send} or {@code sendToOwnerOf}.
+     *
+     * @param topic The message's topic.
+     * @param data The message.
+     */
+    void broadcast(long topic, byte[] data);
+
+    /**
+     * Sends a message to all other nodes in the cluster, on a {@code String} topic. The message is multicast if the cluster's comm
+     * supports it. Broadcasts are not ordered with respect to messages sent with {@code send} or {@code sendToOwnerOf}.
+     *
+     * @param topic The message's topic.
+     * @param data The message.
+     */
+    void broadcast(String topic, byte[] data);
+
+    /**
+     * Sends a message to all other nodes in the cluster, on a {@code long} topic. The message is multicast if the cluster's comm
+     * supports it. Broadcasts are not ordered with respect to messages sent with {@code send} or {@code sendToOwnerOf}.
+     *
+     * @param topic The message's topic.
+     * @param data The message.
+     */
+    void broadcast(long topic, Streamable data);
+
+    /**
+     * Sends a message to all other nodes in the cluster, on a {@code String} topic. The message is multicast if the cluster's comm
+     * supports it. Broadcasts are not ordered with respect to messages sent with {@code send} or {@code sendToOwnerOf}.
+     *
+     * @param topic The message's topic.
+     * @param data The message.
+     */
+    void broadcast(String topic, Streamable data);
+
+    /**
+     * Sends a request to a known node, on a {@code long} topic, to be answered by the topic's {@link RequestListener}.
+     *
+     * @param node The node to which to send the request.
+     * @param topic The request's topic.
+     * @param data The request.
+     * @param timeout The time to wait for the response.
+     * @param unit The {@code timeout}'s unit.
+     * @return A future for the response, which fails with a {@link TimeoutException} if no response has arrived in time.
+     */
+    ListenableFuture<byte[]> request(short node, long topic, byte[] data, long timeout, TimeUnit unit);
+
+    /**
+     * Sends a request to a known node, on a {@code String} topic, to be answered by the topic's {@link RequestListener}.
+     *
+     * @param node The node to which to send the request.
+     * @param topic The request's topic.
+     * @param data The request.
+     * @param timeout The time to wait for the response.
+     * @param unit The {@code timeout}'s unit.
+     * @return A future for the response, which fails with a {@link TimeoutException} if no response has arrived in time.
+     */
+    ListenableFuture<byte[]> request(short node, String topic, byte[] data, long timeout, TimeUnit unit);
+
+    /**
+     * Sends a request to the owner of a known grid object, on a {@code long} topic, to be answered by the topic's {@link RequestListener}.
+     *
+     * @param ref The grid ref to whose owner the request is to be sent.
+     * @param topic The request's topic.
+     * @param data The request.
+     * @param timeout The time to wait for the response.
+     * @param unit The {@code timeout}'s unit.
+     * @return A future for the response, which fails with a {@link TimeoutException} if no response has arrived in time.
+     */
+    ListenableFuture<byte[]> requestFromOwnerOf(long ref, long topic, byte[] data, long timeout, TimeUnit unit);
+
+    /**
+     * Sends a request to the owner of a known grid object, on a {@code String} topic, to be answered by the topic's {@link RequestListener}.
+     *
+     * @param ref The grid ref to whose owner the request is to be sent.
+     * @param topic The request's topic.
+     * @param data The request.
+     * @param timeout The time to wait for the response.
+     * @param unit The {@code timeout}'s unit.
+     * @return A future for the response, which fails with a {@link TimeoutException} if no response has arrived in time.
+     */
+    ListenableFuture<byte[]> requestFromOwnerOf(long ref, String topic, byte[] data, long timeout, TimeUnit unit);
 }
@@ -0,0 +1,27 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ * 
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *  
+ *   or (per the licensee's choosing)
+ *  
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy;
+
+import co.paralleluniverse.common.io.Persistable;
+
+/**
+ * A {@link LineFunction} that writes its arguments as a {@link Persistable}.
+ * <p>
+ * When a function of a type registered with {@link LineFunctionRegistry} is invoked on an item owned by another node, only the type's
+ * registered id and the function's persisted form are sent, rather than the serialized function.
+ *
+ * @param <T> The function's return type.
+ */
+public interface PersistableLineFunction<T> extends LineFunction<T>, Persistable {
+}
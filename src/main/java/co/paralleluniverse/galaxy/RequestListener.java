@@ -0,0 +1,32 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy;
+
+/**
+ * A listener that answers requests sent in the grid with {@link Messenger#request(short, long, byte[], long, java.util.concurrent.TimeUnit) Messenger.request}.
+ * A request is passed only to the first {@code RequestListener} added to its topic; other listeners on the topic receive plain messages only.
+ *
+ * @see Messenger
+ */
+public interface RequestListener extends MessageListener {
+    /**
+     * Called when a request has been received.
+     *
+     * @param fromNode The cluster node ID of the node that originated the request.
+     * @param request  The request's contents.
+     * @return The response, which may be {@code null}.
+     * @throws Exception If the request has failed, in which case the requester's future fails as well.
+     */
+    byte[] requestReceived(short fromNode, byte[] request) throws Exception;
+}
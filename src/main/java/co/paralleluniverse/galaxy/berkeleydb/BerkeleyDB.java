@@ -15,8 +15,10 @@ package co.paralleluniverse.galaxy.berkeleydb;
 
 import static co.paralleluniverse.common.logging.LoggingUtils.hex;
 import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.server.AllocationIndex;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import co.paralleluniverse.galaxy.server.OwnerLookup;
 import com.google.common.base.Throwables;
 import com.google.common.primitives.Longs;
 import com.google.common.primitives.Shorts;
@@ -50,6 +52,9 @@ import it.unimi.dsi.fastutil.longs.LongIterator;
 import java.beans.ConstructorProperties;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
@@ -58,15 +63,17 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
  *
  * @author pron
  */
-public class BerkeleyDB extends Component implements MainMemoryDB {
+public class BerkeleyDB extends Component implements MainMemoryDB, OwnerLookup {
     // Note: class must be public for Spring's auto generated javax.management.modelmbean.RequiredModelMBean to expose @ManagedAttribute
 
     private static final Logger LOG = LoggerFactory.getLogger(BerkeleyDB.class);
+    private static final long FIRST_ALLOCATED_ID = 0xffffffffL + 1; // the first id MainMemory allocates; ids below it are reserved
     private final Environment env;
     private Database ownerDirectory;
     private SecondaryDatabase ownerIndex;
     private Database mainStore;
     private Database allocationDirectory;
+    private final AllocationIndex allocations = new AllocationIndex();
     private final TupleBinding<MainMemoryEntry> entryBinding;
     private static final DatabaseEntry SERVER = new DatabaseEntry(Shorts.toByteArray((short) 0));
     private final String envHome;
@@ -127,6 +134,28 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 
         if (!truncate)
             resetOwners();
+        loadAllocations();
+    }
+
+    private void loadAllocations() {
+        // an allocation is keyed by its last id, and its value is the owner followed by its first id
+        final DatabaseEntry key = new DatabaseEntry();
+        final DatabaseEntry value = new DatabaseEntry();
+        final List<AllocationIndex.Allocation> loaded = new ArrayList<AllocationIndex.Allocation>();
+        try (Cursor cursor = allocationDirectory.openCursor(null, CursorConfig.DEFAULT)) {
+            long next = FIRST_ALLOCATED_ID;
+            while (cursor.getNext(key, value, null) == OperationStatus.SUCCESS) {
+                final long last = Longs.fromByteArray(key.getData());
+                final byte[] v = value.getData();
+                final short owner = Shorts.fromBytes(v[0], v[1]);
+                final long start = v.length >= 10 ? Longs.fromBytes(v[2], v[3], v[4], v[5], v[6], v[7], v[8], v[9]) : next; // older records have no first id, but allocations are contiguous
+                loaded.add(new AllocationIndex.Allocation(start, last, owner));
+                next = last + 1;
+            }
+        }
+        allocations.clear();
+        allocations.addAll(loaded);
+        LOG.info("Loaded {} allocations", allocations.size());
     }
 
     private void openOrCreate() throws DatabaseException, IllegalStateException, DatabaseExistsException, DatabaseNotFoundException, IllegalArgumentException {
@@ -211,6 +240,16 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
         }
     }
 
+    @Override
+    public short getOwner(long id) {
+        final DatabaseEntry value = new DatabaseEntry();
+        final OperationStatus status = ownerDirectory.get(null, new DatabaseEntry(Longs.toByteArray(id)), value, LockMode.READ_COMMITTED);
+        if (status == OperationStatus.SUCCESS)
+            return Shorts.fromByteArray(value.getData());
+        else
+            return (short) -1;
+    }
+
     @Override
     public void removeOwner(short node) {
         final boolean trace = LOG.isTraceEnabled();
@@ -270,7 +309,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
     @Override
     public void allocate(short owner, long start, int num) {
         final DatabaseEntry key = new DatabaseEntry(Longs.toByteArray(start + num - 1));
-        final DatabaseEntry value = new DatabaseEntry(Shorts.toByteArray(owner));
+        final DatabaseEntry value = new DatabaseEntry(ByteBuffer.allocate(10).putShort(owner).putLong(start).array());
 
         final Transaction txn = null; // env.beginTransaction(null, null);
         try {
@@ -281,6 +320,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
             }
             if (txn != null)
                 txn.commit();
+            allocations.add(start, start + num - 1, owner);
         } catch (Exception e) {
             LOG.error("Exception during DB operation. Aborting transaction.", e);
             if (txn != null)
@@ -291,19 +331,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 
     @Override
     public short findAllocation(long ref) {
-        final DatabaseEntry key = new DatabaseEntry();
-        final DatabaseEntry data = new DatabaseEntry();
-
-        try (Cursor cursor = allocationDirectory.openCursor(null, CursorConfig.DEFAULT)) {
-            OperationStatus retVal = cursor.getSearchKeyRange(key, data, null);
-
-            if (retVal == OperationStatus.SUCCESS) {
-                ownerDirectory.put(null, key, SERVER);
-                return Shorts.fromByteArray(data.getData());
-            } else if (retVal == OperationStatus.NOTFOUND)
-                return (short) -1;
-            throw new AssertionError();
-        }
+        return allocations.find(ref);
     }
 
     @Override
@@ -356,7 +384,7 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 
     @Override
     public long getMaxId() {
-        final long allocationDirectoryMaxId = getMaxId(allocationDirectory);
+        final long allocationDirectoryMaxId = allocations.getMaxId();
 //        final long ownerDirecotryMaxId = getMaxId(ownerDirectory);
 //        final long mainStoreMaxId = getMaxId(mainStore);
 
@@ -369,22 +397,11 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
         return allocationDirectoryMaxId;
     }
 
-    private long getMaxId(Database db) {
-        final DatabaseEntry key = new DatabaseEntry();
-        final DatabaseEntry value = new DatabaseEntry();
-        try (Cursor cursor = db.openCursor(null, CursorConfig.DEFAULT)) {
-            final OperationStatus status = cursor.getLast(key, value, null);
-            if (status == OperationStatus.SUCCESS)
-                return Longs.fromByteArray(key.getData());
-            else
-                return 0;
-        }
-    }
-
     @Override
     public void close() {
         ownerIndex.close();
         ownerDirectory.close();
+        allocationDirectory.close();
         mainStore.close();
         env.close();
     }
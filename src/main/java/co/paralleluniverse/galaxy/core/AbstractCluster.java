@@ -25,6 +25,7 @@ import co.paralleluniverse.galaxy.cluster.NodeInfo;
 import co.paralleluniverse.galaxy.cluster.NodePropertyListener;
 import co.paralleluniverse.galaxy.cluster.ReaderWriter;
 import co.paralleluniverse.galaxy.cluster.SlaveConfigurationListener;
+import co.paralleluniverse.io.serialization.kryo.KryoUtil;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
@@ -51,8 +52,11 @@ public abstract class AbstractCluster extends Service implements Cluster {
     protected static final String ROOT = "/co.paralleluniverse.galaxy";
     protected static final String NODES = ROOT + "/nodes";
     protected static final String LEADERS = ROOT + "/leaders";
+    protected static final String CLASSES = ROOT + "/classes";
     //
     private boolean hasServer = true;
+    private boolean sharedClassIds;
+    private DistributedTreeClassRegistry classRegistry;
     //
     private final Set<String> requiredPeerNodeProperties = new HashSet<String>();
     private final Set<String> requiredServerProperties = new HashSet<String>();
@@ -112,6 +116,27 @@ public abstract class AbstractCluster extends Service implements Cluster {
         return hasServer;
     }
 
+    /**
+     * Whether classes serialized with Kryo that haven't been registered explicitly are written as ids assigned in the distributed tree
+     * rather than by name. Must be set to the same value on all nodes, and may only be set if the tree is {@link #isControlTreeDurable()
+     * durable}, as data persisted by the server or by backups refers to the ids.
+     */
+    public void setSharedClassIds(boolean sharedClassIds) {
+        assertDuringInitialization();
+        this.sharedClassIds = sharedClassIds;
+    }
+
+    public boolean isSharedClassIds() {
+        return sharedClassIds;
+    }
+
+    /**
+     * Whether the nodes of the control tree survive a restart of the whole cluster.
+     */
+    protected boolean isControlTreeDurable() {
+        return false;
+    }
+
     @Override
     public synchronized void addNodeProperty(String property, boolean requiredForPeer, boolean requiredForServer, ReaderWriter<?> readerWriter) {
         if (requiredForPeer) {
@@ -178,6 +203,12 @@ public abstract class AbstractCluster extends Service implements Cluster {
 
         controlTree.create(NODES, false);
         controlTree.create(LEADERS, false);
+        if (sharedClassIds) {
+            if (!isControlTreeDurable())
+                throw new IllegalStateException("sharedClassIds requires a cluster whose distributed tree survives a cluster restart, but " + getClass().getSimpleName() + "'s doesn't");
+            classRegistry = new DistributedTreeClassRegistry(controlTree, CLASSES);
+            KryoUtil.setClassRegistry(classRegistry);
+        }
 
         if (controlTree.exists(myNodeInfo.treeNodePath)) {
             LOG.error("A node with the name " + myNodeInfo.getName() + " already exists!");
@@ -323,6 +354,11 @@ public abstract class AbstractCluster extends Service implements Cluster {
 
     @Override
     public void shutdown() {
+        if (classRegistry != null) {
+            if (KryoUtil.getClassRegistry() == classRegistry)
+                KryoUtil.setClassRegistry(null);
+            classRegistry.close();
+        }
 // moved to setOnline(false)
 //        if (myNodeInfo.getName() != null) {
 //            controlTree.delete(LEADERS + "/" + myNodeInfo.getName());
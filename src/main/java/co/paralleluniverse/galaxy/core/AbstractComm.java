@@ -105,6 +105,23 @@ public abstract class AbstractComm<Address> extends ClusterService implements Co
             return;
         }
 
+        if (message.isBroadcast() && isMessengerBroadcast(message)) {
+            // messenger broadcasts are for the peers, not the server
+            if (sendToServerInsteadOfMulticast) {
+                for (Short node : getCluster().getNodes()) {
+                    if (node != SERVER && node != cluster.getMyNodeId()) {
+                        try {
+                            sendToNode(message.clone().setNode(node), node);
+                        } catch (NodeNotFoundException e) {
+                            LOG.debug("Node {} left before broadcast {} was sent to it", node, message);
+                        }
+                    }
+                }
+            } else
+                broadcast(message);
+            return;
+        }
+
         if (getCluster().hasServer()) {
             if (message.isBroadcast()
                     && (sendToServerInsteadOfMulticast || (message instanceof LineMessage && Cache.isReserved(((LineMessage) message).getLine()))))
@@ -119,6 +136,10 @@ public abstract class AbstractComm<Address> extends ClusterService implements Co
             broadcast(message);
     }
 
+    private static boolean isMessengerBroadcast(Message message) {
+        return message.getType() == Message.Type.MSG && ((Message.MSG) message).isMessenger() && ((Message.MSG) message).getLine() == -1;
+    }
+
     protected void assignMessageId(Message message) {
         if (message.getMessageId() < 0)
             message.setMessageId(nextMessageId()); // TODO: possible pitfall: b/c this method is not synchronized, two threads may run it concurrently, one would get a smaller id bu the other would put the message in a queue first - broken invariant!
@@ -0,0 +1,423 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.common.MonitoringType;
+import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.common.util.DegenerateInvocationHandler;
+import co.paralleluniverse.common.util.UtilUnsafe;
+import java.beans.ConstructorProperties;
+import java.lang.reflect.Proxy;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Unsafe;
+
+/**
+ * Off-heap allocator that carves all cells out of a direct-memory arena allocated up-front.
+ * <p>
+ * The arena is made of chunks of up to 1GB each (a single {@code ByteBuffer} can't address more than 2GB), and a cell is identified by
+ * its {@code long} offset in the arena. The chunks are divided into fixed-size slabs, each of which is handed to one size class when that
+ * class runs out of free cells. Size classes grow geometrically by {@link #setSizeClassRatio(double) sizeClassRatio} (rather than by
+ * powers of two), so less memory is wasted to rounding.
+ * <p>
+ * Each cell is preceded by an 8-byte header holding the cell's offset (negated while the cell is free), so a buffer is mapped back to its
+ * cell by reading the memory just before it, and free cells are kept in intrusive, per-class free-lists. The only heap object per cell is
+ * the {@code ByteBuffer} slice handed to the cache, which {@link CacheStorage} requires.
+ * <p>
+ * Slabs are never returned to the arena, so if the mix of item sizes changes drastically over time, the arena may be exhausted even
+ * though many of its cells are free.
+ *
+ * @author pron
+ */
+class ArenaLocalStorage extends Component implements CacheStorage {
+    private static final Logger LOG = LoggerFactory.getLogger(ArenaLocalStorage.class);
+    private static final int ALIGNMENT = 8;
+    private static final int MIN_CELL_SIZE = 16;
+    private static final int HEADER_SIZE = 8; // the cell's offset
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocateDirect(0);
+    private static final Unsafe unsafe = UtilUnsafe.getUnsafe();
+    private static final long ADDRESS_OFFSET;
+
+    static {
+        try {
+            ADDRESS_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Exception ex) {
+            throw new AssertionError(ex);
+        }
+    }
+    private final long arenaSize; // in bytes
+    private final int maxItemSize; // in bytes
+    private int slabSize = 64 * 1024;
+    private double sizeClassRatio = 1.25;
+    private int maxChunkSize = MAX_CHUNK_SIZE;
+    private long chunkSize; // a multiple of slabSize
+    private ByteBuffer[] chunks;
+    private long[] chunkAddresses;
+    private SizeClass[] sizeClasses;
+    private short[] sizeClassIndex; // (size + ALIGNMENT - 1) / ALIGNMENT -> size class
+    private short[] slabClasses; // slab -> size class
+    private final AtomicInteger nextSlab = new AtomicInteger();
+    private final AtomicLong totalSize = new AtomicLong();
+    private final LocalStorageMonitor monitor;
+
+    @ConstructorProperties({"name", "arenaSize", "maxItemSize", "monitoringType"})
+    public ArenaLocalStorage(String name, int arenaSize, int maxItemSize, MonitoringType monitoringType) {
+        super(name);
+        if (arenaSize <= 0)
+            throw new IllegalArgumentException("arenaSize must be positive, but was " + arenaSize);
+        this.arenaSize = (long) arenaSize * 1024 * 1024;
+        this.maxItemSize = maxItemSize;
+        this.monitor = createMonitor(monitoringType, name);
+    }
+
+    private LocalStorageMonitor createMonitor(MonitoringType monitoringType, String name) {
+        if (monitoringType == null)
+            return (LocalStorageMonitor) Proxy.newProxyInstance(ArenaLocalStorage.class.getClassLoader(), new Class<?>[]{LocalStorageMonitor.class}, DegenerateInvocationHandler.INSTANCE);
+        else
+            switch (monitoringType) {
+                case JMX:
+                    return new JMXLocalStorageMonitor(name, this);
+                case METRICS:
+                    return new MetricsLocalStorageMonitor(name, this);
+            }
+        throw new IllegalArgumentException("Unknown MonitoringType " + monitoringType);
+    }
+
+    /**
+     * Sets the size, in bytes, of the chunks in which the arena is handed out to size classes. Must be at least {@code maxItemSize} plus
+     * an 8-byte cell header, and no more than 1GB.
+     */
+    public void setSlabSize(int slabSize) {
+        assertDuringInitialization();
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * Sets the ratio between the cell sizes of consecutive size classes. Smaller ratios waste less memory to rounding, but make for
+     * more size classes, and so for more partially used slabs.
+     */
+    public void setSizeClassRatio(double sizeClassRatio) {
+        assertDuringInitialization();
+        this.sizeClassRatio = sizeClassRatio;
+    }
+
+    /**
+     * Limits the size of the arena's chunks. For tests.
+     */
+    void setMaxChunkSize(int maxChunkSize) {
+        assertDuringInitialization();
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+        if (sizeClassRatio <= 1.0)
+            throw new IllegalArgumentException("sizeClassRatio must be greater than 1, but was " + sizeClassRatio);
+        if (slabSize < align(maxItemSize) + HEADER_SIZE || slabSize > maxChunkSize)
+            throw new IllegalArgumentException("slabSize (" + slabSize + ") must be at least maxItemSize (" + maxItemSize + ") + "
+                    + HEADER_SIZE + " and at most " + maxChunkSize);
+        if (arenaSize / slabSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Arena of " + arenaSize + " bytes has too many slabs of " + slabSize + " bytes");
+
+        this.slabClasses = new short[(int) (arenaSize / slabSize)];
+        this.chunkSize = (long) (maxChunkSize / slabSize) * slabSize;
+        final long size = (long) slabClasses.length * slabSize;
+        this.chunks = new ByteBuffer[(int) ((size + chunkSize - 1) / chunkSize)];
+        this.chunkAddresses = new long[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            final long position = i * chunkSize;
+            chunks[i] = createChunk(position, (int) Math.min(chunkSize, size - position));
+            chunks[i].order(ByteOrder.nativeOrder());
+            chunkAddresses[i] = address(chunks[i]);
+        }
+
+        this.sizeClasses = buildSizeClasses();
+        this.sizeClassIndex = new short[align(maxItemSize) / ALIGNMENT + 1];
+        for (int i = 0, c = 0; i < sizeClassIndex.length; i++) {
+            while (sizeClasses[c].cellSize < i * ALIGNMENT)
+                c++;
+            sizeClassIndex[i] = (short) c;
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug("Allocated an arena of {} bytes ({} slabs in {} chunks) with {} size classes", new Object[]{arenaSize, slabClasses.length, chunks.length, sizeClasses.length});
+    }
+
+    /**
+     * Allocates a chunk of the memory from which all cells are carved.
+     *
+     * @param position the offset of the chunk in the arena.
+     * @param size the size of the chunk in bytes.
+     * @return a direct buffer of the given size.
+     */
+    protected ByteBuffer createChunk(long position, int size) throws Exception {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private SizeClass[] buildSizeClasses() {
+        final List<SizeClass> classes = new ArrayList<SizeClass>();
+        int size = MIN_CELL_SIZE;
+        for (;;) {
+            classes.add(new SizeClass((short) classes.size(), Math.min(size, align(maxItemSize))));
+            if (size >= maxItemSize)
+                break;
+            size = Math.max(size + ALIGNMENT, align((int) Math.ceil(size * sizeClassRatio)));
+        }
+        return classes.toArray(new SizeClass[classes.size()]);
+    }
+
+    int[] getCellSizes() {
+        final int[] sizes = new int[sizeClasses.length];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = sizeClasses[i].cellSize;
+        return sizes;
+    }
+
+    int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Returns the size classes of the slabs handed out so far.
+     */
+    short[] getSlabClasses() {
+        return Arrays.copyOf(slabClasses, nextSlab.get());
+    }
+
+    /**
+     * Returns the offset of the given cell, which must have been allocated by this storage.
+     */
+    long getOffset(ByteBuffer buffer) {
+        final SizeClass sizeClass = sizeClass(buffer);
+        final long address = address(buffer);
+        final long offset = unsafe.getLong(address - HEADER_SIZE); // negative if the cell is free
+        if (offset < 0 || offset / slabSize >= nextSlab.get() || slabClasses[(int) (offset / slabSize)] != sizeClass.index
+                || cellAddress(offset) != address)
+            throw new IllegalArgumentException("Buffer is not an allocated cell of this storage");
+        return offset;
+    }
+
+    private long cellAddress(long offset) {
+        return chunkAddresses[(int) (offset / chunkSize)] + offset % chunkSize + HEADER_SIZE;
+    }
+
+    private static long address(ByteBuffer buffer) {
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Buffer is not direct");
+        return unsafe.getLong(buffer, ADDRESS_OFFSET);
+    }
+
+    private SizeClass sizeClass(ByteBuffer buffer) {
+        final int index = buffer.capacity() / ALIGNMENT;
+        if (index >= sizeClassIndex.length || sizeClasses[sizeClassIndex[index]].cellSize != buffer.capacity())
+            throw new IllegalArgumentException("Buffer of " + buffer.capacity() + " bytes is not a cell of this storage");
+        return sizeClasses[sizeClassIndex[index]];
+    }
+
+    /**
+     * Returns the cell starting at the given offset.
+     */
+    ByteBuffer getCell(long offset) {
+        return sizeClasses[slabClasses[(int) (offset / slabSize)]].slice(offset);
+    }
+
+    /**
+     * Hands out the slabs to size classes as given, and frees every cell in them, except for the given ones. Must be called before
+     * any cell is allocated.
+     *
+     * @param slabs the size class of each slab, as returned by {@link #getSlabClasses() getSlabClasses}.
+     * @param allocated the offsets of the cells that remain allocated, in ascending order.
+     * @throws IllegalArgumentException if the slabs or cells don't fit this storage's arena and size classes.
+     */
+    void restore(short[] slabs, long[] allocated) {
+        if (slabs.length > slabClasses.length)
+            throw new IllegalArgumentException("Arena has " + slabClasses.length + " slabs but " + slabs.length + " are given");
+        for (short c : slabs) {
+            if (c < 0 || c >= sizeClasses.length)
+                throw new IllegalArgumentException("Unknown size class " + c);
+        }
+        int j = 0;
+        for (int i = 0; i < allocated.length; i++) {
+            final long offset = allocated[i];
+            if (offset < 0 || offset / slabSize >= slabs.length || (i > 0 && offset <= allocated[i - 1]))
+                throw new IllegalArgumentException("Illegal cell offset " + offset);
+            final SizeClass sizeClass = sizeClasses[slabs[(int) (offset / slabSize)]];
+            if ((offset % slabSize) % sizeClass.cellStride != 0 || (offset % slabSize) + sizeClass.cellStride > slabSize)
+                throw new IllegalArgumentException("Offset " + offset + " is not at a cell of size " + sizeClass.cellSize);
+        }
+
+        System.arraycopy(slabs, 0, slabClasses, 0, slabs.length);
+        nextSlab.set(slabs.length);
+        long size = 0;
+        for (int slab = 0; slab < slabs.length; slab++) {
+            final SizeClass sizeClass = sizeClasses[slabs[slab]];
+            final long end = (long) (slab + 1) * slabSize;
+            for (long offset = (long) slab * slabSize; offset + sizeClass.cellStride <= end; offset += sizeClass.cellStride) {
+                if (j < allocated.length && allocated[j] == offset) {
+                    sizeClass.initCell(offset);
+                    j++;
+                    size += sizeClass.cellSize;
+                } else
+                    sizeClass.deallocate(offset);
+            }
+        }
+        totalSize.set(size);
+    }
+
+    @Override
+    public ByteBuffer allocateStorage(int size) {
+        if (size == 0)
+            return EMPTY_BUFFER;
+        if (size > maxItemSize)
+            throw new IllegalArgumentException("Size " + size + " is larger than maximum size: " + maxItemSize);
+        final SizeClass sizeClass = sizeClasses[sizeClassIndex[(size + ALIGNMENT - 1) / ALIGNMENT]];
+        monitor.allocated(sizeClass.cellSize);
+        totalSize.addAndGet(sizeClass.cellSize);
+        return sizeClass.allocate();
+    }
+
+    @Override
+    public void deallocateStorage(long id, ByteBuffer buffer) {
+        if (buffer == EMPTY_BUFFER)
+            return;
+        final SizeClass sizeClass = sizeClass(buffer);
+        final long offset = getOffset(buffer);
+        monitor.deallocated(sizeClass.cellSize);
+        totalSize.addAndGet(-sizeClass.cellSize);
+        sizeClass.deallocate(offset);
+    }
+
+    @Override
+    public long getTotalAllocatedSize() {
+        return totalSize.get();
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+
+    private class SizeClass {
+        final short index;
+        final int cellSize;
+        final int cellStride; // the cell and its header
+        private final ByteBuffer[] views; // this class's own views of the chunks, which are sliced under the lock
+        private final Lock lock = new ReentrantLock();
+        private long head = -1; // free-list; each free cell holds the offset of the next
+        private long bump; // the next never-used cell in the last slab taken by this class
+        private long bumpEnd;
+
+        SizeClass(short index, int cellSize) {
+            this.index = index;
+            this.cellSize = cellSize;
+            this.cellStride = HEADER_SIZE + cellSize;
+            this.views = new ByteBuffer[chunks.length];
+            for (int i = 0; i < chunks.length; i++)
+                views[i] = chunks[i].duplicate().order(ByteOrder.nativeOrder());
+        }
+
+        ByteBuffer allocate() {
+            final ByteBuffer slice;
+            lock.lock();
+            try {
+                final long ptr;
+                if (head != -1) {
+                    ptr = head;
+                    head = views[chunk(ptr)].getLong(position(ptr) + HEADER_SIZE);
+                } else {
+                    if (bump + cellStride > bumpEnd)
+                        newSlab();
+                    ptr = bump;
+                    bump += cellStride;
+                }
+                initCell(ptr);
+                slice = slice1(ptr);
+            } finally {
+                lock.unlock();
+            }
+            slice.putInt(0, 0);
+            return slice;
+        }
+
+        ByteBuffer slice(long ptr) {
+            lock.lock();
+            try {
+                return slice1(ptr);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private ByteBuffer slice1(long ptr) {
+            final ByteBuffer view = views[chunk(ptr)];
+            final int position = position(ptr) + HEADER_SIZE;
+            view.limit(position + cellSize);
+            view.position(position);
+            final ByteBuffer slice = view.slice();
+            view.clear();
+            return slice;
+        }
+
+        /**
+         * Writes the cell's offset to its header, marking it allocated.
+         */
+        void initCell(long ptr) {
+            views[chunk(ptr)].putLong(position(ptr), ptr);
+        }
+
+        void deallocate(long ptr) {
+            lock.lock();
+            try {
+                final ByteBuffer view = views[chunk(ptr)];
+                view.putLong(position(ptr), ~ptr);
+                view.putLong(position(ptr) + HEADER_SIZE, head);
+                head = ptr;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int chunk(long ptr) {
+            return (int) (ptr / chunkSize);
+        }
+
+        private int position(long ptr) {
+            return (int) (ptr % chunkSize);
+        }
+
+        private void newSlab() {
+            int slab;
+            do {
+                slab = nextSlab.get();
+                if (slab >= slabClasses.length)
+                    throw new OutOfMemoryError("Arena of " + arenaSize + " bytes is exhausted");
+            } while (!nextSlab.compareAndSet(slab, slab + 1));
+            if (LOG.isDebugEnabled())
+                LOG.debug("Assigning slab {} to {}-byte cells. (totalSize: {} bytes)", new Object[]{slab, cellSize, totalSize.get()});
+            slabClasses[slab] = index;
+            this.bump = (long) slab * slabSize;
+            this.bumpEnd = bump + slabSize;
+        }
+    }
+}
@@ -14,6 +14,7 @@
 package co.paralleluniverse.galaxy.core;
 
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_SYNC;
 import java.util.Iterator;
 
 /**
@@ -42,6 +43,25 @@ public interface Backup {
 
     Iterator<BACKUP> iterOwned();
 
+    /**
+     * Returns an iterator over the owned lines that have been modified since the given point in the backup stream, or over all owned
+     * lines if the master cannot tell what has been modified since then.
+     *
+     * @param since the point reported by the slave (see {@link #getSyncPoint()}).
+     */
+    Iterator<BACKUP> iterOwned(BACKUP_SYNC since);
+
+    /**
+     * On a master, returns the current point in the backup stream; on a slave, returns the point in the master's backup stream
+     * up to which this node's backups are known to be complete.
+     */
+    BACKUP_SYNC getSyncPoint();
+
+    /**
+     * Called on a slave when it connects to the master, before it reports its sync point.
+     */
+    void beginReplication();
+
     void receive(Message message);
 
     void slavesAck(long id);
@@ -22,7 +22,13 @@ import co.paralleluniverse.galaxy.core.Cache.CacheLine;
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKETACK;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_SYNC;
 import co.paralleluniverse.galaxy.core.Message.INV;
+import com.google.common.collect.AbstractIterator;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
 import java.beans.ConstructorProperties;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
@@ -31,7 +37,9 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -50,9 +58,12 @@ public class BackupImpl extends ClusterService implements Backup {
     // We just want to mark updated lines, and copy their contents periodically during flushes.
     private static final Logger LOG = LoggerFactory.getLogger(BackupImpl.class);
     private long maxDelayNanos = TimeUnit.NANOSECONDS.convert(10, TimeUnit.MILLISECONDS);
+    private long checkpointPeriodMillis = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
     private final Comm serverComm;
     private final SlaveComm slaveComm;
     private Cache cache;
+    private BackupJournal journal;
+    private final NonBlockingHashMapLong<AtomicInteger> pendingInvAcks = new NonBlockingHashMapLong<AtomicInteger>(); // used with journal
     //
     private final ReadWriteLock mapLock = new ReentrantReadWriteLock(); // this could become a bottleneck. consider replacing with a scalable lock
     private NonBlockingHashMapLong<BackupEntry> map;
@@ -71,7 +82,21 @@ public class BackupImpl extends ClusterService implements Backup {
     //
     private volatile boolean completedReplication = false;
     //
+    // For incremental resynchronization, the master remembers, for each line, the id of the last backup packet that carried it. A slave
+    // reconnecting with a sync point in the current epoch then only needs the lines modified since.
+    private long epoch; // changes whenever we become master
+    private final Long2LongOpenHashMap modifiedIn = new Long2LongOpenHashMap(); // line -> packet id. guarded by currentBackupsLock
+    private long untrackedBefore; // guarded by currentBackupsLock
+    private int maxTrackedLines = 1 << 20;
+    // Slave side: the point in the master's stream up to which we have all backups
+    private final Object syncLock = new Object();
+    private long masterEpoch;
+    private long watermark = -1;
+    private long lastPacketId = -1;
+    private boolean inSync;
+    //
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledExecutorService checkpointer; // used with journal
     private final BackupMonitor monitor;
 
     @ConstructorProperties({"name", "cluster", "serverComm", "slaveComm", "monitoringType"})
@@ -94,6 +119,7 @@ public class BackupImpl extends ClusterService implements Backup {
             slaveComm.setBackup(this);
 
         map = map1;
+        modifiedIn.defaultReturnValue(-1);
     }
 
     static BackupMonitor createMonitor(MonitoringType monitoringType, String name) {
@@ -119,10 +145,43 @@ public class BackupImpl extends ClusterService implements Backup {
         return (int) TimeUnit.MILLISECONDS.convert(maxDelayNanos, TimeUnit.NANOSECONDS);
     }
 
+    public void setMaxTrackedLines(int maxTrackedLines) {
+        assertDuringInitialization();
+        this.maxTrackedLines = maxTrackedLines;
+    }
+
+    @ManagedAttribute
+    public int getMaxTrackedLines() {
+        return maxTrackedLines;
+    }
+
+    /**
+     * Sets how often the journal is rewritten to contain only the owned lines; 0 to checkpoint only when becoming master.
+     */
+    public void setCheckpointPeriod(long checkpointPeriodMillis) {
+        assertDuringInitialization();
+        this.checkpointPeriodMillis = checkpointPeriodMillis;
+    }
+
+    @ManagedAttribute
+    public long getCheckpointPeriod() {
+        return checkpointPeriodMillis;
+    }
+
+    /**
+     * Sets a local journal that makes owned lines durable when the cluster has no server.
+     */
+    public void setJournal(BackupJournal journal) {
+        assertDuringInitialization();
+        this.journal = journal;
+    }
+
     @Override
     public void init() throws Exception {
         if (serverComm instanceof Service)
             removeDependency((Service) serverComm);
+        if (journal != null && getCluster().hasServer())
+            throw new RuntimeException("A backup journal can only be used in clusters without a server");
         super.init();
     }
 
@@ -141,8 +200,13 @@ public class BackupImpl extends ClusterService implements Backup {
 
     @Override
     protected void start(boolean master) {
-        if (master)
+        if (master) {
+            if (journal != null)
+                recoverFromJournal();
+            newEpoch();
             startFlushThread();
+            startCheckpoints();
+        }
     }
 
     @Override
@@ -153,7 +217,11 @@ public class BackupImpl extends ClusterService implements Backup {
             LOG.info("Node has not completed replication so cannot become master. Going offline!");
             getCluster().goOffline();
         } else {
+            if (journal != null)
+                journal.checkpoint(iterOwned());
+            newEpoch();
             startFlushThread();
+            startCheckpoints();
         }
     }
 
@@ -161,6 +229,8 @@ public class BackupImpl extends ClusterService implements Backup {
     protected void shutdown() {
         super.shutdown();
         scheduler.shutdownNow();
+        if (checkpointer != null)
+            checkpointer.shutdownNow();
     }
 
     @Override
@@ -169,6 +239,22 @@ public class BackupImpl extends ClusterService implements Backup {
         this.cache = cache;
     }
 
+    private void newEpoch() {
+        currentBackupsLock.lock();
+        try {
+            long e;
+            do {
+                e = ThreadLocalRandom.current().nextLong();
+            } while (e == 0);
+            this.epoch = e;
+            modifiedIn.clear();
+            untrackedBefore = 0;
+            LOG.info("Backup epoch is now {}", Long.toHexString(epoch));
+        } finally {
+            currentBackupsLock.unlock();
+        }
+    }
+
     private void startFlushThread() {
         scheduler.scheduleAtFixedRate(new Runnable() {
             @Override
@@ -178,12 +264,47 @@ public class BackupImpl extends ClusterService implements Backup {
         }, maxDelayNanos, maxDelayNanos, TimeUnit.NANOSECONDS);
     }
 
+    private void startCheckpoints() {
+        if (journal == null || checkpointPeriodMillis <= 0)
+            return;
+        checkpointer = Executors.newSingleThreadScheduledExecutor(); // not the flush thread; a checkpoint may take a while
+        checkpointer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    journal.checkpoint(iterOwned());
+                } catch (Exception e) {
+                    LOG.error("Journal checkpoint failed", e);
+                }
+            }
+        }, checkpointPeriodMillis, checkpointPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
     @Override
-    public boolean inv(long id, short owner) {
+    public boolean inv(final long id, short owner) {
         try {
             if (LOG.isDebugEnabled())
                 LOG.debug("INV {}, {}", id, owner);
-            return !slaveComm.send(Message.INV(getCluster().getMyNodeId(), id, owner));
+            currentBackupsLock.lock();
+            try {
+                track(id); // so that slaves that miss the INV are told about it when they resync
+            } finally {
+                currentBackupsLock.unlock();
+            }
+            if (journal == null)
+                return !slaveComm.send(Message.INV(getCluster().getMyNodeId(), id, owner));
+
+            // the cache waits for both the slaves and the journal
+            expectInvAcks(id, 2);
+            if (!slaveComm.send(Message.INV(getCluster().getMyNodeId(), id, owner)))
+                invAcked(id);
+            journal.invalidate(id, new Runnable() {
+                @Override
+                public void run() {
+                    invAcked(id);
+                }
+            });
+            return false;
         } catch (NodeNotFoundException e) {
             throw new AssertionError(e);
         }
@@ -225,7 +346,7 @@ public class BackupImpl extends ClusterService implements Backup {
         if (LOG.isDebugEnabled())
             LOG.debug("Backup: {} ver: {} {}", new Object[]{hex(id), version, copyImmediately ? "(COPY)" : ""});
         if (copyImmediately) {
-            currentBackups.put(id, makeBackup(cache.getLine(id), version));
+            addBackup(makeBackup(cache.getLine(id), version));
             oldMap().remove(id);
         }
         else
@@ -270,7 +391,7 @@ public class BackupImpl extends ClusterService implements Backup {
                             oldMap.remove(be.id);
                             if (LOG.isDebugEnabled())
                                 LOG.debug("Copied {} ver {} for backup", hex(be.id), be.version);
-                            currentBackups.put(be.id, backup);
+                            addBackup(backup);
                         } else {
                             if (LOG.isDebugEnabled())
                                 LOG.debug("Matching version for {} ({}) not found", hex(be.id), be.version);
@@ -298,7 +419,7 @@ public class BackupImpl extends ClusterService implements Backup {
                                 map.remove(be.id);
                                 if (LOG.isDebugEnabled())
                                     LOG.debug("Copied {} ver {} for backup", hex(be.id), be.version);
-                                currentBackups.put(be.id, backup);
+                                addBackup(backup);
                             } else
                                 oldMap.put(be.id, be);
                         }
@@ -336,6 +457,32 @@ public class BackupImpl extends ClusterService implements Backup {
         }
     }
 
+    private void addBackup(BACKUP backup) {
+        assert currentBackupsLock.isHeldByCurrentThread();
+        currentBackups.put(backup.getLine(), backup);
+        track(backup.getLine());
+    }
+
+    private void track(long id) {
+        assert currentBackupsLock.isHeldByCurrentThread();
+        // the change will be sent in (or, for an INV, before) packet nextId
+        if (modifiedIn.size() >= maxTrackedLines && !modifiedIn.containsKey(id)) {
+            LOG.debug("Too many modified lines tracked. Slaves behind packet {} will require full replication.", nextId);
+            modifiedIn.clear();
+            untrackedBefore = nextId;
+        }
+        modifiedIn.put(id, nextId);
+    }
+
+    private boolean modifiedSince(long id, long sequence) {
+        currentBackupsLock.lock();
+        try {
+            return modifiedIn.get(id) > sequence;
+        } finally {
+            currentBackupsLock.unlock();
+        }
+    }
+
     private BACKUP_PACKET flush1() {
         currentBackupsLock.lock();
         try {
@@ -372,6 +519,13 @@ public class BackupImpl extends ClusterService implements Backup {
             if (serverComm != null) {
                 LOG.debug("Sending backup packet to server: {}", packet);
                 serverComm.send(packet);
+            } else if (journal != null) {
+                journal.append(packet.getBackups(), new Runnable() {
+                    @Override
+                    public void run() {
+                        ack(true);
+                    }
+                });
             } else
                 ack(true);
             if (!slaveComm.send(packet))
@@ -436,9 +590,44 @@ public class BackupImpl extends ClusterService implements Backup {
 
     @Override
     public void slavesInvAck(long id) {
+        if (journal != null)
+            invAcked(id);
+        else
+            cache.receive(Message.INVACK(getCluster().getMyNodeId(), id));
+    }
+
+    private void expectInvAcks(long id, int acks) {
+        for (;;) {
+            final AtomicInteger count = pendingInvAcks.get(id);
+            if (count == null) {
+                if (pendingInvAcks.putIfAbsent(id, new AtomicInteger(acks)) == null)
+                    return;
+            } else {
+                final int c = count.get();
+                if (c > 0 && count.compareAndSet(c, c + acks)) // a count of 0 is about to be removed
+                    return;
+            }
+        }
+    }
+
+    private void invAcked(long id) {
+        final AtomicInteger count = pendingInvAcks.get(id);
+        if (count == null || count.decrementAndGet() > 0)
+            return;
+        pendingInvAcks.remove(id, count);
         cache.receive(Message.INVACK(getCluster().getMyNodeId(), id));
     }
 
+    private void recoverFromJournal() {
+        int count = 0;
+        for (Iterator<BACKUP> it = journal.recover(); it.hasNext();) {
+            final BACKUP backup = it.next();
+            cache.recoverLine(backup.getLine(), backup.getVersion(), backup.getData());
+            count++;
+        }
+        LOG.info("Recovered {} lines from journal", count);
+    }
+
     private void ack(boolean server) {
         LOG.debug("Ack {}", server ? "server" : "slaves");
         BACKUP_PACKET packet = null;
@@ -480,11 +669,7 @@ public class BackupImpl extends ClusterService implements Backup {
 
             @Override
             public BACKUP next() {
-                final Cache.CacheLine line = it.next();
-                synchronized (line) {
-                    monitor.addReplicationBackup(1);
-                    return (BACKUP) Message.BACKUP(line.getId(), line.getVersion(), line.getData()).cloneDataBuffers();
-                }
+                return replicationBackup(it.next());
             }
 
             @Override
@@ -494,6 +679,103 @@ public class BackupImpl extends ClusterService implements Backup {
         };
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Lines modified since the sync point that are no longer owned by this node (because they have been invalidated or deleted) are
+     * invalidated on the slaves right away, with INVs that require no reply.
+     */
+    @Override
+    public Iterator<BACKUP> iterOwned(BACKUP_SYNC since) {
+        final long sequence = since.getSequence();
+        final LongList modified = new LongArrayList();
+        currentBackupsLock.lock();
+        try {
+            if (since.getEpoch() != epoch || sequence < untrackedBefore) {
+                LOG.info("Slave sync point {} unknown. Replicating all owned lines.", since);
+                return iterOwned();
+            }
+            for (Long2LongMap.Entry entry : modifiedIn.long2LongEntrySet()) {
+                if (entry.getLongValue() > sequence)
+                    modified.add(entry.getLongKey());
+            }
+        } finally {
+            currentBackupsLock.unlock();
+        }
+        sendTombstones(modified);
+
+        LOG.info("Replicating lines modified since packet {}", sequence);
+        final Iterator<Cache.CacheLine> it = cache.ownedIterator();
+        return new AbstractIterator<BACKUP>() {
+            @Override
+            protected BACKUP computeNext() {
+                while (it.hasNext()) {
+                    final Cache.CacheLine line = it.next();
+                    if (modifiedSince(line.getId(), sequence))
+                        return replicationBackup(line);
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private void sendTombstones(LongList modified) {
+        // Sent without currentBackupsLock, so a line we find unowned may be re-acquired and backed up before its tombstone arrives.
+        // Such a line has been modified after the sync point, so the replication iterator, which runs after this, sends it again.
+        assert !currentBackupsLock.isHeldByCurrentThread();
+        int count = 0;
+        for (int i = 0; i < modified.size(); i++) {
+            final long id = modified.getLong(i);
+            final Cache.CacheLine line = cache.getLine(id);
+            if (line != null && !line.getState().isLessThan(Cache.State.O))
+                continue;
+            try {
+                slaveComm.send(Message.INV(getCluster().getMyNodeId(), id, (short) -1).setReplyRequired(false));
+            } catch (NodeNotFoundException e) {
+                throw new AssertionError(e);
+            }
+            count++;
+        }
+        if (count > 0)
+            LOG.info("Invalidated {} lines no longer owned on slaves", count);
+    }
+
+    private BACKUP replicationBackup(Cache.CacheLine line) {
+        synchronized (line) {
+            monitor.addReplicationBackup(1);
+            return (BACKUP) Message.BACKUP(line.getId(), line.getVersion(), line.getData()).cloneDataBuffers();
+        }
+    }
+
+    @Override
+    public BACKUP_SYNC getSyncPoint() {
+        if (getCluster().isMaster()) {
+            currentBackupsLock.lock();
+            try {
+                return Message.BACKUP_SYNC(epoch, nextId - 1);
+            } finally {
+                currentBackupsLock.unlock();
+            }
+        } else {
+            synchronized (syncLock) {
+                return Message.BACKUP_SYNC(masterEpoch, watermark);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Backups received from then on do not advance the sync point until the master has completed replication.
+     */
+    @Override
+    public void beginReplication() {
+        synchronized (syncLock) {
+            inSync = false;
+            lastPacketId = -1;
+        }
+    }
+
     @Override
     public void receive(Message message) {
         switch (message.getType()) {
@@ -517,6 +799,12 @@ public class BackupImpl extends ClusterService implements Backup {
                     handleReceivedBackup((BACKUP) message);
                 }
                 break;
+            case BACKUP_SYNC:
+                if (getCluster().isMaster())
+                    LOG.warn("Received backup sync while master: {}", message);
+                else
+                    handleReceivedSync((BACKUP_SYNC) message);
+                break;
             case INV:
                 if (getCluster().isMaster())
                     LOG.warn("Received INV while master: {}", message);
@@ -532,25 +820,53 @@ public class BackupImpl extends ClusterService implements Backup {
             LOG.debug("Received backup packet: {}", packet);
             for (BACKUP backup : packet.getBackups())
                 cache.receive(backup);
+            packetReceived(packet.getId());
             slaveComm.send(Message.BACKUP_PACKETACK(packet));
         } catch (NodeNotFoundException e) {
             LOG.error("Exception while sending backup ack", e);
         }
     }
 
+    private void packetReceived(long id) {
+        synchronized (syncLock) {
+            if (!inSync)
+                lastPacketId = id;
+            else if (id == watermark + 1)
+                watermark = id;
+            else if (id > watermark) {
+                LOG.warn("Missed backup packets {} to {}. Next replication will be full.", watermark + 1, id - 1);
+                masterEpoch = 0;
+                watermark = -1;
+                inSync = false;
+            }
+        }
+    }
+
     private void handleReceivedBackup(BACKUP backup) {
         LOG.debug("Received replication backup: {}", backup);
-        if (backup.getLine() < 0) {
-            LOG.info("Slave node now ready! (completed replication)");
-            completedReplication = true;
-            setReady(true);
-        } else
-            cache.receive(backup);
+        cache.receive(backup);
+    }
+
+    private void handleReceivedSync(BACKUP_SYNC sync) {
+        LOG.debug("Received replication end: {}", sync);
+        synchronized (syncLock) {
+            masterEpoch = sync.getEpoch();
+            watermark = Math.max(sync.getSequence(), lastPacketId);
+            inSync = true;
+        }
+        LOG.info("Slave node now ready! (completed replication)");
+        completedReplication = true;
+        setReady(true);
     }
 
     private void handleReceivedInvalidate(INV inv) {
         try {
             LOG.debug("Received inv: {}", inv);
+            if (!inv.isReplyRequired()) { // a line invalidated while we were disconnected (see sendTombstones)
+                if (cache.getLine(inv.getLine()) != null)
+                    cache.receive(inv);
+                return;
+            }
             cache.receive(inv);
             slaveComm.send(Message.INVACK(inv));
         } catch (NodeNotFoundException e) {
@@ -0,0 +1,620 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import static co.paralleluniverse.common.logging.LoggingUtils.hex;
+import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.core.Message.BACKUP;
+import com.google.common.collect.AbstractIterator;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import java.beans.ConstructorProperties;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+
+/**
+ * A local write-ahead journal of backups, which makes a node's owned lines durable in clusters that have no server.
+ * <p>
+ * Records are appended to memory-mapped segment files and are forced to disk in groups, every {@code syncPeriod} milliseconds, after
+ * which the appenders are notified. Segments whose live data has dropped below {@code compactionThreshold} are compacted by copying
+ * their live records to the head of the journal and deleting them. When the node starts as a master, the journal is replayed to
+ * restore the lines it owned.
+ *
+ * @author pron
+ */
+public class BackupJournal extends Component {
+    // Record layout: length (int), crc (int), type (byte), id (long), version (long), data length (int, -1 for null), data
+    private static final Logger LOG = LoggerFactory.getLogger(BackupJournal.class);
+    private static final byte LINE = 1;
+    private static final byte INVALIDATE = 2;
+    private static final int PREFIX_SIZE = 4 + 4;
+    private static final int HEADER_SIZE = 1 + 8 + 8 + 4;
+    private static final String SUFFIX = ".journal";
+    private final File dir;
+    private int segmentSize = 64 * 1024 * 1024;
+    private long syncPeriodNanos = TimeUnit.NANOSECONDS.convert(2, TimeUnit.MILLISECONDS);
+    private long compactionPeriodMillis = 10000;
+    private double compactionThreshold = 0.5;
+    //
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock(); // held while forcing, so that sync() returns only after earlier appends are durable
+    private final ReentrantLock compactionLock = new ReentrantLock(); // held by compactions and checkpoints, which both delete segments
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment head;
+    private final Long2LongOpenHashMap index = new Long2LongOpenHashMap(); // line -> location of its latest record
+    private List<Runnable> pendingSync = new ArrayList<Runnable>();
+    private LongOpenHashSet modifiedDuringCheckpoint; // non-null while checkpointing
+    private final CRC32 crc = new CRC32();
+    private byte[] scratch = new byte[1024];
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+    @ConstructorProperties({"name", "directory"})
+    public BackupJournal(String name, String directory) {
+        super(name);
+        this.dir = new File(directory);
+        index.defaultReturnValue(-1);
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        assertDuringInitialization();
+        this.segmentSize = segmentSize;
+    }
+
+    @ManagedAttribute
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSyncPeriod(int syncPeriodMillis) {
+        assertDuringInitialization();
+        this.syncPeriodNanos = TimeUnit.NANOSECONDS.convert(syncPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @ManagedAttribute
+    public int getSyncPeriod() {
+        return (int) TimeUnit.MILLISECONDS.convert(syncPeriodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void setCompactionPeriod(long compactionPeriodMillis) {
+        assertDuringInitialization();
+        this.compactionPeriodMillis = compactionPeriodMillis;
+    }
+
+    @ManagedAttribute
+    public long getCompactionPeriod() {
+        return compactionPeriodMillis;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        assertDuringInitialization();
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @ManagedAttribute
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    @ManagedAttribute(currencyTimeLimit = -1, description = "The journal directory")
+    public String getDirectory() {
+        return dir.getPath();
+    }
+
+    @ManagedAttribute
+    public int getNumSegments() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute
+    public int getNumLines() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create journal directory " + dir);
+
+        LOG.info("Opening journal in {}", dir);
+        lock.lock();
+        try {
+            for (File file : listSegmentFiles()) {
+                final Segment segment = openSegment(segmentNumber(file), file, false);
+                segments.put(segment.number, segment);
+                scan(segment);
+            }
+            roll(); // we never append to a segment that may have a torn tail
+        } finally {
+            lock.unlock();
+        }
+        LOG.info("Journal contains {} lines in {} segments", index.size(), segments.size());
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (Exception e) {
+                    LOG.error("Exception while syncing journal", e);
+                }
+            }
+        }, syncPeriodNanos, syncPeriodNanos, TimeUnit.NANOSECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    LOG.error("Exception while compacting journal", e);
+                }
+            }
+        }, compactionPeriodMillis, compactionPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void shutdown() {
+        scheduler.shutdownNow();
+        sync();
+        lock.lock();
+        try {
+            for (Segment segment : segments.values())
+                segment.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the given backups to the journal.
+     *
+     * @param onDurable called (on the journal's thread) once the backups have been forced to disk.
+     */
+    public void append(Collection<BACKUP> backups, Runnable onDurable) {
+        lock.lock();
+        try {
+            for (BACKUP backup : backups) {
+                putLine(backup.getLine(), append(LINE, backup.getLine(), backup.getVersion(), backup.getData()));
+                if (modifiedDuringCheckpoint != null)
+                    modifiedDuringCheckpoint.add(backup.getLine());
+            }
+            if (onDurable != null)
+                pendingSync.add(onDurable);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the given line is no longer owned by this node.
+     *
+     * @param onDurable called (on the journal's thread) once the record has been forced to disk.
+     */
+    public void invalidate(long id, Runnable onDurable) {
+        lock.lock();
+        try {
+            append(INVALIDATE, id, 0, null);
+            removeLine(id);
+            if (modifiedDuringCheckpoint != null)
+                modifiedDuringCheckpoint.add(id);
+            if (onDurable != null)
+                pendingSync.add(onDurable);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the latest backup of each line in the journal.
+     */
+    public Iterator<BACKUP> recover() {
+        final long[] ids;
+        lock.lock();
+        try {
+            ids = index.keySet().toLongArray();
+        } finally {
+            lock.unlock();
+        }
+        return new AbstractIterator<BACKUP>() {
+            private int i;
+
+            @Override
+            protected BACKUP computeNext() {
+                while (i < ids.length) {
+                    final long id = ids[i++];
+                    lock.lock();
+                    try {
+                        final long location = index.get(id);
+                        if (location >= 0)
+                            return readLine(location);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Rewrites the journal so that it contains exactly the given lines, and deletes all older segments once the new ones are durable.
+     * Lines appended or invalidated while the checkpoint is in progress take precedence over the given ones. If the checkpoint fails,
+     * the older segments are kept. Must not be called while holding a line's monitor.
+     */
+    public void checkpoint(Iterator<BACKUP> lines) {
+        compactionLock.lock();
+        try {
+            final List<Segment> old;
+            lock.lock();
+            try {
+                if (modifiedDuringCheckpoint != null)
+                    throw new IllegalStateException("Checkpoint already in progress");
+                modifiedDuringCheckpoint = new LongOpenHashSet();
+                old = new ArrayList<Segment>(segments.values());
+                roll();
+                index.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            int count = 0;
+            boolean written = false;
+            try {
+                while (lines.hasNext()) {
+                    final BACKUP backup = lines.next(); // not under the journal lock, because the iterator locks lines
+                    lock.lock();
+                    try {
+                        if (modifiedDuringCheckpoint.contains(backup.getLine()))
+                            continue; // our copy may be stale
+                        putLine(backup.getLine(), append(LINE, backup.getLine(), backup.getVersion(), backup.getData()));
+                    } finally {
+                        lock.unlock();
+                    }
+                    count++;
+                }
+                written = true;
+            } finally {
+                lock.lock();
+                try {
+                    modifiedDuringCheckpoint = null;
+                    if (!written)
+                        rescan(); // the old segments still hold the lines the checkpoint didn't get to
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            sync(); // the checkpoint must be durable before we delete the segments it replaces
+            lock.lock();
+            try {
+                for (Segment segment : old)
+                    segments.remove(segment.number);
+            } finally {
+                lock.unlock();
+            }
+            for (Segment segment : old)
+                segment.delete();
+            LOG.info("Checkpointed {} lines to journal", count);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the index from all segments.
+     */
+    private void rescan() {
+        assert lock.isHeldByCurrentThread();
+        index.clear();
+        for (Segment segment : segments.values())
+            segment.liveBytes = 0;
+        for (Segment segment : segments.values())
+            scan(segment);
+    }
+
+    /**
+     * Forces all records appended so far to disk, and then runs the callbacks waiting for them.
+     */
+    void sync() {
+        syncLock.lock(); // a concurrent sync may have taken the dirty segments but not yet forced them
+        try {
+            final List<Runnable> callbacks;
+            final List<Segment> dirty = new ArrayList<Segment>();
+            lock.lock();
+            try {
+                callbacks = pendingSync;
+                pendingSync = new ArrayList<Runnable>();
+                for (Segment segment : segments.values()) {
+                    if (segment.dirty) {
+                        segment.dirty = false;
+                        dirty.add(segment);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            for (Segment segment : dirty)
+                segment.buffer.force();
+            for (Runnable callback : callbacks)
+                callback.run();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    void compact() {
+        compactionLock.lock();
+        try {
+            compact1();
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private void compact1() {
+        for (;;) {
+            final Segment segment;
+            final boolean oldest;
+            final LongArrayList invalidated = new LongArrayList();
+            lock.lock();
+            try {
+                segment = findSparseSegment();
+                if (segment == null)
+                    return;
+                oldest = segment.number == segments.firstKey();
+                LOG.debug("Compacting journal segment {} ({} live bytes of {})", new Object[]{segment.number, segment.liveBytes, segment.position});
+
+                for (int pos = 0; pos < segment.position;) {
+                    final ByteBuffer b = segment.buffer;
+                    final int length = b.getInt(pos);
+                    final byte type = b.get(pos + PREFIX_SIZE);
+                    final long id = b.getLong(pos + PREFIX_SIZE + 1);
+                    final long location = location(segment.number, pos);
+                    if (type == LINE && index.get(id) == location) {
+                        final BACKUP backup = readLine(location);
+                        putLine(id, append(LINE, id, backup.getVersion(), backup.getData()));
+                    } else if (type == INVALIDATE && !oldest && !index.containsKey(id))
+                        invalidated.add(id); // older segments may still hold records of this line
+                    pos += PREFIX_SIZE + length;
+                }
+                for (int i = 0; i < invalidated.size(); i++)
+                    append(INVALIDATE, invalidated.getLong(i), 0, null);
+                segments.remove(segment.number);
+            } finally {
+                lock.unlock();
+            }
+            sync(); // relocated records must be durable before we delete the segment
+            segment.delete();
+        }
+    }
+
+    private Segment findSparseSegment() {
+        for (Segment segment : segments.values()) {
+            if (segment != head && (segment.liveBytes == 0 || segment.liveBytes < compactionThreshold * segment.position))
+                return segment;
+        }
+        return null;
+    }
+
+    private void putLine(long id, long location) {
+        final long old = index.put(id, location);
+        if (old >= 0)
+            segment(old).liveBytes -= recordSize(old);
+        segment(location).liveBytes += recordSize(location);
+    }
+
+    private void removeLine(long id) {
+        final long old = index.remove(id);
+        if (old >= 0)
+            segment(old).liveBytes -= recordSize(old);
+    }
+
+    private long append(byte type, long id, long version, ByteBuffer data) {
+        assert lock.isHeldByCurrentThread();
+        final int dataLength = data != null ? data.remaining() : 0;
+        final int length = HEADER_SIZE + dataLength;
+        if (PREFIX_SIZE + length > segmentSize)
+            throw new IllegalArgumentException("Record of line " + hex(id) + " (" + length + " bytes) exceeds the journal's segment size");
+        if (head.position + PREFIX_SIZE + length > head.buffer.capacity())
+            roll();
+
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, 2 * scratch.length)];
+        final ByteBuffer record = ByteBuffer.wrap(scratch, 0, length);
+        record.put(type);
+        record.putLong(id);
+        record.putLong(version);
+        record.putInt(data != null ? dataLength : -1);
+        if (data != null)
+            record.put(data.duplicate());
+        crc.reset();
+        crc.update(scratch, 0, length);
+
+        final ByteBuffer b = head.buffer;
+        b.position(head.position);
+        b.putInt(length);
+        b.putInt((int) crc.getValue());
+        b.put(scratch, 0, length);
+
+        final long location = location(head.number, head.position);
+        head.position += PREFIX_SIZE + length;
+        head.dirty = true;
+        return location;
+    }
+
+    private BACKUP readLine(long location) {
+        final Segment segment = segment(location);
+        final int pos = offset(location);
+        final ByteBuffer b = segment.buffer;
+        final long id = b.getLong(pos + PREFIX_SIZE + 1);
+        final long version = b.getLong(pos + PREFIX_SIZE + 1 + 8);
+        final int dataLength = b.getInt(pos + PREFIX_SIZE + 1 + 8 + 8);
+        ByteBuffer data = null;
+        if (dataLength >= 0) {
+            data = ByteBuffer.allocate(dataLength);
+            final ByteBuffer src = b.duplicate();
+            src.position(pos + PREFIX_SIZE + HEADER_SIZE);
+            src.limit(pos + PREFIX_SIZE + HEADER_SIZE + dataLength);
+            data.put(src);
+            data.flip();
+        }
+        return Message.BACKUP(id, version, data);
+    }
+
+    private void scan(Segment segment) {
+        final ByteBuffer b = segment.buffer;
+        int pos = 0;
+        while (pos + PREFIX_SIZE + HEADER_SIZE <= b.capacity()) {
+            final int length = b.getInt(pos);
+            if (length < HEADER_SIZE || pos + PREFIX_SIZE + length > b.capacity())
+                break;
+            if (scratch.length < length)
+                scratch = new byte[Math.max(length, 2 * scratch.length)];
+            final ByteBuffer src = b.duplicate();
+            src.position(pos + PREFIX_SIZE);
+            src.get(scratch, 0, length);
+            crc.reset();
+            crc.update(scratch, 0, length);
+            if ((int) crc.getValue() != b.getInt(pos + 4)) {
+                LOG.warn("Corrupt record in journal segment {} at {}. Ignoring rest of segment.", segment.file, pos);
+                break;
+            }
+            final byte type = scratch[0];
+            final long id = b.getLong(pos + PREFIX_SIZE + 1);
+            if (type == LINE)
+                putLine(id, location(segment.number, pos));
+            else
+                removeLine(id);
+            pos += PREFIX_SIZE + length;
+        }
+        segment.position = pos;
+    }
+
+    private void roll() {
+        final int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        final Segment segment = openSegment(number, new File(dir, String.format("%010d", number) + SUFFIX), true);
+        segments.put(number, segment);
+        head = segment;
+        LOG.debug("Opened journal segment {}", segment.file);
+    }
+
+    private Segment openSegment(int number, File file, boolean create) {
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if (create)
+                raf.setLength(segmentSize);
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            return new Segment(number, file, raf, buffer);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open journal segment " + file, e);
+        }
+    }
+
+    private File[] listSegmentFiles() {
+        final File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files); // names are zero-padded
+        return files;
+    }
+
+    private static int segmentNumber(File file) {
+        final String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private Segment segment(long location) {
+        return segments.get((int) (location >>> 32));
+    }
+
+    private int recordSize(long location) {
+        return PREFIX_SIZE + segment(location).buffer.getInt(offset(location));
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        int position;
+        long liveBytes;
+        boolean dirty;
+
+        Segment(int number, File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.warn("Exception while closing journal segment " + file, e);
+            }
+        }
+
+        void delete() {
+            close();
+            if (!file.delete())
+                LOG.warn("Could not delete journal segment {}", file);
+        }
+    }
+}
@@ -15,6 +15,7 @@ package co.paralleluniverse.galaxy.core;
 
 import co.paralleluniverse.galaxy.Cluster;
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_SYNC;
 import java.beans.ConstructorProperties;
 import java.util.Collections;
 import java.util.Iterator;
@@ -59,6 +60,20 @@ public class BackupNullImpl extends ClusterService implements Backup {
         return (Iterator<BACKUP>) Collections.EMPTY_SET.iterator();
     }
 
+    @Override
+    public Iterator<BACKUP> iterOwned(BACKUP_SYNC since) {
+        return iterOwned();
+    }
+
+    @Override
+    public BACKUP_SYNC getSyncPoint() {
+        return Message.BACKUP_SYNC(0, -1);
+    }
+
+    @Override
+    public void beginReplication() {
+    }
+
     @Override
     public boolean startBackup() {
         return false;
@@ -115,6 +115,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private boolean synchronous = false;
     private final Set<NodeEvent> nodeEvents = new CopyOnWriteArraySet<NodeEvent>();
     private long maxStaleReadMillis = 500;
+    private int ownerHintsSize = 1 << 14;
+    private OwnerHints ownerHints;
     //
     private final IdAllocator idAllocator;
     private final NonBlockingHashMapLong<OwnerClock> ownerClocks;
@@ -178,6 +180,16 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         this.shared = buildSharedCache(maxCapacity);
         this.pendingOps = new NonBlockingHashMapLong<ArrayList<Op>>();
         this.pendingMessages = new NonBlockingHashMapLong<LinkedHashSet<LineMessage>>();
+
+        if (storage instanceof CompactingCacheStorage) {
+            final CompactingCacheStorage compactingStorage = (CompactingCacheStorage) storage;
+            compactingStorage.setRelocator(new CompactingCacheStorage.Relocator() {
+                @Override
+                public void relocate() {
+                    relocateLines(compactingStorage);
+                }
+            });
+        }
     }
 
     private ConcurrentMap<Long, CacheLine> buildSharedCache(long maxCapacity) {
@@ -272,6 +284,16 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return rollbackSupported;
     }
 
+    public void setOwnerHintsSize(int size) {
+        assertDuringInitialization();
+        this.ownerHintsSize = size;
+    }
+
+    @ManagedAttribute
+    public int getOwnerHintsSize() {
+        return ownerHintsSize;
+    }
+
     private Checksum getChecksum() {
         assert compareBeforeWrite;
         return new HashFunctionChecksum(com.google.common.hash.Hashing.murmur3_128()); // new DoubleHasher(); // new MessageDigestChecksum("MD5"); // new MessageDigestChecksum("SHA-1"); // new MessageDigestChecksum("SHA-256"); 
@@ -297,6 +319,53 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         this.freeLineList = reuseLines ? new ConcurrentLinkedDeque<CacheLine>() : null;
         this.freeSharerSetList = reuseSharerSets ? new ConcurrentLinkedDeque<ShortSet>() : null;
         this.broadcastsRoutedToServer = hasServer && ((AbstractComm) comm).isSendToServerInsteadOfMulticast(); // this is a special case that requires special handling b/c of potential consistency problems (see MainMemory)
+        this.ownerHints = ownerHintsSize > 0 ? new OwnerHints(ownerHintsSize) : null;
+
+        if (storage instanceof PersistentCacheStorage)
+            recoverLines((PersistentCacheStorage) storage);
+    }
+
+    @Override
+    protected void shutdown() {
+        super.shutdown();
+        if (storage instanceof PersistentCacheStorage) {
+            try {
+                persistLines((PersistentCacheStorage) storage);
+            } catch (Exception e) {
+                LOG.error("Exception while persisting cache lines", e);
+            }
+        }
+    }
+
+    /**
+     * Puts lines kept by the storage from a previous run back in the cache, invalid, so that they're revalidated by version on first access.
+     */
+    private void recoverLines(PersistentCacheStorage persistentStorage) throws Exception {
+        for (PersistentCacheStorage.StoredLine stored : persistentStorage.recover()) {
+            final CacheLine line = allocateCacheLine();
+            line.id = stored.id;
+            line.version = stored.version;
+            line.data = stored.data;
+            line.set(CacheLine.RESTORED, true);
+            putLine(line.id, line, 0, line.size());
+        }
+    }
+
+    /**
+     * Hands the storage the lines that may be recovered on restart: those we're sharing, and those we own that have been backed up.
+     */
+    private void persistLines(PersistentCacheStorage persistentStorage) throws Exception {
+        final List<PersistentCacheStorage.StoredLine> lines = new ArrayList<PersistentCacheStorage.StoredLine>();
+        for (Collection<CacheLine> ls : Arrays.asList(owned.values(), shared.values())) {
+            for (CacheLine line : ls) {
+                synchronized (line) {
+                    if (line.data != null && line.version > 0 && !line.is(CacheLine.MODIFIED) && !line.is(CacheLine.DELETED)
+                            && (line.getState() != State.I || line.is(CacheLine.RESTORED)))
+                        lines.add(new PersistentCacheStorage.StoredLine(line.id, line.version, line.data));
+                }
+            }
+        }
+        persistentStorage.persist(lines);
     }
 
     void allocatorReady() {
@@ -338,6 +407,24 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return owned.values().iterator();
     }
 
+    /**
+     * Restores a line owned by this node from a local backup journal. Called when the node starts as a master, before it serves any requests.
+     */
+    void recoverLine(long id, long version, ByteBuffer data) {
+        CacheLine line = getLine(id);
+        if (line == null)
+            line = createNewCacheLine(id);
+        synchronized (line) {
+            if (line.version > version)
+                return;
+            setState(line, State.E);
+            setOwner(line, myNodeId());
+            line.version = version;
+            writeData(line, data);
+            line.set(CacheLine.SLAVE, true); // so that giving up ownership is journaled
+        }
+    }
+
     RefAllocator getRefAllocator() {
         return idAllocator.getRefAllocator();
     }
@@ -359,6 +446,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         public static final byte SLAVE = 1 << 2; // true when slave(s) think line is owned by us
         public static final byte DELETED = 1 << 3;
         public static final byte INCOMPLETE = 1 << 4;
+        public static final byte RESTORED = 1 << 5; // data was recovered from storage on restart, and is yet to be revalidated
         private long id;                // 8
         private byte flags;             // 1
         //private short sem;              // 2
@@ -839,6 +927,10 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
                     return;
                 }
                 break;
+            case NOT_FOUND:
+                if (((LineMessage) message).getLine() == -1)
+                    return; // all nodes have acked a messenger broadcast
+                break;
             case BACKUP_PACKETACK:
                 backup.receive(message);
                 return;
@@ -1401,10 +1493,17 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return get;
     }
 
+    /**
+     * The version to put in a GET, so that the owner may omit the data if we already have it.
+     */
+    private static long knownVersion(CacheLine line) {
+        return line.is(CacheLine.RESTORED) ? line.version : 0;
+    }
+
     private boolean transitionToS(CacheLine line, short nodeHint) {
         if (line.state.isLessThan(State.S)) {
             if (setNextState(line, State.S))
-                send(Message.GET(getTarget(line, nodeHint), line.id));
+                send(Message.GET(getTarget(line, nodeHint), line.id, knownVersion(line)));
             return false;
         } else
             return true;
@@ -1413,7 +1512,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     private boolean transitionToO(CacheLine line, short nodeHint) {
         if (line.state.isLessThan(State.O)) {
             if (setNextState(line, State.O))
-                send(Message.GETX(getTarget(line, nodeHint), line.id));
+                send(Message.GETX(getTarget(line, nodeHint), line.id, knownVersion(line)));
             return false;
         } else
             return true;
@@ -1573,7 +1672,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 
         // we make a copy of the message because it may have been sent and sits in some comm queues,
         // so changing the target node might cause trouble.
-        final Message.MSG msg1 = Message.MSG(line.getOwner(), msg.getLine(), msg.isMessenger(), msg.getData());
+        final Message.MSG msg1 = Message.MSG(getTarget(line, (short) -1), msg.getLine(), msg.isMessenger(), msg.getData());
         send((Message) msg1);
         // We have to remember the message ID in order to process MSGACKs later
         assert msg1.getMessageId() > 0;
@@ -1697,10 +1796,12 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return obj != null ? (Short) obj : -1;
     }
 
-    private static short getTarget(CacheLine line, short nodeHint) {
+    private short getTarget(CacheLine line, short nodeHint) {
         short target = line.getOwner();
         if (target < 0)
             target = nodeHint;
+        if (target < 0 && ownerHints != null)
+            target = ownerHints.get(line.getId());
         return target;
     }
 
@@ -1729,7 +1830,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         change |= setState(line, State.O) ? LINE_STATE_CHANGED : 0;
         line.sharers.add(msg.getNode());
 
-        send(Message.PUT(msg, line.id, line.version, readOnly(line.data)));
+        send(Message.PUT(msg, line.id, line.version, dataFor(msg, line)));
         line.rewind();
         return change;
     }
@@ -1755,7 +1856,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         change |= setOwner(line, msg.getNode()) ? LINE_OWNER_CHANGED : 0;
 
         final List<Message.MSG> pendingMSGs = getAndClearPendingMSGs(line);
-        send(Message.PUTX(msg, line.id, sharers, pendingMSGs.size(), line.version, readOnly(line.data)));
+        send(Message.PUTX(msg, line.id, sharers, pendingMSGs.size(), line.version, dataFor(msg, line)));
         line.rewind();
         for (Message.MSG m : pendingMSGs) {
             m = toOutgoing(m, msg.getNode());
@@ -1770,6 +1871,19 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return change;
     }
 
+    private static ByteBuffer dataFor(Message.GET msg, CacheLine line) {
+        if (msg.getVersion() != 0 && msg.getVersion() == line.version)
+            return null; // the requester already has this version
+        return readOnly(line.data);
+    }
+
+    /**
+     * Whether a PUT or PUTX carries no data because this node already has it (see {@link #knownVersion(CacheLine) knownVersion}).
+     */
+    private static boolean isRevalidated(Message.PUT msg, CacheLine line) {
+        return line.is(CacheLine.RESTORED) && msg.getVersion() == line.version && msg.getData() == null;
+    }
+
     private static <M extends Message> M toOutgoing(M m, short node) {
         m.setOutgoing();
         m.setMessageId(-1);
@@ -1788,8 +1902,10 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         int change = LINE_NO_CHANGE;
         change |= setState(line, State.S) ? LINE_STATE_CHANGED : 0;
         change |= setOwner(line, msg.getNode()) ? LINE_OWNER_CHANGED : 0;
+        if (!isRevalidated(msg, line))
+            writeData(line, msg.getData());
+        line.set(CacheLine.RESTORED, false);
         line.version = msg.getVersion();
-        writeData(line, msg.getData());
 
         fireLineReceived(line);
         return change;
@@ -1819,8 +1935,10 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         else
             setOwner(line, msg.getNode()); // We set owner to the PREVIOUS owner - used// change |= setOwner(line, cluster.getMyNodeId()) ? LINE_OWNER_CHANGED : 0;
         line.sharers.addAll(sharers);
+        if (!isRevalidated(msg, line))
+            writeData(line, (Object) msg.getData());
+        line.set(CacheLine.RESTORED, false);
         line.version = msg.getVersion();
-        writeData(line, (Object) msg.getData());
         line.parts = (short) msg.getMessages();
 
         setOwnerClock(line, msg);
@@ -2198,6 +2316,8 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         LOG.info("Node {} removed.", node);
         final short newOwner = hasServer ? Comm.SERVER : (short) -1;
         final NodeEvent event = new NodeEvent(node, newOwner);
+        if (ownerHints != null)
+            ownerHints.removeOwner(node);
         inNodeEventHandler.set(Boolean.TRUE);
         nodeEvents.add(event);
         try {
@@ -2365,6 +2485,12 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             if (LOG.isDebugEnabled())
                 LOG.debug("Set owner {} {} -> {}", hex(line.getId()), line.owner, owner);
             line.owner = owner;
+            if (ownerHints != null) {
+                if (owner > 0 && owner != myNodeId())
+                    ownerHints.put(line.getId(), owner); // remembered after the line is gone
+                else
+                    ownerHints.remove(line.getId()); // e.g. a CHNGD_OWNR telling us the last hint was wrong
+            }
             return true;
         } else
             return false;
@@ -2507,7 +2633,7 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
 
         @Override
         public ByteBuffer getForWrite(int size) {
-            if (size >= 0 && line.data.capacity() < size)
+            if (size >= 0 && (line.data == null || line.data.capacity() < size))
                 extendLineData(size);
             line.version++;
             line.set(CacheLine.MODIFIED, true);
@@ -2519,13 +2645,44 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             if (LOG.isDebugEnabled())
                 LOG.debug("Extend storage to {} bytes for line {}", size, hex(line.getId()));
             ByteBuffer allocated = allocateStorage(size);
-            allocated.put((ByteBuffer) line.data.rewind());
+            if (line.data != null) {
+                allocated.put((ByteBuffer) line.data.rewind());
+                deallocateStorage(line.id, line.data);
+            }
             allocated.flip();
-            deallocateStorage(line.id, line.data);
             line.data = allocated;
         }
     }
 
+    private void relocateLines(CompactingCacheStorage compactingStorage) {
+        int relocated = relocateLines(compactingStorage, owned.values()) + relocateLines(compactingStorage, shared.values());
+        if (LOG.isDebugEnabled())
+            LOG.debug("Relocated the storage of {} lines", relocated);
+    }
+
+    private int relocateLines(CompactingCacheStorage compactingStorage, Collection<CacheLine> lines) {
+        int relocated = 0;
+        for (CacheLine line : lines) {
+            synchronized (line) {
+                if (line.data == null || !compactingStorage.shouldRelocate(line.data))
+                    continue;
+                final ByteBuffer data = line.data;
+                final int position = data.position();
+                final int limit = data.limit();
+                final ByteBuffer allocated = allocateStorage(data.capacity());
+                final ByteBuffer source = data.duplicate();
+                source.clear();
+                allocated.put(source);
+                allocated.limit(limit);
+                allocated.position(position);
+                deallocateStorage(line.id, data);
+                line.data = allocated;
+                relocated++;
+            }
+        }
+        return relocated;
+    }
+
     private void allocateLineData(CacheLine line, int size) {
         final int oldSize = line.size();
         if (line.data != null) {
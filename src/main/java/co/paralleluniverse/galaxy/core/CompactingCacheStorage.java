@@ -0,0 +1,40 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ * 
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *  
+ *   or (per the licensee's choosing)
+ *  
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CacheStorage} that can free memory by having its owner move live buffers elsewhere.
+ *
+ * @author pron
+ */
+public interface CompactingCacheStorage extends CacheStorage {
+    /**
+     * Sets the object that moves live buffers when the storage asks it to.
+     */
+    void setRelocator(Relocator relocator);
+
+    /**
+     * Tells whether the given buffer should be replaced by a newly allocated one (and then deallocated).
+     */
+    boolean shouldRelocate(ByteBuffer buffer);
+
+    interface Relocator {
+        /**
+         * Replaces every live buffer for which {@link #shouldRelocate(ByteBuffer) shouldRelocate} returns {@code true}.
+         */
+        void relocate();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.cluster.DistributedTree;
+import co.paralleluniverse.io.serialization.kryo.ClassRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ClassRegistry} kept in the cluster's {@link DistributedTree}, so that all nodes agree on class ids.
+ * <p>
+ * The tree node {@code <root>/ids/<id>} contains the name of the class assigned id {@code <id>}, and {@code <root>/names/<class>} contains
+ * the class's id. Ids are handed out in order; to claim one, a node creates an ephemeral ordered child named after the class under the id's
+ * tree node, and the id goes to the class whose claim is first. Assignments never change, so they're cached locally once seen.
+ * <p>
+ * As {@link #getId(String) getId} is called during serialization, it never waits for the tree: the registry learns of existing
+ * assignments when it's created, and of new ones as they're made, through a tree listener, and ids are assigned on a background thread.
+ *
+ * @author pron
+ */
+class DistributedTreeClassRegistry implements ClassRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(DistributedTreeClassRegistry.class);
+    private final DistributedTree tree;
+    private final String ids;
+    private final String names;
+    private final ConcurrentMap<String, Integer> classIds = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<Integer, String> classNames = new ConcurrentHashMap<Integer, String>();
+    private final Set<String> assigning = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService assigner = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("galaxy-classRegistry").setDaemon(true).build());
+    private int nextId;
+
+    public DistributedTreeClassRegistry(DistributedTree tree, String root) {
+        this.tree = tree;
+        this.ids = root + "/ids";
+        this.names = root + "/names";
+
+        tree.create(ids, false);
+        tree.create(names, false);
+        for (String child : tree.getChildren(ids)) {
+            try {
+                nextId = Math.max(nextId, Integer.parseInt(child) + 1);
+            } catch (NumberFormatException e) {
+            }
+        }
+        tree.addListener(names, new DistributedTree.ListenerAdapter() {
+            @Override
+            public void nodeChildAdded(String node, String className) {
+                learn(className);
+            }
+
+            @Override
+            public void nodeChildUpdated(String node, String className) {
+                learn(className);
+            }
+        });
+    }
+
+    /**
+     * Returns the id of the given class if it's known, and otherwise returns {@code -1} and assigns it one in the background.
+     */
+    @Override
+    public int getId(final String className) {
+        final Integer id = classIds.get(className);
+        if (id != null)
+            return id;
+
+        if (assigning.add(className)) {
+            assigner.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (learn(className) < 0)
+                            assignId(className);
+                    } catch (Exception e) {
+                        LOG.warn("Could not assign a class id to " + className, e);
+                    } finally {
+                        assigning.remove(className);
+                    }
+                }
+            });
+        }
+        return -1;
+    }
+
+    /**
+     * Blocks until all ids requested so far have been assigned.
+     */
+    void awaitAssignments() throws InterruptedException {
+        try {
+            assigner.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    void close() {
+        assigner.shutdownNow();
+    }
+
+    /**
+     * Reads the given class's id from the tree, if it has been assigned one.
+     */
+    private int learn(String className) {
+        final String node = names + '/' + className;
+        final byte[] data = tree.exists(node) ? tree.get(node) : null;
+        if (data == null || data.length == 0)
+            return -1;
+        final int id = Integer.parseInt(new String(data, Charsets.UTF_8));
+        cache(id, className);
+        return id;
+    }
+
+    /**
+     * Returns the name of the class with the given id. Ids are normally known by the time they're read, but if the assignment has not
+     * yet reached this node's listener, it is read from the tree.
+     */
+    @Override
+    public String getClassName(int id) {
+        String className = classNames.get(id);
+        if (className != null)
+            return className;
+
+        final String node = ids + '/' + id;
+        if (!tree.exists(node))
+            return null;
+        final byte[] data = tree.get(node);
+        if (data == null || data.length == 0)
+            return null;
+        className = new String(data, Charsets.UTF_8);
+        cache(id, className);
+        return className;
+    }
+
+    private synchronized int assignId(String className) {
+        final Integer assigned = classIds.get(className);
+        if (assigned != null)
+            return assigned;
+
+        for (int id = nextId;; id++) {
+            final String node = ids + '/' + id;
+            final String claim = node + '/' + className;
+
+            final String owner = getClassName(id);
+            if (owner != null) {
+                nextId = id + 1;
+                if (owner.equals(className))
+                    return id;
+                continue;
+            }
+
+            tree.create(node, false);
+            tree.createEphemeralOrdered(claim);
+            tree.flush();
+            final List<String> claims = tree.getChildren(node);
+            if (!claims.isEmpty() && claims.get(0).equals(className) && getClassName(id) == null) {
+                // our claim is left in place (it goes away with this node) so that no later claim can come first
+                tree.set(node, className.getBytes(Charsets.UTF_8));
+                tree.create(names + '/' + className, false);
+                tree.set(names + '/' + className, Integer.toString(id).getBytes(Charsets.UTF_8));
+                tree.flush();
+                nextId = id + 1;
+                cache(id, className);
+                LOG.debug("Assigned class id {} to {}", id, className);
+                return id;
+            }
+            tree.delete(claim);
+            id--; // look again at who got it
+        }
+    }
+
+    private void cache(int id, String className) {
+        classIds.putIfAbsent(className, id);
+        classNames.putIfAbsent(id, className);
+    }
+}
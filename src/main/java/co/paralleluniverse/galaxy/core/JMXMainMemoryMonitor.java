@@ -29,6 +29,8 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
     private final Counter ownerWritesCounter = new Counter();
     private final Counter ownersServedCounter = new Counter();
     private final Counter allocationCounter = new Counter();
+    private final Counter readCacheHitsCounter = new Counter();
+    private final Counter readCacheMissesCounter = new Counter();
     
     private long writes;
     private long transactions;
@@ -36,6 +38,8 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
     private long ownerWrites;
     private long ownersServed;
     private long allocations;
+    private long readCacheHits;
+    private long readCacheMisses;
 
     @ConstructorProperties({"name"})
     public JMXMainMemoryMonitor(String name) {
@@ -50,6 +54,8 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
         ownerWrites = ownerWritesCounter.get();
         ownersServed = ownersServedCounter.get();
         allocations = allocationCounter.get();
+        readCacheHits = readCacheHitsCounter.get();
+        readCacheMisses = readCacheMissesCounter.get();
         resetCounters();
     }
 
@@ -61,6 +67,8 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
         ownerWritesCounter.reset();
         ownersServedCounter.reset();
         allocationCounter.reset();
+        readCacheHitsCounter.reset();
+        readCacheMissesCounter.reset();
     }
 
     @Override
@@ -88,6 +96,16 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
     public void addAllocation(int count) {
         allocationCounter.add(count);
     }
+
+    @Override
+    public void addReadCacheHit() {
+        readCacheHitsCounter.inc();
+    }
+
+    @Override
+    public void addReadCacheMiss() {
+        readCacheMissesCounter.inc();
+    }
     
     @Override
     public int getObjectsServed() {
@@ -118,4 +136,14 @@ class JMXMainMemoryMonitor extends PeriodicMonitor implements MainMemoryMonitor,
     public int getAllocations() {
         return (int)allocations;
     }
+
+    @Override
+    public int getReadCacheHits() {
+        return (int)readCacheHits;
+    }
+
+    @Override
+    public int getReadCacheMisses() {
+        return (int)readCacheMisses;
+    }
 }
@@ -15,6 +15,7 @@ package co.paralleluniverse.galaxy.core;
 
 import co.paralleluniverse.galaxy.monitoring.Counter;
 import co.paralleluniverse.galaxy.monitoring.OffHeapLocalStorageMXBean;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
@@ -26,9 +27,11 @@ import java.util.concurrent.atomic.AtomicLong;
 class JMXOffHeapLocalStorageMonitor extends JMXLocalStorageMonitor implements OffHeapLocalStorageMonitor, OffHeapLocalStorageMXBean {
     private final Integer[] bins;
     private final BinCounters[] binCounters;
+    private final WeakReference<OffHeapLocalStorage> storage;
 
-    public JMXOffHeapLocalStorageMonitor(String name, CacheStorage storage, int[] bins) {
+    public JMXOffHeapLocalStorageMonitor(String name, OffHeapLocalStorage storage, int[] bins) {
         super(OffHeapLocalStorageMXBean.class, name, storage);
+        this.storage = new WeakReference<OffHeapLocalStorage>(storage);
         this.bins = new Integer[bins.length];
         this.binCounters = new BinCounters[bins.length];
         for (int i = 0; i < bins.length; i++) {
@@ -54,13 +57,15 @@ class JMXOffHeapLocalStorageMonitor extends JMXLocalStorageMonitor implements Of
     @Override
     public void allocated(int bin, int size) {
         super.allocated(size);
-        throw new UnsupportedOperationException("Not supported yet.");
+        binCounters[bin].allocatedCounter.inc();
+        binCounters[bin].totalSize.addAndGet(size);
     }
 
     @Override
     public void deallocated(int bin, int size) {
         super.deallocated(size);
-        throw new UnsupportedOperationException("Not supported yet.");
+        binCounters[bin].deallocatedCounter.inc();
+        binCounters[bin].totalSize.addAndGet(-size);
     }
 
     @Override
@@ -87,6 +92,15 @@ class JMXOffHeapLocalStorageMonitor extends JMXLocalStorageMonitor implements Of
         return table;
     }
 
+    @Override
+    public Map<Integer, Double> getBinsFragmentation() {
+        final OffHeapLocalStorage _storage = storage.get();
+        Map<Integer, Double> table = new HashMap<Integer, Double>(bins.length);
+        for (int i = 0; i < bins.length; i++)
+            table.put(bins[i], _storage != null ? _storage.getFragmentation(i) : 0.0);
+        return table;
+    }
+
     private static class BinCounters {
         public final AtomicLong totalSize = new AtomicLong();
         public final Counter allocatedCounter = new Counter();
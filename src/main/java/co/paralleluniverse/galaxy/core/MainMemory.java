@@ -23,15 +23,43 @@ import static co.paralleluniverse.galaxy.core.Cache.isReserved;
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
+import co.paralleluniverse.galaxy.server.AsyncMainMemoryDB;
+import co.paralleluniverse.galaxy.server.AsyncMainMemoryDBAdapter;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortList;
 import java.beans.ConstructorProperties;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
  *
@@ -45,6 +73,25 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     private final MainMemoryDB store;
     private final MainMemoryMonitor monitor;
     private final AtomicLong refCounter = new AtomicLong();
+    private int workers;
+    private ExecutorService[] partitions; // messages concerning a line are always processed by the same partition, so per-line order is kept
+    private long groupCommitWindowMicros;
+    private int maxGroupCommitSize = 1024;
+    private BackupGroup[] groups; // one per partition
+    private ScheduledExecutorService groupCommitTimer;
+    private boolean cacheOwners;
+    private int ownerWriteBehindPeriodMillis = 100;
+    private int ownerCacheSize = 1000000;
+    private OwnerDirectory owners;
+    private ScheduledExecutorService ownerWriter;
+    private boolean lazyOwnerRevocation;
+    private ExecutorService revoker;
+    private long readCacheSize;
+    private ConcurrentMap<Long, MainMemoryEntry> readCache; // recently read server-owned lines
+    private int asyncStoreThreads;
+    private AsyncMainMemoryDB asyncStore;
+    private final ConcurrentMap<Long, ListenableFuture<Void>> committing = new ConcurrentHashMap<Long, ListenableFuture<Void>>(); // lines with backups being committed asynchronously
+    private final ConcurrentMap<Short, Future<?>> revoked = new ConcurrentHashMap<Short, Future<?>>(); // dead nodes that may still own lines in the store
 
     @ConstructorProperties({"name", "cluster", "store", "comm", "monitoringType"})
     public MainMemory(String name, Cluster cluster, MainMemoryDB store, Comm comm, MonitoringType monitoringType) {
@@ -62,6 +109,181 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         comm.setReceiver(this);
     }
 
+    /**
+     * Sets the number of threads processing messages. Lines are partitioned among the threads by id.
+     * If 0 (the default), messages are processed on the thread that receives them.
+     * When greater than 1, the store must support concurrent access.
+     */
+    public void setWorkers(int workers) {
+        assertDuringInitialization();
+        this.workers = workers;
+    }
+
+    @ManagedAttribute
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Sets the time backup packets may wait so that they can be committed, together with other packets, in a single transaction.
+     * If 0 (the default), each packet is committed on its own.
+     */
+    public void setGroupCommitWindow(long groupCommitWindowMicros) {
+        assertDuringInitialization();
+        this.groupCommitWindowMicros = groupCommitWindowMicros;
+    }
+
+    @ManagedAttribute
+    public long getGroupCommitWindow() {
+        return groupCommitWindowMicros;
+    }
+
+    /**
+     * Sets the number of backed-up lines that causes a group of backup packets to be committed without waiting for the window to close.
+     */
+    public void setMaxGroupCommitSize(int maxGroupCommitSize) {
+        assertDuringInitialization();
+        this.maxGroupCommitSize = maxGroupCommitSize;
+    }
+
+    @ManagedAttribute
+    public int getMaxGroupCommitSize() {
+        return maxGroupCommitSize;
+    }
+
+    /**
+     * Sets whether line ownership is kept in memory, and written to the store asynchronously, rather than read and CASed in the store.
+     */
+    public void setCacheOwners(boolean cacheOwners) {
+        assertDuringInitialization();
+        this.cacheOwners = cacheOwners;
+    }
+
+    @ManagedAttribute
+    public boolean isCacheOwners() {
+        return cacheOwners;
+    }
+
+    /**
+     * Sets the interval at which cached ownership changes are written to the store.
+     */
+    public void setOwnerWriteBehindPeriod(int ownerWriteBehindPeriodMillis) {
+        assertDuringInitialization();
+        this.ownerWriteBehindPeriodMillis = ownerWriteBehindPeriodMillis;
+    }
+
+    @ManagedAttribute
+    public int getOwnerWriteBehindPeriod() {
+        return ownerWriteBehindPeriodMillis;
+    }
+
+    /**
+     * Sets the maximum number of line owners kept in memory when owners are cached. Beyond it, the least recently used owners that have
+     * been written to the store are dropped.
+     */
+    public void setOwnerCacheSize(int ownerCacheSize) {
+        assertDuringInitialization();
+        this.ownerCacheSize = ownerCacheSize;
+    }
+
+    @ManagedAttribute
+    public int getOwnerCacheSize() {
+        return ownerCacheSize;
+    }
+
+    /**
+     * Sets whether the lines owned by a node that has left the cluster are returned to the server in the background.
+     * Until they are, a line owned by a dead node is returned to the server when it is accessed.
+     */
+    public void setLazyOwnerRevocation(boolean lazyOwnerRevocation) {
+        assertDuringInitialization();
+        this.lazyOwnerRevocation = lazyOwnerRevocation;
+    }
+
+    @ManagedAttribute
+    public boolean isLazyOwnerRevocation() {
+        return lazyOwnerRevocation;
+    }
+
+    /**
+     * Sets the maximum total size, in bytes, of the data of recently read lines kept in memory so that lines served by the server
+     * repeatedly are not read from the store each time. If 0 (the default), lines are always read from the store.
+     */
+    public void setReadCacheSize(long readCacheSize) {
+        assertDuringInitialization();
+        this.readCacheSize = readCacheSize;
+    }
+
+    @ManagedAttribute
+    public long getReadCacheSize() {
+        return readCacheSize;
+    }
+
+    /**
+     * Sets the number of threads on which store reads and commits are performed, so that message processing does not wait for them,
+     * and many of them may be in flight at once. Replies that depend on them are sent when they complete.
+     * If 0 (the default), store operations are performed on the processing thread, unless the store implements
+     * {@link AsyncMainMemoryDB}, in which case it is always used asynchronously.
+     */
+    public void setAsyncStoreThreads(int asyncStoreThreads) {
+        assertDuringInitialization();
+        this.asyncStoreThreads = asyncStoreThreads;
+    }
+
+    @ManagedAttribute
+    public int getAsyncStoreThreads() {
+        return asyncStoreThreads;
+    }
+
+    @ManagedAttribute
+    public int getNumRevokedNodes() {
+        return revoked.size();
+    }
+
+    @Override
+    protected void init() throws Exception {
+        if (workers > 0) {
+            partitions = new ExecutorService[workers];
+            for (int i = 0; i < workers; i++)
+                partitions[i] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat(getName() + "-" + i).setDaemon(true).build());
+        }
+        if (groupCommitWindowMicros > 0) {
+            groupCommitTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(getName() + "-groupCommit").setDaemon(true).build());
+            groups = new BackupGroup[Math.max(workers, 1)];
+            for (int i = 0; i < groups.length; i++)
+                groups[i] = new BackupGroup(i);
+        }
+        if (cacheOwners) {
+            owners = new OwnerDirectory(store, ownerCacheSize);
+            ownerWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(getName() + "-ownerWriter").setDaemon(true).build());
+            ownerWriter.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        owners.flush();
+                    } catch (Exception e) {
+                        LOG.error("Exception while writing owners to store.", e);
+                    }
+                }
+            }, ownerWriteBehindPeriodMillis, ownerWriteBehindPeriodMillis, TimeUnit.MILLISECONDS);
+        }
+        if (readCacheSize > 0) {
+            readCache = new ConcurrentLinkedHashMap.Builder<Long, MainMemoryEntry>().maximumWeightedCapacity(readCacheSize).weigher(new Weigher<MainMemoryEntry>() {
+                @Override
+                public int weightOf(MainMemoryEntry entry) {
+                    return 1 + (entry.data != null ? entry.data.length : 0);
+                }
+            }).build();
+        }
+        if (store instanceof AsyncMainMemoryDB)
+            asyncStore = (AsyncMainMemoryDB) store;
+        else if (asyncStoreThreads > 0)
+            asyncStore = new AsyncMainMemoryDBAdapter(getName() + "-store", store, asyncStoreThreads);
+        if (lazyOwnerRevocation)
+            revoker = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat(getName() + "-revoker").setDaemon(true).build());
+        super.init();
+    }
+
     @Override
     protected void start(boolean master) {
         if (master) {
@@ -82,6 +304,35 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
 
     @Override
     protected void shutdown() {
+        if (partitions != null) {
+            for (ExecutorService partition : partitions)
+                partition.shutdown();
+            try {
+                for (ExecutorService partition : partitions)
+                    partition.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (groups != null) {
+            groupCommitTimer.shutdownNow();
+            for (BackupGroup group : groups)
+                group.commit();
+        }
+        if (asyncStore != null)
+            asyncStore.close();
+        if (revoker != null) {
+            revoker.shutdown();
+            try {
+                revoker.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (owners != null) {
+            ownerWriter.shutdownNow();
+            owners.flush();
+        }
         store.close();
     }
 
@@ -99,16 +350,41 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     }
 
     @Override
-    public void receive(Message message) {
+    public void receive(final Message message) {
+        if (partitions != null && (message instanceof LineMessage || message.getType() == Message.Type.ALLOC_REF)) {
+            final int partition = message instanceof LineMessage ? partitionIndex(((LineMessage) message).getLine()) : partitionIndex(message.getNode());
+            partitions[partition].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process(message);
+                    } catch (Exception e) {
+                        LOG.error("Exception while processing " + message, e);
+                    }
+                }
+            });
+        } else
+            process(message);
+    }
+
+    private void process(Message message) {
 //        if (!getCluster().isMaster()) {
 //            LOG.debug("Ignoring message {} 'cause I'm just a slave.");
 //            return;
 //        }
         LOG.debug("Received: {}", message);
+        if (!revoked.isEmpty())
+            awaitRevocation(message.getNode()); // a node that has rejoined must not be taken for the owner of its former lines
+        if (groups != null && message instanceof LineMessage) {
+            final long id = ((LineMessage) message).getLine();
+            groups[partitionIndex(id)].commitIfContains(id); // uncommitted backups of the line must not be overtaken
+        }
+        if (!committing.isEmpty() && message instanceof LineMessage)
+            awaitCommit(((LineMessage) message).getLine());
         switch (message.getType()) {
             case GET:
             case GETX:
-                handleMessageGet((Message.GET) message);
+                handleMessageGet((Message.GET) message, null);
                 break;
             case INV:
                 handleMessageInvalidate((Message.INV) message);
@@ -123,7 +399,7 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
                 handleMessageBackup((BACKUP_PACKET) message);
                 break;
             case INVOKE:
-                handleMessageGet((LineMessage) message); // Server cant invoke, return putx, chnged_owner or notFound.
+                handleMessageGet((LineMessage) message, null); // Server cant invoke, return putx, chnged_owner or notFound.
                 break;
             case ALLOC_REF:
                 handleMessageAllocRef((Message.ALLOC_REF) message);
@@ -138,26 +414,71 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         }
     }
 
-    private boolean handleMessageGet(LineMessage msg) {
+    /**
+     * Omits the data if the requester says it already has this version.
+     */
+    private static ByteBuffer dataFor(LineMessage msg, MainMemoryEntry entry) {
+        if (msg instanceof Message.GET) {
+            final long version = ((Message.GET) msg).getVersion();
+            if (version != 0 && version == entry.version)
+                return null;
+        }
+        return ByteBuffer.wrap(entry.data);
+    }
+
+    /**
+     * @param followUp a message to send right after the PUTX, if ownership is transferred.
+     */
+    private boolean handleMessageGet(final LineMessage msg, final Message followUp) {
         final long id = msg.getLine();
 
         for (;;) {
             short owner;
-            if (isReserved(id) && store.casOwner(id, (short) -1, msg.getNode()) == msg.getNode()) { // if nonexistent root - create it
+            if (isReserved(id) && casOwner(id, (short) -1, msg.getNode()) == msg.getNode()) { // if nonexistent root - create it
                 if (LOG.isDebugEnabled())
                     LOG.debug("Owner of reserved line {} is now node {} (CAS)", hex(id), msg.getNode());
                 monitor.addOwnerWrite();
                 monitor.addObjectServed();
+                invalidate(id);
                 store.write(id, msg.getNode(), 1, new byte[0], null);
                 send(Message.PUTX(msg, id, new short[0], 0, 1, null));
+                if (followUp != null)
+                    send(followUp);
                 return true;
-            } else if ((owner = store.casOwner(id, SERVER, msg.getNode())) == msg.getNode()) { // if owner is server, then transfer ownership
-                MainMemoryEntry entry = store.read(id);
+            } else if ((owner = casOwner(id, SERVER, msg.getNode())) == msg.getNode()) { // if owner is server, then transfer ownership
                 if (LOG.isDebugEnabled())
                     LOG.debug("Owner of line {} is now node {} (previously owned by server)", hex(id), msg.getNode());
                 monitor.addOwnerWrite();
                 monitor.addObjectServed();
-                send(Message.PUTX(msg, id, new short[0], 0, entry.version, ByteBuffer.wrap(entry.data)));
+                final MainMemoryEntry cached = getCached(id);
+                if (cached != null) {
+                    send(Message.PUTX(msg, id, new short[0], 0, cached.version, dataFor(msg, cached)));
+                    if (followUp != null)
+                        send(followUp);
+                } else if (asyncStore == null) {
+                    final MainMemoryEntry entry = store.read(id);
+                    cache(id, entry);
+                    send(Message.PUTX(msg, id, new short[0], 0, entry.version, dataFor(msg, entry)));
+                    if (followUp != null)
+                        send(followUp);
+                } else {
+                    Futures.addCallback(asyncStore.read(id), new FutureCallback<MainMemoryEntry>() {
+                        @Override
+                        public void onSuccess(MainMemoryEntry entry) {
+                            cache(id, entry); // before the PUTX, so the new owner's backups invalidate it
+                            send(Message.PUTX(msg, id, new short[0], 0, entry.version, dataFor(msg, entry)));
+                            if (followUp != null)
+                                send(followUp);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            LOG.error("Exception while reading line " + hex(id) + " for " + msg + ". Replying NOT_FOUND.", t);
+                            doCasOwner(id, msg.getNode(), SERVER); // the requester never got the line
+                            send(Message.NOT_FOUND(msg));
+                        }
+                    });
+                }
                 return true;
             }
             if (owner == -1 && !isReserved(id))
@@ -189,7 +510,7 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         // then node C gets the line from the server, and then node B INVs the server, we must INV B (in this case, B will wait for our response. See Cache.transitionToE())
         // so, we check to see where A got the line from (previous owner). Since it's B but we already have C as the owner, we INV instead of INVACK.
         short currentOwner;
-        if ((currentOwner = store.casOwner(id, previousOwner, owner)) == owner) {
+        if ((currentOwner = casOwner(id, previousOwner, owner)) == owner) {
             if (LOG.isDebugEnabled())
                 LOG.debug("Got INV: Owner of line {} is now node {}", hex(id), msg.getNode());
             monitor.addOwnerWrite();
@@ -208,6 +529,9 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         if (LOG.isDebugEnabled())
             LOG.debug("Line {} deleted.", hex(id));
 
+        if (owners != null)
+            owners.remove(id);
+        invalidate(id);
         final Object txn = store.beginTransaction();
         try {
             store.delete(id, txn);
@@ -223,25 +547,194 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     private void handleMessageMsg(Message.MSG msg) {
         final long id = msg.getLine();
 
-        if (handleMessageGet(msg))
-            send(Message.MSG(msg.getNode(), id, msg.isMessenger(), msg.getData())); // return to sender, immediately following a PUTX
+        handleMessageGet(msg, Message.MSG(msg.getNode(), id, msg.isMessenger(), msg.getData())); // return to sender, immediately following a PUTX
     }
 
-    private void handleMessageBackup(BACKUP_PACKET msg) {
-        final Object txn = store.beginTransaction();
-        try {
-            monitor.addTransaction(msg.getBackups().size());
-            for (BACKUP backup : msg.getBackups()) {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("Backing up version {} of line {} data: {}", new Object[]{backup.getVersion(), hex(backup.getLine()), backup.getData() != null ? "(" + backup.getData().remaining() + " bytes)" : "null"});
-                store.write(backup.getLine(), msg.getNode(), backup.getVersion(), Persistables.toByteArray(backup.getData()), txn);
+    private void handleMessageBackup(final BACKUP_PACKET msg) {
+        monitor.addTransaction(msg.getBackups().size());
+        if (partitions == null) {
+            if (groups != null) {
+                groups[0].add(msg.getNode(), msg.getBackups(), new Runnable() {
+                    @Override
+                    public void run() {
+                        send(Message.BACKUP_PACKETACK(msg));
+                    }
+                });
+                return;
             }
-            store.commit(txn);
+            commitBackups(msg.getBackups(), null, msg.getNode(), Collections.<Runnable>singletonList(new Runnable() {
+                @Override
+                public void run() {
+                    send(Message.BACKUP_PACKETACK(msg));
+                }
+            }));
+            return;
+        }
+
+        // each partition commits its share of the packet, and the last one to finish acks
+        final List<List<BACKUP>> parts = new ArrayList<List<BACKUP>>(partitions.length);
+        for (int i = 0; i < partitions.length; i++)
+            parts.add(null);
+        int count = 0;
+        for (BACKUP backup : msg.getBackups()) {
+            final int p = partitionIndex(backup.getLine());
+            if (parts.get(p) == null) {
+                parts.set(p, new ArrayList<BACKUP>());
+                count++;
+            }
+            parts.get(p).add(backup);
+        }
+        if (count == 0) {
             send(Message.BACKUP_PACKETACK(msg));
-        } catch (Exception e) {
-            LOG.error("Exception during DB operation. Aborting transaction.", e);
-            store.abort(txn);
-            throw Throwables.propagate(e);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final Runnable committed = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() == 0)
+                    send(Message.BACKUP_PACKETACK(msg));
+            }
+        };
+        for (int i = 0; i < partitions.length; i++) {
+            final List<BACKUP> part = parts.get(i);
+            if (part == null)
+                continue;
+            final int partition = i;
+            partitions[i].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (groups != null)
+                            groups[partition].add(msg.getNode(), part, committed);
+                        else
+                            commitBackups(part, null, msg.getNode(), Collections.singletonList(committed));
+                    } catch (Exception e) {
+                        LOG.error("Exception while processing " + msg + ". Not acking.", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes backups to the store in a single transaction, and runs the given callbacks once it has committed.
+     *
+     * @param owners the owner of each backup, or {@code null} if they're all owned by {@code node}.
+     */
+    private void commitBackups(List<BACKUP> backups, ShortList owners, short node, final List<Runnable> onCommit) {
+        if (asyncStore == null) {
+            final Object txn = store.beginTransaction();
+            try {
+                for (int i = 0; i < backups.size(); i++) {
+                    invalidate(backups.get(i).getLine());
+                    store.write(backups.get(i).getLine(), owners != null ? owners.getShort(i) : node, backups.get(i).getVersion(), toByteArray(backups.get(i)), txn);
+                }
+                store.commit(txn);
+            } catch (Exception e) {
+                LOG.error("Exception during DB operation. Aborting transaction.", e);
+                store.abort(txn);
+                throw Throwables.propagate(e);
+            }
+            for (Runnable callback : onCommit)
+                callback.run();
+            return;
+        }
+
+        final Object txn = asyncStore.beginTransaction();
+        final long[] lines = new long[backups.size()];
+        final List<ListenableFuture<Void>> previous = new ArrayList<ListenableFuture<Void>>();
+        for (int i = 0; i < backups.size(); i++) {
+            lines[i] = backups.get(i).getLine();
+            invalidate(lines[i]);
+            asyncStore.write(lines[i], owners != null ? owners.getShort(i) : node, backups.get(i).getVersion(), toByteArray(backups.get(i)), txn);
+            final ListenableFuture<Void> pending = committing.get(lines[i]);
+            if (pending != null)
+                previous.add(pending);
+        }
+        // commits may run concurrently, so an older version of a line must reach the store before this one does
+        final ListenableFuture<Void> commit = previous.isEmpty() ? asyncStore.commit(txn)
+                : Futures.transform(Futures.successfulAsList(previous), new AsyncFunction<List<Void>, Void>() {
+                    @Override
+                    public ListenableFuture<Void> apply(List<Void> input) {
+                        return asyncStore.commit(txn);
+                    }
+                });
+        for (long line : lines)
+            committing.put(line, commit);
+        Futures.addCallback(commit, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                committed();
+                for (Runnable callback : onCommit)
+                    callback.run();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                committed();
+                LOG.error("Exception while committing backups. Not acking.", t);
+            }
+
+            private void committed() {
+                for (long line : lines)
+                    committing.remove(line, commit);
+            }
+        });
+    }
+
+    private MainMemoryEntry getCached(long id) {
+        if (readCache == null)
+            return null;
+        final MainMemoryEntry entry = readCache.get(id);
+        if (entry != null)
+            monitor.addReadCacheHit();
+        else
+            monitor.addReadCacheMiss();
+        return entry;
+    }
+
+    private void cache(long id, MainMemoryEntry entry) {
+        if (readCache != null && entry != null)
+            readCache.put(id, entry);
+    }
+
+    private void invalidate(long id) {
+        if (readCache != null)
+            readCache.remove(id);
+    }
+
+    private static byte[] toByteArray(BACKUP backup) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("Backing up version {} of line {} data: {}", new Object[]{backup.getVersion(), hex(backup.getLine()), backup.getData() != null ? "(" + backup.getData().remaining() + " bytes)" : "null"});
+        return Persistables.toByteArray(backup.getData());
+    }
+
+    /**
+     * Waits for an asynchronous commit of the line's backups, so that it is not overtaken by operations on the line.
+     */
+    private void awaitCommit(long id) {
+        final ListenableFuture<Void> commit = committing.get(id);
+        if (commit == null)
+            return;
+        try {
+            commit.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+        }
+    }
+
+    private void awaitCommits() {
+        for (ListenableFuture<Void> commit : committing.values()) {
+            try {
+                commit.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+            }
         }
     }
 
@@ -255,10 +748,111 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         monitor.addAllocation(num);
     }
 
+    private short casOwner(long id, short oldNode, short newNode) {
+        if (!revoked.isEmpty())
+            revokeIfDead(id);
+        return doCasOwner(id, oldNode, newNode);
+    }
+
+    private short doCasOwner(long id, short oldNode, short newNode) {
+        return owners != null ? owners.casOwner(id, oldNode, newNode) : store.casOwner(id, oldNode, newNode);
+    }
+
+    private void revokeIfDead(long id) {
+        final short owner = owners != null ? owners.getOwner(id) : OwnerDirectory.getOwner(store, id);
+        if (owner > SERVER && revoked.containsKey(owner)) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Owner of line {} is dead node {}. Server now owns it.", hex(id), owner);
+            doCasOwner(id, owner, SERVER);
+        }
+    }
+
+    private void awaitRevocation(short node) {
+        final Future<?> revocation = revoked.get(node);
+        if (revocation == null)
+            return;
+        LOG.info("Waiting for lines owned by the previous incarnation of node {} to be returned to the server.", node);
+        try {
+            revocation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.error("Exception while removing owner " + node, e.getCause());
+        }
+    }
+
+    private int partitionIndex(long id) {
+        if (partitions == null)
+            return 0;
+        return Math.abs((int) (id ^ (id >>> 32)) % partitions.length);
+    }
+
+    /**
+     * Runs the given task while all partitions are idle, so that it does not race with the processing of line messages.
+     */
+    private void runExclusively(Runnable task) {
+        if (partitions == null) {
+            task.run();
+            return;
+        }
+        final CountDownLatch parked = new CountDownLatch(partitions.length);
+        final CountDownLatch resume = new CountDownLatch(1);
+        try {
+            for (ExecutorService partition : partitions) {
+                partition.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        parked.countDown();
+                        Uninterruptibles.awaitUninterruptibly(resume);
+                    }
+                });
+            }
+            Uninterruptibles.awaitUninterruptibly(parked);
+            task.run();
+        } finally {
+            resume.countDown();
+        }
+    }
+
     @Override
-    public void nodeRemoved(short node) {
+    public void nodeRemoved(final short node) {
         LOG.info("Node {} removed. Server now owns its lines.", node);
-        store.removeOwner(node);
+        runExclusively(new Runnable() {
+            @Override
+            public void run() {
+                revokeOwnership(node);
+            }
+        });
+    }
+
+    private void revokeOwnership(final short node) {
+        if (groups != null) {
+            for (BackupGroup group : groups)
+                group.commit(); // so that the node's pending backups don't make it an owner again
+        }
+        awaitCommits();
+        if (revoker != null) {
+            final FutureTask<Void> revocation = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        removeOwner(node);
+                    } finally {
+                        revoked.remove(node);
+                    }
+                }
+            }, null);
+            revoked.put(node, revocation);
+            revoker.execute(revocation);
+        } else
+            removeOwner(node);
+    }
+
+    private void removeOwner(short node) {
+        if (owners != null)
+            owners.removeOwner(node);
+        else
+            store.removeOwner(node);
     }
 
     @Override
@@ -268,4 +862,80 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     @Override
     public void nodeSwitched(short id) {
     }
+
+    /**
+     * Backups waiting to be committed together in one transaction. Their acks are released once the transaction commits.
+     */
+    private class BackupGroup {
+        private final int partition;
+        private final List<BACKUP> backups = new ArrayList<BACKUP>();
+        private final ShortArrayList owners = new ShortArrayList();
+        private final LongOpenHashSet lines = new LongOpenHashSet();
+        private final List<Runnable> onCommit = new ArrayList<Runnable>();
+        private boolean scheduled;
+
+        BackupGroup(int partition) {
+            this.partition = partition;
+        }
+
+        synchronized void add(short node, List<BACKUP> backups, Runnable onCommit) {
+            for (BACKUP backup : backups) {
+                this.backups.add(backup);
+                owners.add(node);
+                lines.add(backup.getLine());
+            }
+            this.onCommit.add(onCommit);
+
+            if (this.backups.size() >= maxGroupCommitSize)
+                commit();
+            else if (!scheduled) {
+                scheduled = true;
+                groupCommitTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        windowClosed();
+                    }
+                }, groupCommitWindowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        synchronized void commitIfContains(long id) {
+            if (lines.contains(id))
+                commit();
+        }
+
+        private void windowClosed() {
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        commit();
+                    } catch (Exception e) {
+                        LOG.error("Exception during group commit.", e);
+                    }
+                }
+            };
+            if (partitions != null)
+                partitions[partition].execute(task);
+            else
+                task.run();
+        }
+
+        synchronized void commit() {
+            scheduled = false;
+            if (backups.isEmpty())
+                return;
+
+            final List<Runnable> callbacks = new ArrayList<Runnable>(onCommit);
+            try {
+                commitBackups(backups, owners, SERVER, callbacks);
+                LOG.debug("Group committed {} backups of {} packets", backups.size(), callbacks.size());
+            } finally {
+                backups.clear();
+                owners.clear();
+                lines.clear();
+                onCommit.clear(); // if the commit failed, the packets are never acked
+            }
+        }
+    }
 }
@@ -0,0 +1,202 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.common.MonitoringType;
+import java.beans.ConstructorProperties;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link ArenaLocalStorage} whose arena is a memory-mapped file, so the operating system may page out cold items, and the cache
+ * may hold more data than fits in RAM.
+ * <p>
+ * If {@link #setWarmRestart(boolean) warmRestart} is set, then on shutdown the cache's lines are recorded in an index file next to the
+ * arena, and on the next startup they are put back in the cache, invalid, but with their data and version. The first access to such a line
+ * asks its owner for the line, and if the version hasn't changed, the owner replies without the data. The index is deleted as it's read,
+ * so after a crash the arena is started afresh.
+ *
+ * @author pron
+ */
+class MappedLocalStorage extends ArenaLocalStorage implements PersistentCacheStorage {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedLocalStorage.class);
+    private static final int INDEX_MAGIC = 0x47414c58; // "GALX"
+    private static final int INDEX_VERSION = 2; // cells have headers and long offsets
+    private final File file;
+    private final File indexFile;
+    private boolean warmRestart;
+    private final List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+
+    @ConstructorProperties({"name", "file", "arenaSize", "maxItemSize", "monitoringType"})
+    public MappedLocalStorage(String name, String file, int arenaSize, int maxItemSize, MonitoringType monitoringType) {
+        super(name, arenaSize, maxItemSize, monitoringType);
+        this.file = new File(file);
+        this.indexFile = new File(file + ".index");
+    }
+
+    /**
+     * Sets whether the cache's lines are kept across restarts.
+     */
+    public void setWarmRestart(boolean warmRestart) {
+        assertDuringInitialization();
+        this.warmRestart = warmRestart;
+    }
+
+    public boolean isWarmRestart() {
+        return warmRestart;
+    }
+
+    @Override
+    protected ByteBuffer createChunk(long position, int size) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < position + size)
+                raf.setLength(position + size);
+            final MappedByteBuffer chunk = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, position, size);
+            mapped.add(chunk);
+            return chunk;
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+    }
+
+    @Override
+    public Collection<StoredLine> recover() throws Exception {
+        if (!warmRestart || !indexFile.exists())
+            return Collections.emptyList();
+
+        final List<StoredLine> lines = new ArrayList<StoredLine>();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION || in.readInt() != getSlabSize()
+                    || !Arrays.equals(readInts(in), getCellSizes())) {
+                LOG.warn("Index {} does not match the storage's configuration. Starting with an empty cache.", indexFile);
+                return Collections.emptyList();
+            }
+            final short[] slabs = new short[in.readInt()];
+            for (int i = 0; i < slabs.length; i++)
+                slabs[i] = in.readShort();
+
+            final int n = in.readInt();
+            final long[] ids = new long[n];
+            final long[] versions = new long[n];
+            final long[] offsets = new long[n];
+            final int[] limits = new int[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = in.readLong();
+                versions[i] = in.readLong();
+                offsets[i] = in.readLong();
+                limits[i] = in.readInt();
+            }
+            final long[] allocated = offsets.clone();
+            Arrays.sort(allocated);
+            try {
+                restore(slabs, allocated);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Index " + indexFile + " is corrupt. Starting with an empty cache.", e);
+                restore(new short[0], new long[0]);
+                return Collections.emptyList();
+            }
+
+            for (int i = 0; i < n; i++) {
+                final ByteBuffer data = getCell(offsets[i]);
+                data.limit(limits[i]);
+                lines.add(new StoredLine(ids[i], versions[i], data));
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read index " + indexFile + ". Starting with an empty cache.", e);
+            restore(new short[0], new long[0]);
+            return Collections.emptyList();
+        } finally {
+            in.close();
+            if (!indexFile.delete()) // from here on the arena no longer matches the index
+                LOG.warn("Could not delete index {}", indexFile);
+        }
+        LOG.info("Recovered {} lines from {}", lines.size(), file);
+        return lines;
+    }
+
+    @Override
+    public void persist(Collection<StoredLine> lines) throws Exception {
+        if (!warmRestart)
+            return;
+
+        final List<StoredLine> stored = new ArrayList<StoredLine>(lines.size());
+        for (StoredLine line : lines) {
+            if (line.data.capacity() > 0) // empty buffers aren't in the arena
+                stored.add(line);
+        }
+        for (MappedByteBuffer chunk : mapped)
+            chunk.force();
+
+        final File tmp = new File(indexFile.getPath() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(getSlabSize());
+            writeInts(out, getCellSizes());
+            final short[] slabs = getSlabClasses();
+            out.writeInt(slabs.length);
+            for (short s : slabs)
+                out.writeShort(s);
+
+            out.writeInt(stored.size());
+            for (StoredLine line : stored) {
+                out.writeLong(line.id);
+                out.writeLong(line.version);
+                out.writeLong(getOffset(line.data));
+                out.writeInt(line.data.limit());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(indexFile))
+            throw new IOException("Could not rename " + tmp + " to " + indexFile);
+        LOG.info("Persisted {} lines to {}", stored.size(), indexFile);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        final int[] array = new int[in.readInt()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = in.readInt();
+        return array;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] array) throws IOException {
+        out.writeInt(array.length);
+        for (int x : array)
+            out.writeInt(x);
+    }
+}
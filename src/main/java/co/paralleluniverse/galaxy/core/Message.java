@@ -18,9 +18,12 @@ import co.paralleluniverse.common.io.Streamable;
 import co.paralleluniverse.common.io.Streamables;
 import co.paralleluniverse.common.util.Enums;
 import co.paralleluniverse.galaxy.LineFunction;
+import co.paralleluniverse.galaxy.LineFunctionRegistry;
+import co.paralleluniverse.galaxy.PersistableLineFunction;
 import co.paralleluniverse.io.serialization.Serialization;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.Shorts;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.Externalizable;
@@ -45,7 +48,7 @@ public class Message implements Streamable, Externalizable, Cloneable {
         GET, GETX, INV, INVACK, PUT, PUTX, DEL, CHNGD_OWNR, NOT_FOUND, TIMEOUT,
         INVOKE, INVRES,
         BACKUP, BACKUPACK,
-        BACKUP_PACKET, BACKUP_PACKETACK,
+        BACKUP_PACKET, BACKUP_PACKETACK, BACKUP_SYNC,
         ALLOC_REF, ALLOCED_REF,
         MSG, MSGACK,
         ACK;
@@ -67,11 +70,19 @@ public class Message implements Streamable, Externalizable, Cloneable {
     }
 
     public static GET GET(short node, long line) {
-        return new GET(Type.GET, node, line);
+        return new GET(Type.GET, node, line, 0);
+    }
+
+    public static GET GET(short node, long line, long version) {
+        return new GET(Type.GET, node, line, version);
     }
 
     public static GET GETX(short node, long line) {
-        return new GET(Type.GETX, node, line);
+        return new GET(Type.GETX, node, line, 0);
+    }
+
+    public static GET GETX(short node, long line, long version) {
+        return new GET(Type.GETX, node, line, version);
     }
 
     public static PUT PUT(LineMessage responseTo, long line, long version, ByteBuffer data) {
@@ -145,6 +156,10 @@ public class Message implements Streamable, Externalizable, Cloneable {
         return new BACKUP_PACKETACK(responseTo);
     }
 
+    public static BACKUP_SYNC BACKUP_SYNC(long epoch, long sequence) {
+        return new BACKUP_SYNC(epoch, sequence);
+    }
+
     public static ALLOC_REF ALLOC_REF(short node, int num) {
         return new ALLOC_REF(node, num);
     }
@@ -235,6 +250,8 @@ public class Message implements Streamable, Externalizable, Cloneable {
                 return new BACKUP_PACKET();
             case BACKUP_PACKETACK:
                 return new BACKUP_PACKETACK();
+            case BACKUP_SYNC:
+                return new BACKUP_SYNC();
             case ALLOC_REF:
                 return new ALLOC_REF();
             case ALLOCED_REF:
@@ -741,18 +758,56 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
     ///////////////////////////////////////////////////////////////////////
     public static class GET extends LineMessage {
+        private long version; // the version of the line's data the requester already has; 0 if none
+
         GET(Type type) {
             super(type);
         }
 
         public GET(Type type, short node, long line) {
+            this(type, node, line, 0);
+        }
+
+        public GET(Type type, short node, long line, long version) {
             super(node, type, line);
             assert type == Type.GET || type == Type.GETX;
+            this.version = version;
+        }
+
+        /**
+         * The version of the line's data the requesting node already has, or {@code 0} if it has none. If it is the current version,
+         * the response may omit the data.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        int sizeNoHeader() {
+            return super.sizeNoHeader() + 8;
+        }
+
+        @Override
+        void writeNoHeader(DataOutput out) throws IOException {
+            super.writeNoHeader(out);
+            out.writeLong(version);
+        }
+
+        @Override
+        void readNoHeader(DataInput in) throws IOException {
+            super.readNoHeader(in);
+            version = in.readLong();
+        }
+
+        @Override
+        public String partialToString() {
+            return super.partialToString() + (version != 0 ? ", version: " + version : "");
         }
     }
 
     ///////////////////////////////////////////////////////////////////////
     public static class INVOKE extends LineMessage {
+        private short functionId; // 0 if the function is serialized
         private byte[] function;
 
         INVOKE(Type type) {
@@ -761,22 +816,31 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
         public INVOKE(Type type, short node, long line, LineFunction function) {
             super(node, type, line);
-            this.function = Serialization.getInstance().write(function); // new JDKSerializer().write(function);
+            this.functionId = Shorts.checkedCast(LineFunctionRegistry.getId(function));
+            if (functionId != 0) {
+                final PersistableLineFunction<?> f = (PersistableLineFunction<?>) function;
+                this.function = new byte[f.size()];
+                f.write(ByteBuffer.wrap(this.function));
+            } else
+                this.function = Serialization.getInstance().write(function); // new JDKSerializer().write(function);
             assert type == Type.INVOKE;
         }
 
         public LineFunction getFunction() {
+            if (functionId != 0)
+                return LineFunctionRegistry.read(functionId, ByteBuffer.wrap(function));
             return (LineFunction) Serialization.getInstance().read(function); // new JDKSerializer().read(function);
         }
 
         @Override
         public int sizeNoHeader() {
-            return super.sizeNoHeader() + 2 + (function != null ? function.length : 0);
+            return super.sizeNoHeader() + 2 + 2 + (function != null ? function.length : 0);
         }
 
         @Override
         public void writeNoHeader(DataOutput out) throws IOException {
             super.writeNoHeader(out);
+            out.writeShort(functionId);
             out.writeShort(function != null ? (short) function.length : 0);
             if (function != null)
                 out.write(function);
@@ -785,8 +849,9 @@ public class Message implements Streamable, Externalizable, Cloneable {
         @Override
         public void readNoHeader(DataInput in) throws IOException {
             super.readNoHeader(in);
+            functionId = in.readShort();
             final int dataLen = in.readUnsignedShort();
-            if (dataLen == 0)
+            if (dataLen == 0 && functionId == 0)
                 function = null;
             else {
                 function = new byte[dataLen];
@@ -796,12 +861,19 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
         @Override
         public String partialToString() {
-            return super.partialToString() + ", function: " + getFunction();
+            // a registered function is read into a reused instance, which may be in use
+            return super.partialToString() + ", function: " + (functionId != 0 ? "#" + functionId : getFunction());
         }
     }
 
     ///////////////////////////////////////////////////////////////////////
     public static class INVRES extends LineMessage {
+        private static final byte RESULT_SERIALIZED = 0;
+        private static final byte RESULT_NULL = 1;
+        private static final byte RESULT_BOOLEAN = 2;
+        private static final byte RESULT_INT = 3;
+        private static final byte RESULT_LONG = 4;
+        private byte resultType;
         private byte[] result;
 
         INVRES(Type type) {
@@ -810,21 +882,49 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
         public INVRES(LineMessage responseTo, long line, Object result) {
             super(responseTo, Type.INVRES, line);
-            this.result = Serialization.getInstance().write(result); // new JDKSerializer().write(result);
+            // common results of RPC-like functions skip the serializer
+            if (result == null) {
+                this.resultType = RESULT_NULL;
+                this.result = null;
+            } else if (result instanceof Boolean) {
+                this.resultType = RESULT_BOOLEAN;
+                this.result = new byte[]{(byte) ((Boolean) result ? 1 : 0)};
+            } else if (result instanceof Integer) {
+                this.resultType = RESULT_INT;
+                this.result = ByteBuffer.allocate(4).putInt((Integer) result).array();
+            } else if (result instanceof Long) {
+                this.resultType = RESULT_LONG;
+                this.result = ByteBuffer.allocate(8).putLong((Long) result).array();
+            } else {
+                this.resultType = RESULT_SERIALIZED;
+                this.result = Serialization.getInstance().write(result); // new JDKSerializer().write(result);
+            }
         }
 
         public Object getResult() {
-            return Serialization.getInstance().read(result); // new JDKSerializer().read(result);
+            switch (resultType) {
+                case RESULT_NULL:
+                    return null;
+                case RESULT_BOOLEAN:
+                    return result[0] != 0;
+                case RESULT_INT:
+                    return ByteBuffer.wrap(result).getInt();
+                case RESULT_LONG:
+                    return ByteBuffer.wrap(result).getLong();
+                default:
+                    return Serialization.getInstance().read(result); // new JDKSerializer().read(result);
+            }
         }
 
         @Override
         public int sizeNoHeader() {
-            return super.sizeNoHeader() + 2 + (result != null ? result.length : 0);
+            return super.sizeNoHeader() + 1 + 2 + (result != null ? result.length : 0);
         }
 
         @Override
         public void writeNoHeader(DataOutput out) throws IOException {
             super.writeNoHeader(out);
+            out.writeByte(resultType);
             out.writeShort(result != null ? (short) result.length : 0);
             if (result != null)
                 out.write(result);
@@ -833,6 +933,7 @@ public class Message implements Streamable, Externalizable, Cloneable {
         @Override
         public void readNoHeader(DataInput in) throws IOException {
             super.readNoHeader(in);
+            resultType = in.readByte();
             final int dataLen = in.readUnsignedShort();
             if (dataLen == 0)
                 result = null;
@@ -1236,6 +1337,59 @@ public class Message implements Streamable, Externalizable, Cloneable {
         }
     }
 
+    ///////////////////////////////////////////////////////////////////////
+    /**
+     * Identifies a point in a master's backup stream: the master's epoch (which changes whenever a node becomes master) and the id
+     * of the last backup packet reflected. Sent by a slave when it connects to its master, and by the master at the end of replication.
+     */
+    public static class BACKUP_SYNC extends Message {
+        private static final long serialVersionUID = 4620349513582209512L;
+        private long epoch;
+        private long sequence;
+
+        public BACKUP_SYNC(long epoch, long sequence) {
+            super((short) 0, Type.BACKUP_SYNC);
+            this.epoch = epoch;
+            this.sequence = sequence;
+        }
+
+        public BACKUP_SYNC() {
+            super(Type.BACKUP_SYNC);
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        @Override
+        public int size1() {
+            return super.size1() + 8 + 8;
+        }
+
+        @Override
+        public void write1(DataOutput out) throws IOException {
+            super.write1(out);
+            out.writeLong(epoch);
+            out.writeLong(sequence);
+        }
+
+        @Override
+        public void read1(DataInput in) throws IOException {
+            super.read1(in);
+            epoch = in.readLong();
+            sequence = in.readLong();
+        }
+
+        @Override
+        public String partialToString() {
+            return super.partialToString() + ", epoch: " + Long.toHexString(epoch) + ", sequence: " + sequence;
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////
     public static class ALLOC_REF extends Message {
         private int num;
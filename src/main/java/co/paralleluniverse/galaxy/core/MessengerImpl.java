@@ -14,30 +14,42 @@
 package co.paralleluniverse.galaxy.core;
 
 import co.paralleluniverse.common.collection.ConcurrentMultimap;
+import co.paralleluniverse.common.concurrent.KeyOrderedExecutor;
 import co.paralleluniverse.common.concurrent.WithExecutor;
 import co.paralleluniverse.common.io.Streamable;
 import co.paralleluniverse.common.io.Streamables;
 import co.paralleluniverse.common.spring.Component;
 import co.paralleluniverse.galaxy.MessageListener;
 import co.paralleluniverse.galaxy.Messenger;
+import co.paralleluniverse.galaxy.RequestListener;
 import co.paralleluniverse.galaxy.TimeoutException;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import co.paralleluniverse.galaxy.core.Message.MSG;
 import co.paralleluniverse.galaxy.core.Op.Type;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.beans.ConstructorProperties;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
  *
@@ -60,13 +72,40 @@ public class MessengerImpl extends Component implements Messenger {
         }
     };
     private final NodeOrderedThreadPoolExecutor executor;
+    private DispatchOrdering dispatchOrdering = DispatchOrdering.NODE;
+    private int dispatchParallelism = Runtime.getRuntime().availableProcessors();
+    private int dispatchBatchSize = 64;
+    private int maxBatchSize = 1024;
+    private KeyOrderedExecutor dispatcher;
+    private final AtomicLong requestIdGenerator = new AtomicLong();
+    private final NonBlockingHashMapLong<PendingRequest> pendingRequests = new NonBlockingHashMapLong<PendingRequest>();
+    private ScheduledThreadPoolExecutor timer;
+
+    /**
+     * The guarantee on the order in which received messages are passed to their listeners.
+     */
+    public enum DispatchOrdering {
+        /**
+         * Messages from a node are delivered in the order they were sent, regardless of topic, and a topic's listeners are never called
+         * concurrently. Messages run on the {@code threadPool}.
+         */
+        NODE,
+        /**
+         * Messages on a topic are delivered in the order they were received, and a topic's listeners are never called concurrently.
+         * Messages on different topics are delivered in parallel.
+         */
+        TOPIC,
+        /**
+         * Messages on a topic from a node are delivered in the order they were sent. Messages on the same topic from different nodes
+         * are delivered in parallel, so a topic's listeners may be called concurrently.
+         */
+        TOPIC_AND_NODE
+    }
 
     @ConstructorProperties({"name", "cache", "threadPool"})
     MessengerImpl(String name, Cache cache, NodeOrderedThreadPoolExecutor threadPool) {
         super(name);
         this.executor = threadPool;
-        if (executor == null)
-            throw new RuntimeException("The executor must be set!");
         this.cache = cache;
         cache.setReceiver(new MessageReceiver() {
             @Override
@@ -79,6 +118,67 @@ public class MessengerImpl extends Component implements Messenger {
         });
     }
 
+    public void setDispatchOrdering(DispatchOrdering dispatchOrdering) {
+        assertDuringInitialization();
+        this.dispatchOrdering = dispatchOrdering;
+    }
+
+    @ManagedAttribute
+    public String getDispatchOrdering() {
+        return dispatchOrdering.toString();
+    }
+
+    public void setDispatchParallelism(int dispatchParallelism) {
+        assertDuringInitialization();
+        this.dispatchParallelism = dispatchParallelism;
+    }
+
+    @ManagedAttribute
+    public int getDispatchParallelism() {
+        return dispatchParallelism;
+    }
+
+    public void setDispatchBatchSize(int dispatchBatchSize) {
+        assertDuringInitialization();
+        this.dispatchBatchSize = dispatchBatchSize;
+    }
+
+    @ManagedAttribute
+    public int getDispatchBatchSize() {
+        return dispatchBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        assertDuringInitialization();
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @ManagedAttribute
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+        if (dispatchOrdering == DispatchOrdering.NODE) {
+            if (executor == null)
+                throw new RuntimeException("The executor must be set!");
+        } else
+            dispatcher = new KeyOrderedExecutor(dispatchParallelism, dispatchBatchSize);
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("galaxy-messenger-timer").build());
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    protected void shutdown() {
+        super.shutdown();
+        if (dispatcher != null)
+            dispatcher.shutdown();
+        if (timer != null)
+            timer.shutdownNow();
+    }
+
     @Override
     public long createTopic() {
         return topicGenerator.incrementAndGet();
@@ -176,6 +276,124 @@ public class MessengerImpl extends Component implements Messenger {
         return sendToOwnerOfAsync(ref, new Msg(-1, topic, data));
     }
 
+    @Override
+    public void sendBatch(short node, long topic, List<byte[]> data) {
+        sendBatch(node, topic, null, data);
+    }
+
+    @Override
+    public void sendBatch(short node, String topic, List<byte[]> data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        sendBatch(node, -1, topic, data);
+    }
+
+    @Override
+    public void broadcast(long topic, byte[] data) {
+        broadcast(new Msg(topic, null, data));
+    }
+
+    @Override
+    public void broadcast(String topic, byte[] data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        broadcast(new Msg(-1, topic, data));
+    }
+
+    @Override
+    public void broadcast(long topic, Streamable data) {
+        broadcast(new Msg(topic, null, data));
+    }
+
+    @Override
+    public void broadcast(String topic, Streamable data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        broadcast(new Msg(-1, topic, data));
+    }
+
+    @Override
+    public ListenableFuture<byte[]> request(short node, long topic, byte[] data, long timeout, TimeUnit unit) {
+        final PendingRequest request = newRequest(timeout, unit);
+        sendToNode(node, new Msg(topic, null, data).asRequest(request.id));
+        return request;
+    }
+
+    @Override
+    public ListenableFuture<byte[]> request(short node, String topic, byte[] data, long timeout, TimeUnit unit) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        final PendingRequest request = newRequest(timeout, unit);
+        sendToNode(node, new Msg(-1, topic, data).asRequest(request.id));
+        return request;
+    }
+
+    @Override
+    public ListenableFuture<byte[]> requestFromOwnerOf(long ref, long topic, byte[] data, long timeout, TimeUnit unit) {
+        return requestFromOwnerOf(ref, new Msg(topic, null, data), timeout, unit);
+    }
+
+    @Override
+    public ListenableFuture<byte[]> requestFromOwnerOf(long ref, String topic, byte[] data, long timeout, TimeUnit unit) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        return requestFromOwnerOf(ref, new Msg(-1, topic, data), timeout, unit);
+    }
+
+    private ListenableFuture<byte[]> requestFromOwnerOf(long ref, Msg msg, long timeout, TimeUnit unit) {
+        final PendingRequest request = newRequest(timeout, unit);
+        Futures.addCallback(sendToOwnerOfAsync(ref, msg.asRequest(request.id)), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                request.fail(t);
+            }
+        });
+        return request;
+    }
+
+    private PendingRequest newRequest(long timeout, TimeUnit unit) {
+        final PendingRequest request = new PendingRequest(requestIdGenerator.incrementAndGet());
+        pendingRequests.put(request.id, request);
+        request.timeout = timer.schedule(request, timeout, unit);
+        return request;
+    }
+
+    private void reply(short node, Msg request, byte[] response, String error) {
+        final Msg reply = error != null
+                ? new Msg(request.getlTopic(), request.getsTopic(), error.getBytes(Charsets.UTF_8)).asReply(request.getRequestId(), true)
+                : new Msg(request.getlTopic(), request.getsTopic(), response != null ? response : new byte[0]).asReply(request.getRequestId(), false);
+        sendToNode(node, reply);
+    }
+
+    private void sendBatch(short node, long lTopic, String sTopic, List<byte[]> data) {
+        // each MSG carries as many messages as fit in maxBatchSize (but at least one)
+        int from = 0;
+        int size = 0;
+        for (int i = 0; i < data.size(); i++) {
+            final int length = 2 + data.get(i).length;
+            if (i > from && size + length > maxBatchSize) {
+                sendToNode(node, new Msg(lTopic, sTopic, data.subList(from, i)));
+                from = i;
+                size = 0;
+            }
+            size += length;
+        }
+        if (from < data.size())
+            sendToNode(node, new Msg(lTopic, sTopic, data.subList(from, data.size())));
+    }
+
+    private void broadcast(Msg msg) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("Broadcasting: {}", msg);
+        final MSG message = Message.MSG((short) -1, -1, true, Streamables.toByteArray(msg));
+        message.setReplyRequired(false); // the comm acks a broadcast on each node, so we don't need MSGACKs
+        cache.send(message);
+    }
+
     private void sendToNode(short node, Msg msg) {
         if (LOG.isDebugEnabled())
             LOG.debug("Sending to node {}: {}", node, msg);
@@ -200,12 +418,37 @@ public class MessengerImpl extends Component implements Messenger {
         final Msg msg = new Msg();
         Streamables.fromByteArray(msg, message.getData());
         LOG.debug("Received: {}", msg);
+        if (msg.isReply()) {
+            final PendingRequest request = pendingRequests.get(msg.getRequestId());
+            if (request != null)
+                request.complete(message.getNode(), msg);
+            return;
+        }
         final Collection<MessageListener> ls = msg.hasSTopic() ? stringTopicListeners.get(msg.getsTopic()) : longTopicListeners.get(msg.getlTopic());
-        if (ls != null)
+        if (ls == null) {
+            if (msg.isRequest())
+                reply(message.getNode(), msg, null, "No request listener on topic " + msg.getTopic());
+            return;
+        }
+        if (msg.isBatch()) {
+            for (byte[] data : msg.getBatch())
+                notifyListeners(ls, message.getNode(), new Msg(msg.getlTopic(), msg.getsTopic(), data));
+        } else
             notifyListeners(ls, message.getNode(), msg);
     }
 
     private void notifyListeners(final Collection<MessageListener> listeners, final short node, final Msg msg) {
+        if (dispatcher != null) {
+            final Object key = dispatchOrdering == DispatchOrdering.TOPIC ? msg.getTopic() : new TopicAndNode(msg.getTopic(), node);
+            dispatcher.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    deliver(listeners, node, msg);
+                }
+            });
+            return;
+        }
+
         executor.execute(new NodeTask() {
             @Override
             public short getNode() {
@@ -215,35 +458,152 @@ public class MessengerImpl extends Component implements Messenger {
             @Override
             public void run() {
                 synchronized (listeners) { // make topic messages serial
-                    for (final MessageListener listener : listeners) {
-                        if (!(listener instanceof WithExecutor)) {
-                            try {
-                                listener.messageReceived(node, msg.getData());
-                            } catch (Exception e) {
-                                LOG.error("Listener threw an exception.", e);
-                            }
-                        } else {
-                            ((WithExecutor) listener).getExecutor().execute(new Runnable() {
-                                @Override
-                                public void run() {
-                                    try {
-                                        listener.messageReceived(node, msg.getData());
-                                    } catch (Exception e) {
-                                        LOG.error("Listener threw an exception.", e);
-                                    }
-                                }
-                            });
+                    deliver(listeners, node, msg);
+                }
+            }
+        });
+    }
+
+    private void deliver(Collection<MessageListener> listeners, final short node, final Msg msg) {
+        if (msg.isRequest()) {
+            answer(listeners, node, msg);
+            return;
+        }
+        for (final MessageListener listener : listeners) {
+            if (!(listener instanceof WithExecutor)) {
+                try {
+                    listener.messageReceived(node, msg.getData());
+                } catch (Exception e) {
+                    LOG.error("Listener threw an exception.", e);
+                }
+            } else {
+                ((WithExecutor) listener).getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.messageReceived(node, msg.getData());
+                        } catch (Exception e) {
+                            LOG.error("Listener threw an exception.", e);
                         }
                     }
+                });
+            }
+        }
+    }
+
+    private void answer(Collection<MessageListener> listeners, final short node, final Msg msg) {
+        RequestListener requestListener = null;
+        for (MessageListener listener : listeners) {
+            if (listener instanceof RequestListener) {
+                requestListener = (RequestListener) listener;
+                break;
+            }
+        }
+        if (requestListener == null) {
+            reply(node, msg, null, "No request listener on topic " + msg.getTopic());
+            return;
+        }
+
+        final RequestListener listener = requestListener;
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                final byte[] response;
+                try {
+                    response = listener.requestReceived(node, msg.getData());
+                } catch (Exception e) {
+                    LOG.error("Listener threw an exception.", e);
+                    reply(node, msg, null, e.toString());
+                    return;
                 }
+                reply(node, msg, response, null);
             }
-        });
+        };
+        if (listener instanceof WithExecutor)
+            ((WithExecutor) listener).getExecutor().execute(task);
+        else
+            task.run();
+    }
+
+    private final class PendingRequest extends AbstractFuture<byte[]> implements Runnable {
+        final long id;
+        volatile ScheduledFuture<?> timeout;
+
+        PendingRequest(long id) {
+            this.id = id;
+        }
+
+        void complete(short node, Msg reply) {
+            if (reply.isFailed())
+                fail(new RuntimeException("Request failed on node " + node + ": " + new String(reply.getData(), Charsets.UTF_8)));
+            else if (pendingRequests.remove(id, this)) {
+                cancelTimeout();
+                set(reply.getData());
+            }
+        }
+
+        void fail(Throwable t) {
+            if (pendingRequests.remove(id, this)) {
+                cancelTimeout();
+                setException(t);
+            }
+        }
+
+        @Override
+        public void run() {
+            fail(new TimeoutException("No response to request " + id));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (pendingRequests.remove(id, this))
+                cancelTimeout();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        private void cancelTimeout() {
+            final ScheduledFuture<?> t = timeout;
+            if (t != null)
+                t.cancel(false);
+        }
+    }
+
+    private static final class TopicAndNode {
+        private final Object topic;
+        private final short node;
+
+        TopicAndNode(Object topic, short node) {
+            this.topic = topic;
+            this.node = node;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * topic.hashCode() + node;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TopicAndNode))
+                return false;
+            final TopicAndNode other = (TopicAndNode) obj;
+            return node == other.node && topic.equals(other.topic);
+        }
     }
 
     private static class Msg implements Streamable {
+        private static final byte STRING_TOPIC = 1;
+        private static final byte BATCH = 1 << 1;
+        private static final byte REQUEST = 1 << 2;
+        private static final byte REPLY = 1 << 3;
+        private static final byte FAILED = 1 << 4;
+        private static final byte RPC = REQUEST | REPLY | FAILED;
         private long lTopic = -1;
         private String sTopic = null;
         private byte[] data;
+        private List<byte[]> batch;
+        private byte rpc;
+        private long requestId;
 
         public Msg() {
         }
@@ -276,6 +636,40 @@ public class MessengerImpl extends Component implements Messenger {
             this(lTopic, sTopic, Streamables.toByteArray(data));
         }
 
+        private Msg(long lTopic, String sTopic, List<byte[]> batch) {
+            this.lTopic = lTopic;
+            this.sTopic = sTopic;
+            this.batch = batch;
+        }
+
+        public Msg asRequest(long requestId) {
+            this.rpc = REQUEST;
+            this.requestId = requestId;
+            return this;
+        }
+
+        public Msg asReply(long requestId, boolean failed) {
+            this.rpc = (byte) (REPLY | (failed ? FAILED : 0));
+            this.requestId = requestId;
+            return this;
+        }
+
+        public boolean isRequest() {
+            return (rpc & REQUEST) != 0;
+        }
+
+        public boolean isReply() {
+            return (rpc & REPLY) != 0;
+        }
+
+        public boolean isFailed() {
+            return (rpc & FAILED) != 0;
+        }
+
+        public long getRequestId() {
+            return requestId;
+        }
+
         public boolean hasSTopic() {
             return sTopic != null;
         }
@@ -288,40 +682,85 @@ public class MessengerImpl extends Component implements Messenger {
             return sTopic;
         }
 
+        public Object getTopic() {
+            return sTopic != null ? sTopic : (Object) lTopic;
+        }
+
         public byte[] getData() {
             return data;
         }
 
+        public boolean isBatch() {
+            return batch != null;
+        }
+
+        public List<byte[]> getBatch() {
+            return batch;
+        }
+
         @Override
         public int size() {
-            return 1 + (lTopic != -1 ? 8 : Streamables.calcUtfLength(sTopic) + 2 + data.length);
+            int size = 1 + (hasSTopic() ? Streamables.calcUtfLength(sTopic) + 2 : 8) + (rpc != 0 ? 8 : 0);
+            if (isBatch()) {
+                size += 2;
+                for (byte[] d : batch)
+                    size += 2 + d.length;
+            } else
+                size += 2 + data.length;
+            return size;
         }
 
         @Override
         public void write(DataOutput out) throws IOException {
             final boolean hasSTopic = hasSTopic();
-            out.writeBoolean(hasSTopic);
+            out.writeByte((hasSTopic ? STRING_TOPIC : 0) | (isBatch() ? BATCH : 0) | rpc);
             if (hasSTopic)
                 out.writeUTF(sTopic);
             else
                 out.writeLong(lTopic);
-            out.writeShort((short) data.length);
-            out.write(data);
+            if (rpc != 0)
+                out.writeLong(requestId);
+            if (isBatch()) {
+                out.writeShort((short) batch.size());
+                for (byte[] d : batch)
+                    writeData(out, d);
+            } else
+                writeData(out, data);
         }
 
         @Override
         public void read(DataInput in) throws IOException {
-            final boolean hasSTopic = in.readBoolean();
-            if (hasSTopic) {
+            final byte flags = in.readByte();
+            if ((flags & STRING_TOPIC) != 0) {
                 lTopic = -1;
                 sTopic = in.readUTF();
             } else {
                 lTopic = in.readLong();
                 sTopic = null;
             }
-            final int dataLength = in.readUnsignedShort();
-            data = new byte[dataLength];
+            rpc = (byte) (flags & RPC);
+            requestId = rpc != 0 ? in.readLong() : 0;
+            if ((flags & BATCH) != 0) {
+                final int count = in.readUnsignedShort();
+                batch = new ArrayList<byte[]>(count);
+                for (int i = 0; i < count; i++)
+                    batch.add(readData(in));
+                data = null;
+            } else {
+                data = readData(in);
+                batch = null;
+            }
+        }
+
+        private static void writeData(DataOutput out, byte[] data) throws IOException {
+            out.writeShort((short) data.length);
+            out.write(data);
+        }
+
+        private static byte[] readData(DataInput in) throws IOException {
+            final byte[] data = new byte[in.readUnsignedShort()];
             in.readFully(data);
+            return data;
         }
 
         @Override
@@ -334,7 +773,9 @@ public class MessengerImpl extends Component implements Messenger {
             else
                 sb.append(lTopic);
             sb.append(" data: ");
-            if (data == null)
+            if (batch != null)
+                sb.append("(batch of ").append(batch.size()).append(")");
+            else if (data == null)
                 sb.append("null");
             else
                 sb.append(("(")).append(data.length).append(" bytes)");
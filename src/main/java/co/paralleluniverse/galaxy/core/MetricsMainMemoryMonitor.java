@@ -28,6 +28,8 @@ class MetricsMainMemoryMonitor implements MainMemoryMonitor {
     private final Meter ownerWrites = Metrics.meter(metric("ownerWrites"));
     private final Meter ownersServed = Metrics.meter(metric("ownersServed"));
     private final Meter allocations = Metrics.meter(metric("allocations"));
+    private final Meter readCacheHits = Metrics.meter(metric("readCacheHits"));
+    private final Meter readCacheMisses = Metrics.meter(metric("readCacheMisses"));
 
     protected final String metric(String name) {
         return MetricRegistry.name("co.paralleluniverse", "galaxy", "MainMemory", name);
@@ -62,4 +64,14 @@ class MetricsMainMemoryMonitor implements MainMemoryMonitor {
     public void addAllocation(int count) {
         allocations.mark(count);
     }
+
+    @Override
+    public void addReadCacheHit() {
+        readCacheHits.mark();
+    }
+
+    @Override
+    public void addReadCacheMiss() {
+        readCacheMisses.mark();
+    }
 }
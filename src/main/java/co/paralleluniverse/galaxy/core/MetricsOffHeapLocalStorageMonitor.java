@@ -15,8 +15,10 @@ package co.paralleluniverse.galaxy.core;
 
 import co.paralleluniverse.common.monitoring.Metrics;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import static com.codahale.metrics.MetricRegistry.name;
+import java.lang.ref.WeakReference;
 
 /**
  *
@@ -25,11 +27,22 @@ import static com.codahale.metrics.MetricRegistry.name;
 class MetricsOffHeapLocalStorageMonitor extends MetricsLocalStorageMonitor implements OffHeapLocalStorageMonitor {
     private final BinMetrics[] binMetrics;
 
-    public MetricsOffHeapLocalStorageMonitor(String name, CacheStorage storage, int[] bins) {
+    public MetricsOffHeapLocalStorageMonitor(String name, OffHeapLocalStorage storage, int[] bins) {
         super(name, storage);
+        final WeakReference<OffHeapLocalStorage> _storage = new WeakReference<OffHeapLocalStorage>(storage);
         this.binMetrics = new BinMetrics[bins.length];
-        for (int i = 0; i < bins.length; i++)
+        for (int i = 0; i < bins.length; i++) {
             this.binMetrics[i] = new BinMetrics(name, bins[i]);
+            final int bin = i;
+            Metrics.register(name("co.paralleluniverse", "galaxy", "CacheStorage", "fragmentation", name + '[' + bins[i] + ']'),
+                    new Gauge<Double>() {
+                        @Override
+                        public Double getValue() {
+                            final OffHeapLocalStorage storage = _storage.get();
+                            return storage != null ? storage.getFragmentation(bin) : 0.0;
+                        }
+                    });
+        }
     }
 
     @Override
@@ -16,13 +16,21 @@ package co.paralleluniverse.galaxy.core;
 import co.paralleluniverse.common.MonitoringType;
 import co.paralleluniverse.common.spring.Component;
 import co.paralleluniverse.common.util.DegenerateInvocationHandler;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.beans.ConstructorProperties;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -34,7 +42,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author pron
  */
-class OffHeapLocalStorage extends Component implements CacheStorage {
+class OffHeapLocalStorage extends Component implements CompactingCacheStorage {
     private static final Logger LOG = LoggerFactory.getLogger(OffHeapLocalStorage.class);
     private static final int MIN_POWER = 3; // min size = 1 << 3 = 8
     private static final Field VIEWD_BUFFER_FIELD;
@@ -53,6 +61,25 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
     private final AtomicLong totalSize = new AtomicLong();
     private final PageGroup[] pageGroups;
     private int maxPagesForConcurrency = Runtime.getRuntime().availableProcessors() * 2;
+    private int magazineSize = 32;
+    private final List<ThreadMagazines> allMagazines = new ArrayList<ThreadMagazines>(); // so that dead threads' cells can be reclaimed
+    private final ThreadLocal<Magazine[]> magazines = new ThreadLocal<Magazine[]>() {
+        @Override
+        protected Magazine[] initialValue() {
+            final Magazine[] mags = new Magazine[pageGroups.length];
+            for (int i = 0; i < mags.length; i++)
+                mags[i] = new Magazine(magazineSize);
+            drainDeadThreads(); // threads come and go, so we clean up after them as new ones arrive
+            synchronized (allMagazines) {
+                allMagazines.add(new ThreadMagazines(Thread.currentThread(), mags));
+            }
+            return mags;
+        }
+    };
+    private long compactionPeriod; // in ms; 0 means no compaction
+    private double compactionThreshold = 0.5;
+    private volatile Relocator relocator;
+    private ScheduledExecutorService compactor;
     private final OffHeapLocalStorageMonitor monitor;
 
     @ConstructorProperties({"name", "pageSize", "maxItemSize", "monitoringType"})
@@ -96,6 +123,130 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
         this.maxPagesForConcurrency = maxPagesForConcurrency;
     }
 
+    /**
+     * Sets the number of free cells of each size each thread keeps for itself, so that most allocations and deallocations don't lock.
+     * Cells are moved between a thread's magazine and the pages in batches of this size. If 0, each allocation and deallocation
+     * locks a page.
+     */
+    public void setMagazineSize(int magazineSize) {
+        assertDuringInitialization();
+        this.magazineSize = magazineSize;
+    }
+
+    /**
+     * Sets the interval, in milliseconds, between compaction rounds, in which empty pages are freed and cells in sparse pages
+     * are moved to denser ones so that the sparse pages can be freed. If 0 (the default), pages are never freed.
+     */
+    public void setCompactionPeriod(long compactionPeriod) {
+        assertDuringInitialization();
+        this.compactionPeriod = compactionPeriod;
+    }
+
+    /**
+     * Sets the fraction of a size class's memory that must be free for a compaction round to move cells out of its sparsest pages.
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        assertDuringInitialization();
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public void setRelocator(Relocator relocator) {
+        this.relocator = relocator;
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+        if (compactionPeriod > 0) {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("offHeapCompactor-%d").setDaemon(true).build());
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Exception e) {
+                        LOG.error("Exception while compacting off-heap storage", e);
+                    }
+                }
+            }, compactionPeriod, compactionPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected void shutdown() {
+        super.shutdown();
+        if (compactor != null)
+            compactor.shutdownNow();
+    }
+
+    /**
+     * Runs a compaction round.
+     */
+    void compact() {
+        drainDeadThreads();
+        for (PageGroup group : pageGroups)
+            group.freeEmptyPages();
+
+        final Relocator _relocator = relocator;
+        if (_relocator == null)
+            return;
+        boolean marked = false;
+        for (PageGroup group : pageGroups)
+            marked |= group.markForEvacuation();
+        if (!marked)
+            return;
+        _relocator.relocate();
+        for (PageGroup group : pageGroups)
+            group.freeEmptyPages();
+    }
+
+    /**
+     * Returns the cells held in the magazines of terminated threads to their pages.
+     *
+     * @return the number of cells returned.
+     */
+    int drainDeadThreads() {
+        final List<Magazine[]> dead = new ArrayList<Magazine[]>();
+        synchronized (allMagazines) {
+            for (Iterator<ThreadMagazines> it = allMagazines.iterator(); it.hasNext();) {
+                final ThreadMagazines tm = it.next();
+                final Thread thread = tm.thread.get();
+                if (thread == null || !thread.isAlive()) {
+                    dead.add(tm.magazines);
+                    it.remove();
+                }
+            }
+        }
+        int drained = 0;
+        for (Magazine[] mags : dead) {
+            for (Magazine mag : mags) {
+                drained += mag.count;
+                if (mag.count > 0)
+                    mag.drain(mag.count);
+            }
+        }
+        if (drained > 0 && LOG.isDebugEnabled())
+            LOG.debug("Returned {} cells from the magazines of {} terminated threads", drained, dead.size());
+        return drained;
+    }
+
+    @Override
+    public boolean shouldRelocate(ByteBuffer buffer) {
+        return buffer != EMPTY_BUFFER && getPage(buffer).evacuating;
+    }
+
+    /**
+     * The fraction of the memory held by the given size class that is not taken by allocated cells.
+     */
+    double getFragmentation(int bin) {
+        return pageGroups[bin].getFragmentation();
+    }
+
+    int getNumPages(int bin) {
+        return pageGroups[bin].pages.length;
+    }
+
     @Override
     public ByteBuffer allocateStorage(int size) {
         if (size == 0)
@@ -106,7 +257,25 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
         size = pageGroups[bin].cellSize;
         monitor.allocated(bin, size);
         totalSize.addAndGet(size);
-        final ByteBuffer buffer = pageGroups[bin].allocate();
+        ByteBuffer buffer;
+        if (magazineSize > 0) {
+            final Magazine mag = magazines.get()[bin];
+            for (;;) {
+                if (mag.count == 0)
+                    pageGroups[bin].refill(mag);
+                buffer = mag.pop();
+                if (compactionPeriod == 0)
+                    break;
+                final Page page = getPage(buffer);
+                if (!page.evacuating)
+                    break;
+                page.deallocate(buffer); // the magazine had this cell before its page was marked for evacuation
+            }
+            buffer.clear();
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(0, 0);
+        } else
+            buffer = pageGroups[bin].allocate();
         buffer.position(0);
         return buffer;
     }
@@ -118,7 +287,13 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
         final Page page = getPage(buffer);
         monitor.deallocated(page.getGroup().groupIndex, buffer.limit());
         totalSize.addAndGet(-buffer.limit());
-        page.deallocate(buffer);
+        if (magazineSize > 0 && !page.evacuating) {
+            final Magazine mag = magazines.get()[page.getGroup().groupIndex];
+            if (mag.isFull())
+                mag.drain(magazineSize);
+            mag.push(buffer);
+        } else
+            page.deallocate(buffer);
     }
 
     @Override
@@ -129,9 +304,8 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
     private class PageGroup {
         public final int groupIndex;
         public final int cellSize;
-        private final List<Page> pages = new CopyOnWriteArrayList<Page>();
+        private volatile Page[] pages = new Page[0]; // replaced (under allocationLock) when pages are added or freed
         private final Lock allocationLock = new ReentrantLock();
-        private volatile int numPages = 0;
 
         public PageGroup(int index, int cellSize) {
             this.groupIndex = index;
@@ -140,21 +314,14 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
 
         ByteBuffer allocate() {
             final int threadHash = Thread.currentThread().hashCode();
-            ByteBuffer buffer = null;
-            if (numPages > 0)
-                buffer = allocate(threadHash % numPages);
+            ByteBuffer buffer = allocate(threadHash);
             if (buffer == null) {
                 allocationLock.lock();
                 try {
-                    if (numPages > 0)
-                        buffer = allocate(threadHash % numPages);
+                    buffer = allocate(threadHash);
                     if (buffer == null) {
-                        if (LOG.isDebugEnabled())
-                            LOG.debug("Allocating a direct-memory page of size {} bytes. (totalSize: {} bytes)", pageSize * 1024, totalSize.get());
-                        Page newPage = new Page(this, pageSize, cellSize, MIN_POWER + groupIndex);
+                        final Page newPage = addPage();
                         buffer = newPage.allocate(true);
-                        pages.add(newPage);
-                        numPages++;
                     }
                 } finally {
                     allocationLock.unlock();
@@ -164,25 +331,144 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
             return buffer;
         }
 
+        /**
+         * Moves a batch of free cells into the magazine.
+         */
+        void refill(Magazine mag) {
+            final int threadHash = Thread.currentThread().hashCode();
+            if (refill(mag, threadHash) > 0)
+                return;
+            allocationLock.lock();
+            try {
+                if (refill(mag, threadHash) > 0)
+                    return;
+                final Page newPage = addPage();
+                newPage.allocate(mag, magazineSize, true);
+            } finally {
+                allocationLock.unlock();
+            }
+            assert mag.count > 0;
+        }
+
+        private Page addPage() {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Allocating a direct-memory page of size {} bytes. (totalSize: {} bytes)", pageSize * 1024, totalSize.get());
+            final Page newPage = new Page(this, pageSize, cellSize, MIN_POWER + groupIndex);
+            final Page[] _pages = Arrays.copyOf(pages, pages.length + 1);
+            _pages[_pages.length - 1] = newPage;
+            this.pages = _pages;
+            return newPage;
+        }
+
+        private int refill(Magazine mag, int start) {
+            final Page[] _pages = pages; // read at the beginning 'cause this may change
+            boolean canGrowForConcurrency = _pages.length < maxPagesForConcurrency;
+            for (int i = 0; i < _pages.length; i++) {
+                final Page page = _pages[(start + i) % _pages.length];
+                final int n = page.allocate(mag, magazineSize, !canGrowForConcurrency);
+                if (n > 0)
+                    return n;
+            }
+            return 0;
+        }
+
         private ByteBuffer allocate(int start) {
-            final int _numPages = numPages; // read at the beginning 'cause this may change
-            boolean canGrowForConcurrency = _numPages < maxPagesForConcurrency;
-            for (int i = 0; i < _numPages; i++) {
-                final Page page = pages.get((start + i) % _numPages);
+            final Page[] _pages = pages; // read at the beginning 'cause this may change
+            boolean canGrowForConcurrency = _pages.length < maxPagesForConcurrency;
+            for (int i = 0; i < _pages.length; i++) {
+                final Page page = _pages[(start + i) % _pages.length];
                 final ByteBuffer buffer = page.allocate(!canGrowForConcurrency);
                 if (buffer != null)
                     return buffer;
             }
             return null;
         }
+
+        /**
+         * The fraction of this group's memory not taken by allocated cells.
+         */
+        double getFragmentation() {
+            final Page[] _pages = pages;
+            long cells = 0;
+            long free = 0;
+            for (Page page : _pages) {
+                cells += page.numCells;
+                free += page.getFreeCells();
+            }
+            return cells == 0 ? 0.0 : (double) free / cells;
+        }
+
+        /**
+         * Marks the sparsest pages for evacuation, provided the rest of the pages can take in their cells.
+         *
+         * @return {@code true} if any pages were marked.
+         */
+        boolean markForEvacuation() {
+            final Page[] _pages = pages;
+            if (_pages.length < 2 || getFragmentation() < compactionThreshold)
+                return false;
+
+            final Page[] sorted = _pages.clone();
+            long free = 0;
+            for (Page page : sorted)
+                free += page.getFreeCells();
+            Arrays.sort(sorted, new Comparator<Page>() {
+                @Override
+                public int compare(Page p1, Page p2) {
+                    return Integer.compare(p2.getFreeCells(), p1.getFreeCells()); // sparsest first
+                }
+            });
+            boolean marked = false;
+            for (int i = 0; i < sorted.length - 1; i++) {
+                final Page page = sorted[i];
+                final int pageFree = page.getFreeCells();
+                final int pageLive = page.numCells - pageFree;
+                if (free - pageFree < pageLive) // the remaining pages can't take this one's cells
+                    break;
+                free -= pageFree + pageLive;
+                page.evacuating = true;
+                marked = true;
+            }
+            return marked;
+        }
+
+        /**
+         * Frees pages that have no allocated cells left, if they're being evacuated or if there are other pages to allocate from.
+         */
+        int freeEmptyPages() {
+            allocationLock.lock();
+            try {
+                final Page[] _pages = pages;
+                final List<Page> retained = new ArrayList<Page>(_pages.length);
+                int freed = 0;
+                for (Page page : _pages) {
+                    if ((page.evacuating || _pages.length - freed > 1) && page.retireIfEmpty())
+                        freed++;
+                    else {
+                        page.evacuating = false; // a page we could not empty may be allocated from again
+                        retained.add(page);
+                    }
+                }
+                if (freed > 0) {
+                    this.pages = retained.toArray(new Page[retained.size()]);
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("Freed {} pages of {}-byte cells. {} pages left.", new Object[]{freed, cellSize, retained.size()});
+                }
+                return freed;
+            } finally {
+                allocationLock.unlock();
+            }
+        }
     }
 
     private static class Page {
         private final PageGroup group;
         private final int cellSize; // in bytes
         private final ByteBuffer buffer;
+        final int numCells;
         private int head;
-        private int freeCells;
+        private volatile int freeCells;
+        volatile boolean evacuating; // no cells are allocated from an evacuating page
         private final Lock lock = new ReentrantLock();
 
         public Page(PageGroup group, int bufferKbSize, int cellSize, int power) {
@@ -192,7 +478,8 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
             setViewed(buffer, this);
             this.cellSize = cellSize;
 
-            this.freeCells = (bufferKbSize * 1024) >> power;
+            this.numCells = (bufferKbSize * 1024) >> power;
+            this.freeCells = numCells;
 
             // initialize free-list
             int prev = -1;
@@ -208,6 +495,27 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
             return group;
         }
 
+        int getFreeCells() {
+            return freeCells;
+        }
+
+        /**
+         * Stops allocations from this page if none of its cells are allocated.
+         *
+         * @return {@code true} if the page is empty and may be dropped.
+         */
+        boolean retireIfEmpty() {
+            lock.lock();
+            try {
+                if (freeCells != numCells)
+                    return false;
+                evacuating = true;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
         ByteBuffer allocate(boolean doIt) {
             if (doIt)
                 lock.lock();
@@ -217,6 +525,8 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
             final ByteBuffer slice;
             try {
                 ptr = head;
+                if (evacuating)
+                    return null;
                 if (ptr == -1) {
                     assert freeCells == 0;
                     return null;
@@ -231,6 +541,48 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
             return slice;
         }
 
+        /**
+         * Moves up to {@code n} free cells into the magazine.
+         *
+         * @return the number of cells moved.
+         */
+        int allocate(Magazine mag, int n, boolean doIt) {
+            if (doIt)
+                lock.lock();
+            else if (!lock.tryLock())
+                return 0;
+            try {
+                if (evacuating)
+                    return 0;
+                int count = 0;
+                while (count < n && head != -1) {
+                    final int ptr = head;
+                    head = buffer.getInt(ptr);
+                    freeCells--;
+                    mag.push(slice(buffer, ptr, cellSize));
+                    count++;
+                }
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void deallocate(ByteBuffer[] slices, int from, int to) {
+            lock.lock();
+            try {
+                for (int i = from; i < to; i++) {
+                    assert getPage(slices[i]) == this;
+                    final int ptr = getOffset(slices[i]);
+                    buffer.putInt(ptr, head);
+                    head = ptr;
+                    freeCells++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
         void deallocate(ByteBuffer slice) {
             assert getPage(slice) == this;
             final int ptr = getOffset(slice);
@@ -246,6 +598,60 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
         }
     }
 
+    private static class ThreadMagazines {
+        final WeakReference<Thread> thread;
+        final Magazine[] magazines;
+
+        ThreadMagazines(Thread thread, Magazine[] magazines) {
+            this.thread = new WeakReference<Thread>(thread);
+            this.magazines = magazines;
+        }
+    }
+
+    /**
+     * A thread's stack of free cells of one size.
+     */
+    private static class Magazine {
+        final ByteBuffer[] cells;
+        int count;
+
+        Magazine(int size) {
+            this.cells = new ByteBuffer[2 * size];
+        }
+
+        boolean isFull() {
+            return count == cells.length;
+        }
+
+        void push(ByteBuffer cell) {
+            cells[count++] = cell;
+        }
+
+        ByteBuffer pop() {
+            final ByteBuffer cell = cells[--count];
+            cells[count] = null;
+            return cell;
+        }
+
+        /**
+         * Returns the {@code n} cells at the bottom of the stack to their pages.
+         */
+        void drain(int n) {
+            int i = 0;
+            while (i < n) {
+                final Page page = getPage(cells[i]);
+                int j = i + 1;
+                while (j < n && getPage(cells[j]) == page)
+                    j++;
+                page.deallocate(cells, i, j);
+                i = j;
+            }
+            System.arraycopy(cells, n, cells, 0, count - n);
+            Arrays.fill(cells, count - n, count, null);
+            count -= n;
+        }
+    }
+
     private int getSizeIndex(int size) {
         for (int i = 0; i < pageGroups.length; i++) {
             if (size <= pageGroups[i].cellSize)
@@ -276,7 +682,10 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
     }
 
     private static Page getPage(ByteBuffer buffer) {
-        return (Page) getViewed((ByteBuffer) getViewed(buffer));
+        final Object viewed = getViewed(buffer);
+        if (viewed instanceof Page)
+            return (Page) viewed; // java>=9: a slice's attachment is its parent's attachment
+        return (Page) getViewed((ByteBuffer) viewed);
     }
 
     private static Object getViewed(ByteBuffer buffer) {
@@ -285,7 +694,7 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
 
     private static int getOffset(ByteBuffer slice) {
         final sun.nio.ch.DirectBuffer _slice = (sun.nio.ch.DirectBuffer) slice;
-        final sun.nio.ch.DirectBuffer parent = (sun.nio.ch.DirectBuffer) _slice.attachment(); // java<7: viewedBuffer();
+        final sun.nio.ch.DirectBuffer parent = (sun.nio.ch.DirectBuffer) getPage(slice).buffer;
         return (int) (_slice.address() - parent.address());
     }
 
@@ -0,0 +1,230 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import static co.paralleluniverse.common.logging.LoggingUtils.hex;
+import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import co.paralleluniverse.galaxy.server.OwnerLookup;
+import it.unimi.dsi.fastutil.longs.Long2ShortLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ShortMap;
+import it.unimi.dsi.fastutil.longs.Long2ShortOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The server's in-memory record of line ownership. Once a line's owner has been read from the store, this directory is authoritative
+ * for it, and ownership changes are written back to the store asynchronously, in {@link #flush() flushes}.
+ * <p>
+ * Ownership CASes follow the semantics of {@link MainMemoryDB#casOwner(long, short, short) MainMemoryDB.casOwner}.
+ * <p>
+ * The directory holds at most (about) {@code maxLines} owners. When it's full, the least recently used owners that have already been
+ * written to the store are dropped, and read from the store again when they're next needed.
+ * <p>
+ * Ownership changes are acknowledged to the nodes before they're written to the store, so if the server crashes, the changes made since
+ * the last flush are lost, and after a restart the store may name a line's previous owner. Flushes write each line under its stripe's
+ * write lock, so they only hold up the deletion of lines in the same stripe.
+ *
+ * @author pron
+ */
+class OwnerDirectory {
+    private static final Logger LOG = LoggerFactory.getLogger(OwnerDirectory.class);
+    private static final short UNKNOWN = Short.MIN_VALUE;
+    private static final int STRIPES = 64;
+    private final MainMemoryDB store;
+    private final Stripe[] stripes;
+    private final int maxLinesPerStripe;
+
+    OwnerDirectory(MainMemoryDB store, int maxLines) {
+        this.store = store;
+        this.maxLinesPerStripe = Math.max(1, maxLines / STRIPES);
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    public short getOwner(long id) {
+        final Stripe s = stripe(id);
+        synchronized (s) {
+            return owner(s, id);
+        }
+    }
+
+    public short casOwner(long id, short oldNode, short newNode) {
+        final Stripe s = stripe(id);
+        synchronized (s) {
+            final short current = owner(s, id);
+
+            if (current < 0) {
+                if (oldNode >= 0)
+                    return -1;
+            } else if (current != oldNode)
+                return current;
+
+            s.owners.put(id, newNode);
+            if (!s.dirty.containsKey(id))
+                s.dirty.put(id, current); // remember what the store holds
+            evict(s);
+            return newNode;
+        }
+    }
+
+    private short owner(Stripe s, long id) {
+        short current = s.owners.getAndMoveToLast(id);
+        if (current == UNKNOWN) {
+            current = getOwner(store, id);
+            if (current >= 0) {
+                s.owners.put(id, current);
+                evict(s);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Drops the least recently used owners that the store already holds, until the stripe is within its bound.
+     * Owners that have not yet been written to the store are kept.
+     */
+    private void evict(Stripe s) {
+        if (s.owners.size() <= maxLinesPerStripe)
+            return;
+        for (LongIterator it = s.owners.keySet().iterator(); it.hasNext() && s.owners.size() > maxLinesPerStripe;) {
+            final long id = it.nextLong();
+            if (!s.dirty.containsKey(id) && (s.flushing == null || !s.flushing.containsKey(id)))
+                it.remove();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.owners.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Forgets a line. Must be called <i>before</i> the line is deleted from the store.
+     */
+    public void remove(long id) {
+        final Stripe s = stripe(id);
+        synchronized (s.writeLock) {
+            synchronized (s) {
+                s.owners.remove(id);
+                s.dirty.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Makes the server the owner of all lines owned by the given node, in memory and in the store.
+     */
+    public void removeOwner(short node) {
+        int count = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                for (ObjectIterator<Long2ShortMap.Entry> it = s.owners.long2ShortEntrySet().fastIterator(); it.hasNext();) {
+                    final Long2ShortMap.Entry e = it.next();
+                    if (e.getShortValue() == node) {
+                        e.setValue((short) 0);
+                        if (!s.dirty.containsKey(e.getLongKey()))
+                            s.dirty.put(e.getLongKey(), node); // in case a concurrent flush writes the node back to the store
+                        count++;
+                    }
+                }
+            }
+        }
+        LOG.debug("{} cached lines owned by node {} now owned by server", count, node);
+        store.removeOwner(node); // for lines that aren't cached. Not under a lock, as it may take a while
+    }
+
+    /**
+     * Writes all ownership changes made since the last flush to the store.
+     */
+    public void flush() {
+        int count = 0;
+        for (Stripe s : stripes) {
+            final Long2ShortOpenHashMap dirty;
+            synchronized (s) {
+                if (s.dirty.isEmpty())
+                    continue;
+                dirty = s.dirty;
+                s.dirty = new Long2ShortOpenHashMap();
+                s.flushing = dirty; // not to be evicted until written
+            }
+
+            try {
+                for (ObjectIterator<Long2ShortMap.Entry> it = dirty.long2ShortEntrySet().fastIterator(); it.hasNext();) {
+                    final Long2ShortMap.Entry e = it.next();
+                    if (write(s, e.getLongKey(), e.getShortValue()))
+                        count++;
+                }
+            } finally {
+                synchronized (s) {
+                    s.flushing = null;
+                }
+            }
+        }
+        if (count > 0)
+            LOG.debug("Wrote {} owners to store", count);
+    }
+
+    private boolean write(Stripe s, long id, short stored) {
+        synchronized (s.writeLock) {
+            final short owner;
+            synchronized (s) {
+                owner = s.owners.get(id);
+            }
+            if (owner == UNKNOWN || owner == stored)
+                return false; // removed or unchanged
+
+            short expected = stored;
+            for (int i = 0; i < 3; i++) {
+                final short current = store.casOwner(id, expected, owner);
+                if (current == owner)
+                    return true;
+                expected = current;
+            }
+            LOG.warn("Could not write owner {} of line {} to store", owner, hex(id));
+            return false;
+        }
+    }
+
+    /**
+     * Reads a line's owner from a store, which is not required to implement {@link OwnerLookup}.
+     */
+    static short getOwner(MainMemoryDB store, long id) {
+        if (store instanceof OwnerLookup)
+            return ((OwnerLookup) store).getOwner(id);
+        return store.casOwner(id, (short) 0, (short) 0); // returns the current owner, and changes nothing
+    }
+
+    private Stripe stripe(long id) {
+        return stripes[(int) (id ^ (id >>> 32)) & (STRIPES - 1)];
+    }
+
+    private static class Stripe {
+        final Long2ShortLinkedOpenHashMap owners = new Long2ShortLinkedOpenHashMap(); // in LRU order
+        Long2ShortOpenHashMap dirty = new Long2ShortOpenHashMap(); // line -> owner in store
+        Long2ShortOpenHashMap flushing; // the dirty lines being written by a flush
+        final Object writeLock = new Object(); // orders write-behind with line deletions
+
+        Stripe() {
+            owners.defaultReturnValue(UNKNOWN);
+        }
+    }
+}
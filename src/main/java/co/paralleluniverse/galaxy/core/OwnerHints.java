@@ -0,0 +1,88 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+/**
+ * Remembers the last known owners of lines, including lines that are no longer (or have never been) in the cache, so that requests for
+ * them can be sent directly to their probable owner rather than broadcast.
+ * <p>
+ * The table is bounded and direct-mapped: a line's entry simply replaces whatever entry hashes to the same slot. Access is unsynchronized,
+ * so a hint may be lost or stale; like a user-supplied node hint, a wrong hint only costs a redirection by the node that receives it.
+ *
+ * @author pron
+ */
+class OwnerHints {
+    private final Entry[] entries;
+    private final int mask;
+
+    public OwnerHints(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("size must be positive: " + size);
+        final int capacity = Integer.highestOneBit(size - 1) << 1;
+        this.entries = new Entry[Math.max(capacity, 1)];
+        this.mask = entries.length - 1;
+    }
+
+    /**
+     * Returns the last known owner of a line, or {@code -1} if unknown.
+     */
+    public short get(long id) {
+        final Entry entry = entries[index(id)];
+        return entry != null && entry.id == id ? entry.owner : -1;
+    }
+
+    public void put(long id, short owner) {
+        final int index = index(id);
+        final Entry entry = entries[index];
+        if (entry == null || entry.id != id || entry.owner != owner)
+            entries[index] = new Entry(id, owner);
+    }
+
+    public void remove(long id) {
+        final int index = index(id);
+        final Entry entry = entries[index];
+        if (entry != null && entry.id == id)
+            entries[index] = null;
+    }
+
+    /**
+     * Forgets all lines owned by the given node.
+     */
+    public void removeOwner(short owner) {
+        for (int i = 0; i < entries.length; i++) {
+            final Entry entry = entries[i];
+            if (entry != null && entry.owner == owner)
+                entries[i] = null;
+        }
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    private int index(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static final class Entry {
+        final long id;
+        final short owner;
+
+        Entry(long id, short owner) {
+            this.id = id;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ * 
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *  
+ *   or (per the licensee's choosing)
+ *  
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A {@link CacheStorage} whose buffers can outlive the process, so that a restarted cache can keep the lines it had.
+ *
+ * @author pron
+ */
+public interface PersistentCacheStorage extends CacheStorage {
+    /**
+     * Records the lines whose buffers should be kept for the next run. Called once, on shutdown, after which the storage is no longer used.
+     */
+    void persist(Collection<StoredLine> lines) throws Exception;
+
+    /**
+     * Returns the lines recorded by the previous run's {@link #persist(Collection) persist}, whose buffers are now allocated. Called once,
+     * on startup, before any buffer is allocated.
+     */
+    Collection<StoredLine> recover() throws Exception;
+
+    final class StoredLine {
+        public final long id;
+        public final long version;
+        public final ByteBuffer data;
+
+        public StoredLine(long id, long version, ByteBuffer data) {
+            this.id = id;
+            this.version = version;
+            this.data = data;
+        }
+    }
+}
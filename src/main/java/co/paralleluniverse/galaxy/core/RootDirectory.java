@@ -0,0 +1,509 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.common.io.Persistable;
+import static co.paralleluniverse.common.logging.LoggingUtils.hex;
+import co.paralleluniverse.galaxy.AbstractCacheListener;
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.TimeoutException;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps root names to root ids with an extendible hash table kept in the grid.
+ * <p>
+ * The directory is a single reserved line holding a global depth {@code g} and {@code 2^g} bucket ids; a root name is hashed, and the low
+ * {@code g} bits of the hash select its bucket. Each bucket is an ordinary line holding a local depth {@code d} and the {@code d}-bit hash
+ * prefix shared by all of its entries. A bucket that overflows is split in two, doubling the directory if {@code d == g}. Once the directory
+ * reaches the maximum item size, full buckets are chained instead.
+ * <p>
+ * Finding an existing root takes a shared get of the directory (which is decoded once and kept until a {@link AbstractCacheListener listener}
+ * on the directory line reports it changed) and a shared get of one bucket, and the result is then remembered locally, as roots are never
+ * removed. A bucket checks that it covers the name's hash prefix, so a stale copy of the directory is detected and re-read. Creating a root
+ * only takes the bucket exclusively; the directory is taken exclusively only to split a bucket. Locks are always acquired directory first.
+ * <p>
+ * Roots created by the old {@link StringRootManager} chains are looked up (when the cluster has a server, as only then do they survive a
+ * restart) before a new root is created, and copied into the directory.
+ *
+ * @author pron
+ */
+class RootDirectory {
+    private static final Logger LOG = LoggerFactory.getLogger(RootDirectory.class);
+    static final long DIRECTORY_ID = Cache.MAX_RESERVED_REF_ID; // can't collide with StringRootManager's int hash codes
+    private static final HashFunction HASH = Hashing.murmur3_32();
+    private final StoreImpl store;
+    private final Cluster cluster;
+    private final RootLocker rootLocker;
+    private final StringRootManager legacy;
+    private final ConcurrentMap<String, Long> roots = new ConcurrentHashMap<String, Long>();
+    private volatile Directory directory;
+    private volatile boolean located;
+
+    public RootDirectory(StoreImpl store, Cluster cluster) {
+        this.store = store;
+        this.cluster = cluster;
+        this.rootLocker = (RootLocker) cluster;
+        this.legacy = new StringRootManager(store, cluster);
+    }
+
+    public long get(String root, Transaction txn) throws TimeoutException {
+        return get(root, -1, txn);
+    }
+
+    public long get(String root, long ref, Transaction txn) throws TimeoutException {
+        final Long cached = roots.get(root);
+        if (cached != null)
+            return cached;
+
+        final Entry entry = new Entry(root, -1);
+        if (Bucket.HEADER_SIZE + entry.size() > store.getMaxItemSize())
+            throw new IllegalArgumentException("Root name " + root + " is too long");
+
+        long id = lookup(entry);
+        if (id < 0 && cluster.hasServer()) {
+            final long legacyId = legacy.find(root);
+            if (legacyId >= 0) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Found root for {} in a legacy chain: {}. Copying it into the directory.", root, hex(legacyId));
+                id = insert(entry, legacyId, null);
+            }
+        }
+        if (id < 0)
+            id = insert(entry, ref, txn);
+
+        roots.putIfAbsent(root, id);
+        return id;
+    }
+
+    private long lookup(Entry entry) throws TimeoutException {
+        for (;;) {
+            final Directory dir = directory();
+            if (dir.isEmpty())
+                return -1;
+
+            long bucketId = dir.bucketFor(entry.hash);
+            Bucket bucket = new Bucket();
+            store.get1(bucketId, bucket);
+            if (!bucket.covers(entry.hash)) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Bucket {} does not cover {}. Directory is stale.", hex(bucketId), entry.str);
+                directory = null;
+                continue;
+            }
+
+            for (;;) {
+                final long id = bucket.get(entry.str);
+                if (id >= 0 || bucket.nextRef < 0)
+                    return id;
+                bucketId = bucket.nextRef;
+                bucket = new Bucket();
+                store.get1(bucketId, bucket);
+            }
+        }
+    }
+
+    private long insert(Entry entry, long ref, Transaction txn) throws TimeoutException {
+        for (;;) {
+            final Directory dir = directory();
+            if (dir.isEmpty()) {
+                createDirectory();
+                continue;
+            }
+
+            final long bucketId = dir.bucketFor(entry.hash);
+            final Bucket bucket = new Bucket();
+            store.getx1(bucketId, bucket, null);
+            try {
+                if (!bucket.covers(entry.hash)) {
+                    directory = null;
+                    continue;
+                }
+                if (bucket.nextRef >= 0 || (!bucket.fits(entry, store.getMaxItemSize()) && bucket.depth >= maxDepth()))
+                    return insertIntoChain(bucketId, bucket, entry, ref, txn);
+
+                final long id = bucket.get(entry.str);
+                if (id >= 0)
+                    return id;
+                if (bucket.fits(entry, store.getMaxItemSize())) {
+                    final long myRef = newRoot(ref, txn);
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("New root for {} is {}. Writing into bucket {}.", new Object[]{entry.str, hex(myRef), hex(bucketId)});
+                    bucket.put(new Entry(entry.str, myRef));
+                    store.set1(bucketId, bucket, null);
+                    return myRef;
+                }
+            } finally {
+                store.release(bucketId);
+            }
+            split(entry);
+        }
+    }
+
+    private long insertIntoChain(long bucketId, Bucket bucket, Entry entry, long ref, Transaction txn) throws TimeoutException {
+        // the first page is held exclusively by the caller, so inserters into this chain are serialized
+        final List<Long> pinned = new ArrayList<Long>();
+        try {
+            long pageId = bucketId;
+            Bucket page = bucket;
+            for (;;) {
+                final long id = page.get(entry.str);
+                if (id >= 0)
+                    return id;
+                if (page.nextRef < 0)
+                    break;
+                pageId = page.nextRef;
+                page = new Bucket();
+                store.getx1(pageId, page, null);
+                pinned.add(pageId);
+            }
+
+            final long myRef = newRoot(ref, txn);
+            if (page.fits(entry, store.getMaxItemSize()))
+                page.put(new Entry(entry.str, myRef));
+            else {
+                final Bucket overflow = new Bucket(page.prefix, page.depth);
+                overflow.put(new Entry(entry.str, myRef));
+                page.nextRef = store.put(overflow, null);
+            }
+            if (LOG.isDebugEnabled())
+                LOG.debug("New root for {} is {}. Writing into chain of bucket {}.", new Object[]{entry.str, hex(myRef), hex(bucketId)});
+            store.set1(pageId, page, null);
+            return myRef;
+        } finally {
+            for (long id : pinned)
+                store.release(id);
+        }
+    }
+
+    private void split(Entry entry) throws TimeoutException {
+        final Directory dir = new Directory();
+        store.getx1(DIRECTORY_ID, dir, null);
+        try {
+            final long bucketId = dir.bucketFor(entry.hash);
+            final Bucket bucket = new Bucket();
+            store.getx1(bucketId, bucket, null);
+            try {
+                if (bucket.nextRef >= 0 || bucket.fits(entry, store.getMaxItemSize()))
+                    return; // someone else got here first
+                if (bucket.depth == dir.depth) {
+                    if (dir.depth >= maxDepth())
+                        return;
+                    dir.grow();
+                }
+                final Bucket sibling = bucket.split();
+                final long siblingId = store.put(sibling, null);
+                dir.set(sibling.prefix, sibling.depth, siblingId);
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Split bucket {} into {} (depth {}, global depth {}).", new Object[]{hex(bucketId), hex(siblingId), sibling.depth, dir.depth});
+                store.set1(bucketId, bucket, null);
+                store.set1(DIRECTORY_ID, dir, null);
+                directory = dir;
+            } finally {
+                store.release(bucketId);
+            }
+        } finally {
+            store.release(DIRECTORY_ID);
+        }
+    }
+
+    private void createDirectory() throws TimeoutException {
+        final Directory dir = new Directory();
+        store.getx1(DIRECTORY_ID, dir, null);
+        try {
+            if (dir.isEmpty()) {
+                final long bucketId = store.put(new Bucket(), null);
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Creating root directory with bucket {}.", hex(bucketId));
+                dir.create(bucketId);
+                store.set1(DIRECTORY_ID, dir, null);
+            }
+            directory = dir;
+        } finally {
+            store.release(DIRECTORY_ID);
+        }
+    }
+
+    private long newRoot(long ref, Transaction txn) throws TimeoutException {
+        final long myRef = ref > 0 ? ref : store.put(new byte[0], null);
+        if (txn != null)
+            txn.add(myRef);
+        return myRef;
+    }
+
+    private Directory directory() throws TimeoutException {
+        Directory dir = directory;
+        if (dir != null)
+            return dir;
+
+        store.setListenerIfAbsent(DIRECTORY_ID, directoryListener);
+        dir = new Directory();
+        if (located)
+            store.get1(DIRECTORY_ID, dir);
+        else {
+            if (cluster.hasServer()) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Getting root directory from server.");
+                store.get1(DIRECTORY_ID, Comm.SERVER, dir);
+            } else {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Locking root directory and broadcasting GET.");
+                final Object lock = rootLocker.lockRoot((int) DIRECTORY_ID);
+                try {
+                    store.get1(DIRECTORY_ID, dir);
+                } finally {
+                    rootLocker.unlockRoot(lock);
+                }
+            }
+            located = true;
+        }
+        this.directory = dir;
+        return dir;
+    }
+
+    private int maxDepth() {
+        int depth = 0;
+        while (Directory.size(depth + 1) <= store.getMaxItemSize())
+            depth++;
+        return depth;
+    }
+    private final AbstractCacheListener directoryListener = new AbstractCacheListener() {
+        @Override
+        public void invalidated(co.paralleluniverse.galaxy.Cache cache, long id) {
+            directory = null;
+        }
+
+        @Override
+        public void received(co.paralleluniverse.galaxy.Cache cache, long id, long version, ByteBuffer data) {
+            directory = null;
+        }
+
+        @Override
+        public void evicted(co.paralleluniverse.galaxy.Cache cache, long id) {
+            directory = null;
+        }
+
+        @Override
+        public void killed(co.paralleluniverse.galaxy.Cache cache, long id) {
+            directory = null;
+        }
+    };
+
+    private static int mask(int depth) {
+        return (1 << depth) - 1;
+    }
+
+    static class Directory implements Persistable {
+        short depth;
+        long[] buckets; // null if the directory has not been created
+
+        static int size(int depth) {
+            return 2 + 8 * (1 << depth);
+        }
+
+        boolean isEmpty() {
+            return buckets == null;
+        }
+
+        long bucketFor(int hash) {
+            return buckets[hash & mask(depth)];
+        }
+
+        void create(long bucket) {
+            this.depth = 0;
+            this.buckets = new long[]{bucket};
+        }
+
+        void grow() {
+            final int n = buckets.length;
+            buckets = Arrays.copyOf(buckets, 2 * n);
+            System.arraycopy(buckets, 0, buckets, n, n);
+            depth++;
+        }
+
+        void set(int prefix, int localDepth, long bucket) {
+            final int mask = mask(localDepth);
+            for (int i = 0; i < buckets.length; i++) {
+                if ((i & mask) == prefix)
+                    buckets[i] = bucket;
+            }
+        }
+
+        @Override
+        public int size() {
+            return buckets != null ? size(depth) : 0;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.putShort(depth);
+            for (long bucket : buckets)
+                buffer.putLong(bucket);
+        }
+
+        @Override
+        public void read(ByteBuffer buffer) {
+            if (buffer == null || buffer.remaining() < 2) {
+                depth = 0;
+                buckets = null;
+                return;
+            }
+            depth = buffer.getShort();
+            buckets = new long[1 << depth];
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = buffer.getLong();
+        }
+    }
+
+    static class Bucket implements Persistable {
+        static final int HEADER_SIZE = 4 + 2 + 8 + 2;
+        int prefix;
+        short depth;
+        long nextRef = -1;
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private int size = HEADER_SIZE;
+
+        Bucket(int prefix, int depth) {
+            this.prefix = prefix;
+            this.depth = (short) depth;
+        }
+
+        Bucket() {
+            this(0, 0);
+        }
+
+        boolean covers(int hash) {
+            return (hash & mask(depth)) == prefix;
+        }
+
+        boolean fits(Entry entry, int maxSize) {
+            return size + entry.size() <= maxSize;
+        }
+
+        long get(String str) {
+            for (Entry entry : entries) {
+                if (entry.str.equals(str))
+                    return entry.ref;
+            }
+            return -1;
+        }
+
+        void put(Entry entry) {
+            entries.add(entry);
+            size += entry.size();
+        }
+
+        /**
+         * Moves the entries whose next hash bit is set into a new bucket.
+         */
+        Bucket split() {
+            final int bit = 1 << depth;
+            final Bucket sibling = new Bucket(prefix | bit, depth + 1);
+            depth++;
+            for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+                final Entry entry = it.next();
+                if ((entry.hash & bit) != 0) {
+                    it.remove();
+                    size -= entry.size();
+                    sibling.put(entry);
+                }
+            }
+            return sibling;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.putInt(prefix);
+            buffer.putShort(depth);
+            buffer.putLong(nextRef);
+            buffer.putShort((short) entries.size());
+            for (Entry entry : entries)
+                entry.write(buffer);
+        }
+
+        @Override
+        public void read(ByteBuffer buffer) {
+            entries.clear();
+            size = HEADER_SIZE;
+            if (buffer == null || buffer.remaining() < HEADER_SIZE) {
+                prefix = 0;
+                depth = 0;
+                nextRef = -1;
+                return;
+            }
+            prefix = buffer.getInt();
+            depth = buffer.getShort();
+            nextRef = buffer.getLong();
+            final short numEntries = buffer.getShort();
+            for (int i = 0; i < numEntries; i++) {
+                final Entry entry = new Entry();
+                entry.read(buffer);
+                put(entry);
+            }
+        }
+    }
+
+    static class Entry implements Persistable {
+        String str;
+        byte[] chars;
+        int hash;
+        long ref;
+
+        Entry(String str, long ref) {
+            this.str = str;
+            this.chars = str.getBytes(Charsets.UTF_8);
+            this.hash = HASH.hashBytes(chars).asInt();
+            this.ref = ref;
+        }
+
+        Entry() {
+        }
+
+        @Override
+        public int size() {
+            return 2 + chars.length + 8;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.putShort((short) chars.length);
+            buffer.put(chars);
+            buffer.putLong(ref);
+        }
+
+        @Override
+        public void read(ByteBuffer buffer) {
+            chars = new byte[buffer.getShort()];
+            buffer.get(chars);
+            str = new String(chars, Charsets.UTF_8);
+            hash = HASH.hashBytes(chars).asInt();
+            ref = buffer.getLong();
+        }
+    }
+}
@@ -36,11 +36,11 @@ import co.paralleluniverse.galaxy.core.Op.Type;
  */
 public class StoreImpl implements Store {
     final Cache cache;
-    private final StringRootManager rootManager;
+    private final RootDirectory rootManager;
 
     public StoreImpl(Cache cache) {
         this.cache = cache;
-        this.rootManager = new StringRootManager(this, cache.getCluster());
+        this.rootManager = new RootDirectory(this, cache.getCluster());
     }
 
     private static Persistable nonNullPersistable(Persistable object) {
@@ -50,6 +50,15 @@ class StringRootManager {
         return new StringRootPageHandler(root).find(txn, ref);
     }
 
+    /**
+     * Looks up a root without creating it.
+     *
+     * @return The root's id, or {@code -1} if not found.
+     */
+    public long find(String root) throws TimeoutException {
+        return new StringRootPageHandler(root).lookup();
+    }
+
     private class StringRootPageHandler implements Persistable {
         private final String str;
         private short size;
@@ -60,7 +69,7 @@ class StringRootManager {
             this.str = str;
         }
 
-        public long find(Transaction txn, long rootRef) throws TimeoutException {
+        public long lookup() throws TimeoutException {
             ref = str.hashCode();
             result = -1;
 
@@ -69,7 +78,11 @@ class StringRootManager {
             initialGet();
             while (result < 0 && ref >= 0)
                 store.get1(ref, this);
-            if (result >= 0)
+            return result;
+        }
+
+        public long find(Transaction txn, long rootRef) throws TimeoutException {
+            if (lookup() >= 0)
                 return result;
 
             // start over!
@@ -1,13 +1,13 @@
 /*
  * Galaxy
  * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
- * 
+ *
  * This program and the accompanying materials are dual-licensed under
  * either the terms of the Eclipse Public License v1.0 as published by
  * the Eclipse Foundation
- *  
+ *
  *   or (per the licensee's choosing)
- *  
+ *
  * under the terms of the GNU Lesser General Public License version 3.0
  * as published by the Free Software Foundation.
  */
@@ -15,9 +15,14 @@ package co.paralleluniverse.galaxy.jdbc;
 
 import static co.paralleluniverse.common.logging.LoggingUtils.hex;
 import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.server.AllocationIndex;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import co.paralleluniverse.galaxy.server.OwnerLookup;
 import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
 import java.beans.ConstructorProperties;
 import java.io.PrintStream;
 import java.sql.Connection;
@@ -27,18 +32,29 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
  *
  * @author pron
  */
-public class SQLDB extends Component implements MainMemoryDB {
+public class SQLDB extends Component implements MainMemoryDB, OwnerLookup {
     private static final Logger LOG = LoggerFactory.getLogger(SQLDB.class);
+    // upsert parameters
+    private static final int ID = 0;
+    private static final int OWNER = 1;
+    private static final int VERSION = 2;
+    private static final int DATA = 3;
+    private static final int REVOKE_BATCH_SIZE = 1000;
     private final DataSource dataSource;
     private String username;
     private String password;
@@ -47,24 +63,20 @@ public class SQLDB extends Component implements MainMemoryDB {
     private String table;
     private String allocationTableName = "allocation";
     private String allocTable;
+    private String endColumn = "end";
     private String bigintType;
     private String smallintType;
     private String varbinaryType;
     private int maxItemSize = 1024;
     private boolean useUpdateableCursors = false;
-    private Connection conn;
-    private PreparedStatement casOwner;
-    private PreparedStatement getOwner;
-    private PreparedStatement deleteOwner;
-    private PreparedStatement insertLine;
-    private PreparedStatement setLine;
-    private PreparedStatement getLine;
-    private PreparedStatement deleteLine;
-    private PreparedStatement selectAll;
-    private PreparedStatement getMaxId;
-    private PreparedStatement addAllocation;
-    private PreparedStatement getAllocation;
-    private static final Object TRANSACTION = new Object();
+    private boolean useUpsert = true;
+    private int poolSize = 1;
+    private String upsertSql;
+    private int[] upsertParams;
+    private BlockingQueue<Session> pool;
+    private final List<Session> sessions = new ArrayList<Session>();
+    private final AllocationIndex allocations = new AllocationIndex();
+    private final ThreadLocal<Session> transaction = new ThreadLocal<Session>(); // the session of the transaction begun by the current thread
 
     @ConstructorProperties({"name", "dataSource"})
     public SQLDB(String name, DataSource dataSource) {
@@ -107,6 +119,33 @@ public class SQLDB extends Component implements MainMemoryDB {
         this.useUpdateableCursors = useUpdateableCursors;
     }
 
+    /**
+     * Sets whether writes use the database's native upsert statement, if it is known. Otherwise, a batch of updates is followed by a
+     * batch of inserts for the lines that were not found.
+     */
+    public void setUseUpsert(boolean useUpsert) {
+        assertDuringInitialization();
+        this.useUpsert = useUpsert;
+    }
+
+    @ManagedAttribute
+    public boolean isUseUpsert() {
+        return useUpsert;
+    }
+
+    /**
+     * Sets the number of connections, which allows as many transactions to execute concurrently.
+     */
+    public void setPoolSize(int poolSize) {
+        assertDuringInitialization();
+        this.poolSize = poolSize;
+    }
+
+    @ManagedAttribute
+    public int getPoolSize() {
+        return poolSize;
+    }
+
     public void setBigintType(String bigintType) {
         assertDuringInitialization();
         this.bigintType = bigintType;
@@ -127,24 +166,40 @@ public class SQLDB extends Component implements MainMemoryDB {
         super.init();
 
         LOG.info("Connecting to database {}", dataSource);
-        if (username != null)
-            conn = dataSource.getConnection(username, password);
-        else
-            conn = dataSource.getConnection();
+        final Connection conn = connect();
         LOG.info("Connection successful");
 
-        initDbTypes();
+        initDbTypes(conn);
 
         this.table = schema + "." + tableName;
         this.allocTable = schema + "." + allocationTableName;
-        initTable();
-        initPreparedStatements();
+        final String quote = conn.getMetaData().getIdentifierQuoteString();
+        if (quote != null && !quote.trim().isEmpty())
+            this.endColumn = quote + "end" + quote; // END is a reserved word in some databases
+        initTable(conn);
+        if (useUpsert)
+            initUpsert(conn);
+        loadAllocations(conn);
 
-        conn.setAutoCommit(false);
-        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        this.pool = new ArrayBlockingQueue<Session>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            final Session session = new Session(i == 0 ? conn : connect());
+            sessions.add(session);
+            pool.add(session);
+        }
+        LOG.info("Opened {} connections", poolSize);
     }
 
-    private void initTable() throws SQLException {
+    private Connection connect() throws SQLException {
+        final Connection conn;
+        if (username != null)
+            conn = dataSource.getConnection(username, password);
+        else
+            conn = dataSource.getConnection();
+        return conn;
+    }
+
+    private void initTable(Connection conn) throws SQLException {
         try {
             try (Statement stmt = conn.createStatement()) {
                 String createTable = "CREATE TABLE " + table + " "
@@ -156,10 +211,15 @@ public class SQLDB extends Component implements MainMemoryDB {
                 LOG.debug("Creating table: {}", createTable);
                 stmt.executeUpdate(createTable);
                 stmt.executeUpdate("CREATE INDEX owner_index ON " + table + "(owner)");
-
-                createTable = "CREATE TABLE " + allocTable + " "
+            }
+        } catch (SQLException e) {
+            LOG.debug("SQLException caught: {} - {}", e.getClass().getName(), e.getMessage());
+        }
+        try {
+            try (Statement stmt = conn.createStatement()) {
+                final String createTable = "CREATE TABLE " + allocTable + " "
                         + "(id " + bigintType + " PRIMARY KEY, "
-                        + "end " + bigintType + " NOT NULL, "
+                        + endColumn + " " + bigintType + " NOT NULL, "
                         + "owner " + smallintType + " NOT NULL "
                         + ")";
                 LOG.debug("Creating table: {}", createTable);
@@ -170,25 +230,45 @@ public class SQLDB extends Component implements MainMemoryDB {
         }
     }
 
-    private void initPreparedStatements() throws SQLException {
-        getMaxId();
-        dump(null);
-        insert(0, (short) 0, 0, null, null);
-        read(0);
-        write(0, (short) 0, 0, null, null);
-        delete(0, null);
-        removeOwner((short) 0);
-        if (useUpdateableCursors)
-            casOwnerUpdateableCursor(0, (short) 0, (short) 0);
-        else {
-            casOwnerUpdate(0, (short) 0, (short) 0);
-            getOwner(0);
+    private void loadAllocations(Connection conn) throws SQLException {
+        final List<AllocationIndex.Allocation> loaded = new ArrayList<AllocationIndex.Allocation>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT id, " + endColumn + ", owner FROM " + allocTable)) {
+            while (rs.next())
+                loaded.add(new AllocationIndex.Allocation(rs.getLong(1), rs.getLong(2) - 1, rs.getShort(3)));
+        }
+        allocations.addAll(loaded);
+        conn.commit();
+        LOG.info("Loaded {} allocations", allocations.size());
+    }
+
+    private void initUpsert(Connection conn) throws SQLException {
+        // an upsert sets the version and data of an existing line, but leaves its owner alone
+        final String product = conn.getMetaData().getDatabaseProductName();
+        if (product.contains("MySQL") || product.contains("MariaDB")) {
+            upsertSql = "INSERT INTO " + table + " (id, owner, version, data) VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE version = VALUES(version), data = VALUES(data)";
+            upsertParams = new int[]{ID, OWNER, VERSION, DATA};
+        } else if (product.contains("PostgreSQL")) {
+            upsertSql = "INSERT INTO " + table + " (id, owner, version, data) VALUES (?, ?, ?, ?) ON CONFLICT (id) DO UPDATE SET version = EXCLUDED.version, data = EXCLUDED.data";
+            upsertParams = new int[]{ID, OWNER, VERSION, DATA};
+        } else if (product.contains("Derby") || product.contains("DB2")) {
+            upsertSql = "MERGE INTO " + table + " t USING SYSIBM.SYSDUMMY1 ON t.id = ? "
+                    + "WHEN MATCHED THEN UPDATE SET version = ?, data = ? "
+                    + "WHEN NOT MATCHED THEN INSERT (id, owner, version, data) VALUES (?, ?, ?, ?)";
+            upsertParams = new int[]{ID, VERSION, DATA, ID, OWNER, VERSION, DATA};
+        }
+        if (upsertSql != null) {
+            try {
+                conn.prepareStatement(upsertSql).close();
+            } catch (SQLException e) {
+                LOG.info("Database does not support upsert statement: {}", e.getMessage());
+                upsertSql = null;
+            }
         }
-        allocate((short) 0, 0, 0);
-        findAllocation(0);
+        LOG.info("{} upsert statement", upsertSql != null ? "Using" : "Not using");
     }
 
-    private void initDbTypes() throws SQLException {
+    private void initDbTypes(Connection conn) throws SQLException {
         if (bigintType == null || smallintType == null || varbinaryType == null) {
             final Map<Integer, String> types = new HashMap<Integer, String>();
             final DatabaseMetaData dmd = conn.getMetaData();
@@ -223,7 +303,8 @@ public class SQLDB extends Component implements MainMemoryDB {
     @Override
     public void close() {
         try {
-            conn.close();
+            for (Session session : sessions)
+                session.conn.close();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
         }
@@ -231,78 +312,85 @@ public class SQLDB extends Component implements MainMemoryDB {
 
     @Override
     public Object beginTransaction() {
-        return TRANSACTION;
+        final Session session = acquire();
+        transaction.set(session);
+        return session;
     }
 
     @Override
     public void commit(Object txn) {
+        final Session session = (Session) txn;
         try {
             LOG.debug("COMMIT");
-            assert txn == TRANSACTION;
-            conn.commit();
+            session.flush();
+            session.conn.commit();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            endTransaction(session);
         }
     }
 
     @Override
     public void abort(Object txn) {
+        final Session session = (Session) txn;
         try {
             LOG.debug("ROLLBACK");
-            assert txn == TRANSACTION;
-            conn.rollback();
+            session.clearPending();
+            session.conn.rollback();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            endTransaction(session);
         }
     }
 
     @Override
     public void write(long id, short owner, long version, byte[] data, Object txn) {
-        if (setLine == null) {
-            setLine = prepareStatement("UPDATE " + table + " SET version = ?, data = ? WHERE id = ? AND owner = ?");
-            return;
-        }
-
         if (LOG.isDebugEnabled())
-            LOG.debug("WRITE " + id + " ver: " + version + " data: (" + data.length + " bytes)");
+            LOG.debug("WRITE " + id + " ver: " + version + " data: " + (data != null ? "(" + data.length + " bytes)" : "null"));
 
-        if (data.length > maxItemSize) {
+        if (data != null && data.length > maxItemSize) {
             LOG.error("Data length is {}, which is bigger than maxItemSize ({})", data.length, maxItemSize);
             throw new RuntimeException("Data too big.");
         }
+        if (txn != null) {
+            ((Session) txn).addWrite(id, owner, version, data); // executed in a batch when the transaction commits
+            return;
+        }
+
+        final Session session = acquire();
         try {
-            setLine.setLong(3, id);
-            setLine.setShort(4, owner);
-            setLine.setLong(1, version);
-            setLine.setBytes(2, data);
-            if (setLine.executeUpdate() < 1) {
-                LOG.debug("Setting line {} failed. Inserting.", id);
-                insert(id, (short) owner, version, data, txn);
-            } else if (txn == null) // insert() commits
-                conn.commit();
+            session.addWrite(id, owner, version, data);
+            session.flush();
+            commitUnlessInTransaction(session);
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(session);
         }
     }
 
     @Override
     public MainMemoryEntry read(long id) {
-        if (getLine == null) {
-            getLine = prepareStatement("SELECT version, data FROM " + table + "  WHERE id = ?");
-            return null;
-        }
-
+        final Session session = acquire();
         try {
-            getLine.setLong(1, id);
-            try (ResultSet rs = getLine.executeQuery()) {
-                rs.next();
-                final long version = rs.getLong(1);
-                final byte[] data = rs.getBytes(2);
-                conn.commit();
-                return new MainMemoryEntry(version, data);
+            session.flush();
+            session.getLine.setLong(1, id);
+            try (ResultSet rs = session.getLine.executeQuery()) {
+                MainMemoryEntry entry = null;
+                if (rs.next()) {
+                    final long version = rs.getLong(1);
+                    final byte[] data = rs.getBytes(2);
+                    entry = new MainMemoryEntry(version, data);
+                }
+                commitUnlessInTransaction(session);
+                return entry;
             }
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(session);
         }
     }
 
@@ -311,235 +399,372 @@ public class SQLDB extends Component implements MainMemoryDB {
         if (LOG.isDebugEnabled())
             LOG.debug("CAS owner of {}: {} -> {}", new Object[]{id, oldNode, newNode});
 
+        final Session session = acquire();
         try {
+            session.flush();
             if (oldNode < 0) {
                 try {
-                    insert(id, newNode, -1, null, null);
+                    session.insert(id, newNode, -1, null);
+                    commitUnlessInTransaction(session);
                     LOG.debug("CAS owner succeeded (insert).");
                     return newNode;
                 } catch (SQLException e) {
                 }
                 LOG.debug("CAS owner failed (insert).");
-                return getOwner(id);
+                return session.selectOwner(id);
             } else {
                 if (useUpdateableCursors)
-                    return casOwnerUpdateableCursor(id, oldNode, newNode);
+                    return session.casOwnerUpdateableCursor(id, oldNode, newNode);
                 else
-                    return casOwnerUpdate(id, oldNode, newNode);
+                    return session.casOwnerUpdate(id, oldNode, newNode);
             }
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(session);
         }
     }
 
-    private short casOwnerUpdateableCursor(long id, short oldNode, short newNode) throws SQLException {
-        if (casOwner == null) {
-            casOwner = prepareStatement("SELECT owner FROM " + table + " WHERE id = ? FOR UPDATE", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
-            return 0;
-        }
-
-        final short res;
-        casOwner.setLong(1, id);
-        try (ResultSet rs = casOwner.executeQuery()) {
-            if (rs.next()) {
-                final short currentOwner = rs.getShort(1);
-                if (currentOwner != oldNode) {
-                    LOG.debug("CAS owner failed (UC).");
-                    res = currentOwner;
-                } else {
-                    rs.updateShort(1, newNode);
-                    LOG.debug("CAS owner succeeded (UC).");
-                    res = newNode;
-                }
-                conn.commit();
-                return res;
-            } else {
-                LOG.debug("CAS owner failed (UC).");
-                return -1;
-            }
-        }
-    }
-
-    private short casOwnerUpdate(long id, short oldNode, short newNode) throws SQLException {
-        if (casOwner == null) {
-            casOwner = prepareStatement("UPDATE " + table + " SET owner = ? WHERE id = ? AND owner = ?");
-            return 0;
-        }
-
-        final short res;
-        casOwner.setLong(2, id);
-        casOwner.setShort(3, oldNode);
-        casOwner.setShort(1, newNode);
-        int rows = casOwner.executeUpdate();
-        if (rows > 0) {
-            LOG.debug("CAS owner succeeded.");
-            res = newNode;
-        } else {
-            LOG.debug("CAS owner failed.");
-            res = getOwner(id);
-        }
-        conn.commit();
-        return res;
-    }
-
-    private short getOwner(long id) throws SQLException {
-        if (getOwner == null) {
-            getOwner = conn.prepareStatement("SELECT owner FROM " + table + " WHERE id = ?");
-            return 0;
-        }
-
-        getOwner.setLong(1, id);
-        try (ResultSet rs = getOwner.executeQuery()) {
-            final short res = rs.next() ? rs.getShort(1) : (short) -1;
-            conn.commit();
-            return res;
-        }
-    }
-
-    private void insert(long id, short owner, long version, byte[] data, Object txn) throws SQLException {
-        if (insertLine == null) {
-            insertLine = prepareStatement("INSERT INTO " + table + " (id, owner, version, data) VALUES (?, ?, ?, ?)");
-            return;
+    @Override
+    public short getOwner(long id) {
+        final Session session = acquire();
+        try {
+            session.flush();
+            return session.selectOwner(id);
+        } catch (SQLException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            release(session);
         }
-
-        insertLine.setLong(1, id);
-        insertLine.setShort(2, owner);
-        insertLine.setLong(3, version);
-        insertLine.setBytes(4, data);
-        insertLine.executeUpdate();
-
-        if (txn == null)
-            conn.commit();
     }
 
     @Override
     public void delete(long id, Object txn) {
-        if (deleteLine == null) {
-            deleteLine = prepareStatement("DELETE FROM " + table + " WHERE id = ?");
-            return;
-        }
+        final Session session = txn != null ? (Session) txn : acquire();
         try {
-            deleteLine.setLong(1, id);
-            deleteLine.executeUpdate();
+            session.flush();
+            session.deleteLine.setLong(1, id);
+            session.deleteLine.executeUpdate();
             if (txn == null)
-                conn.commit();
+                commitUnlessInTransaction(session);
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            if (txn == null)
+                release(session);
         }
     }
 
     @Override
     public void removeOwner(short node) {
-        if (deleteOwner == null) {
-            deleteOwner = prepareStatement("UPDATE " + table + " SET owner = 0 WHERE owner = ?");
-            return;
-        }
-
         try {
-            deleteOwner.setShort(1, node);
-            deleteOwner.executeUpdate();
-            conn.commit();
+            final LongArrayList lines = selectOwned(node);
+            // lines are updated in small transactions, and the connection is returned to the pool in between, so as not to lock all
+            // of them at once, nor to hold up other operations
+            for (int start = 0; start < lines.size(); start += REVOKE_BATCH_SIZE)
+                revokeOwner(node, lines, start, Math.min(start + REVOKE_BATCH_SIZE, lines.size()));
+            LOG.debug("Owner of {} lines: {} -> 0", lines.size(), node);
         } catch (SQLException e) {
             throw Throwables.propagate(e);
         }
     }
 
-    @Override
-    public void allocate(short owner, long start, int num) {
-        if (owner <= 0) {
-            addAllocation = prepareStatement("INSERT INTO " + allocTable + " (id, end, owner) VALUES (?, ?, ?)");
-            return;
+    private LongArrayList selectOwned(short node) throws SQLException {
+        final Session session = acquire();
+        try {
+            session.flush();
+            final LongArrayList lines = new LongArrayList();
+            session.selectOwned.setShort(1, node);
+            try (ResultSet rs = session.selectOwned.executeQuery()) {
+                while (rs.next())
+                    lines.add(rs.getLong(1));
+            }
+            commitUnlessInTransaction(session);
+            return lines;
+        } finally {
+            release(session);
         }
+    }
 
+    private void revokeOwner(short node, LongArrayList lines, int from, int to) throws SQLException {
+        final Session session = acquire();
         try {
-            addAllocation.setLong(1, start);
-            addAllocation.setLong(2, start + num);
-            addAllocation.setShort(3, owner);
-            addAllocation.executeUpdate();
-            conn.commit();
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+            session.flush();
+            for (int i = from; i < to; i++) {
+                session.revokeOwner.setLong(1, lines.getLong(i));
+                session.revokeOwner.setShort(2, node);
+                session.revokeOwner.addBatch();
+            }
+            session.revokeOwner.executeBatch();
+            commitUnlessInTransaction(session);
+        } finally {
+            release(session);
         }
     }
 
     @Override
-    public short findAllocation(long ref) {
-        if (ref <= 0) {
-            getAllocation = prepareStatement("SELECT owner FROM " + allocTable + " WHERE id <= ? AND end > ?");
-            return 0;
-        }
-
+    public void allocate(short owner, long start, int num) {
+        final Session session = acquire();
         try {
-            getAllocation.setLong(1, ref);
-            getAllocation.setLong(2, ref);
-            try (ResultSet rs = getAllocation.executeQuery()) {
-                final short res = rs.next() ? rs.getShort(1) : -1;
-                conn.commit();
-                return res;
-            }
+            session.addAllocation.setLong(1, start);
+            session.addAllocation.setLong(2, start + num);
+            session.addAllocation.setShort(3, owner);
+            session.addAllocation.executeUpdate();
+            commitUnlessInTransaction(session);
+            allocations.add(start, start + num - 1, owner);
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(session);
         }
     }
 
     @Override
-    public long getMaxId() {
-        if (getMaxId == null) {
-            getMaxId = prepareStatement("SELECT MAX(id) FROM " + allocTable);
-            return 0;
-        }
+    public short findAllocation(long ref) {
+        return allocations.find(ref);
+    }
 
-        try (ResultSet rs = getMaxId.executeQuery()) {
-            final long res = rs.next() ? rs.getLong(1) : 0;
-            conn.commit();
-            return res;
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
-        }
+    @Override
+    public long getMaxId() {
+        return allocations.getMaxId();
     }
 
     @Override
     public void dump(PrintStream ps) {
-        if (selectAll == null) {
-            selectAll = prepareStatement("SELECT * FROM " + table);
-            return;
-        }
+        final Session session = acquire();
         try {
+            session.flush();
             ps.println("MEMORY");
             ps.println("===========");
-            try (ResultSet rs = selectAll.executeQuery()) {
+            try (ResultSet rs = session.selectAll.executeQuery()) {
                 while (rs.next()) {
                     final long id = rs.getLong("id");
                     final short owner = rs.getShort("owner");
                     final long version = rs.getLong("version");
                     final byte[] data = rs.getBytes("data");
-                    ps.println("Id : " + hex(id) + " owner: " + owner + " version: " + version + " data: (" + data.length + " bytes).");
+                    ps.println("Id : " + hex(id) + " owner: " + owner + " version: " + version + " data: " + (data != null ? "(" + data.length + " bytes)." : "null"));
                 }
-                conn.commit();
+                commitUnlessInTransaction(session);
             }
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            release(session);
         }
     }
 
-    private PreparedStatement prepareStatement(String sql) {
+    /**
+     * Returns the session of the current thread's transaction, or takes one from the pool.
+     */
+    private Session acquire() {
+        final Session session = transaction.get();
+        if (session != null)
+            return session;
         try {
-            assertDuringInitialization();
-            return conn.prepareStatement(sql);
-        } catch (SQLException e) {
-            LOG.error("Error while preparing statement: " + sql, e);
-            throw new Error(e);
+            return pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void release(Session session) {
+        if (session != transaction.get())
+            pool.add(session);
+    }
+
+    private void commitUnlessInTransaction(Session session) throws SQLException {
+        if (session != transaction.get())
+            session.conn.commit();
+    }
+
+    private void endTransaction(Session session) {
+        if (transaction.get() == session)
+            transaction.remove();
+        pool.add(session);
+    }
+
+    /**
+     * A connection with its prepared statements, and the writes of the current transaction, which are executed in a single batch.
+     */
+    private class Session {
+        final Connection conn;
+        final PreparedStatement casOwner;
+        final PreparedStatement getOwner;
+        final PreparedStatement selectOwned;
+        final PreparedStatement revokeOwner;
+        final PreparedStatement insertLine;
+        final PreparedStatement setLine;
+        final PreparedStatement upsertLine;
+        final PreparedStatement getLine;
+        final PreparedStatement deleteLine;
+        final PreparedStatement selectAll;
+        final PreparedStatement addAllocation;
+        //
+        private final LongArrayList ids = new LongArrayList();
+        private final ShortArrayList owners = new ShortArrayList();
+        private final LongArrayList versions = new LongArrayList();
+        private final List<byte[]> data = new ArrayList<byte[]>();
+        private final Long2IntOpenHashMap pending = new Long2IntOpenHashMap(); // line -> index in the pending lists
+
+        Session(Connection conn) throws SQLException {
+            this.conn = conn;
+            pending.defaultReturnValue(-1);
+            conn.setAutoCommit(false);
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+            if (useUpdateableCursors)
+                casOwner = conn.prepareStatement("SELECT owner FROM " + table + " WHERE id = ? FOR UPDATE", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
+            else
+                casOwner = conn.prepareStatement("UPDATE " + table + " SET owner = ? WHERE id = ? AND owner = ?");
+            getOwner = conn.prepareStatement("SELECT owner FROM " + table + " WHERE id = ?");
+            selectOwned = conn.prepareStatement("SELECT id FROM " + table + " WHERE owner = ?");
+            revokeOwner = conn.prepareStatement("UPDATE " + table + " SET owner = 0 WHERE id = ? AND owner = ?");
+            insertLine = conn.prepareStatement("INSERT INTO " + table + " (id, owner, version, data) VALUES (?, ?, ?, ?)");
+            setLine = conn.prepareStatement("UPDATE " + table + " SET version = ?, data = ? WHERE id = ?");
+            upsertLine = upsertSql != null ? conn.prepareStatement(upsertSql) : null;
+            getLine = conn.prepareStatement("SELECT version, data FROM " + table + "  WHERE id = ?");
+            deleteLine = conn.prepareStatement("DELETE FROM " + table + " WHERE id = ?");
+            selectAll = conn.prepareStatement("SELECT * FROM " + table);
+            addAllocation = conn.prepareStatement("INSERT INTO " + allocTable + " (id, " + endColumn + ", owner) VALUES (?, ?, ?)");
+        }
+
+        void addWrite(long id, short owner, long version, byte[] data) {
+            final int i = pending.get(id);
+            if (i >= 0) { // a later write of the same line replaces the earlier one
+                versions.set(i, version);
+                this.data.set(i, data);
+                return;
+            }
+            pending.put(id, ids.size());
+            ids.add(id);
+            owners.add(owner);
+            versions.add(version);
+            this.data.add(data);
+        }
+
+        void clearPending() {
+            pending.clear();
+            ids.clear();
+            owners.clear();
+            versions.clear();
+            data.clear();
+        }
+
+        /**
+         * Executes the pending writes.
+         */
+        void flush() throws SQLException {
+            if (ids.isEmpty())
+                return;
+            try {
+                if (upsertLine != null) {
+                    for (int i = 0; i < ids.size(); i++) {
+                        for (int j = 0; j < upsertParams.length; j++)
+                            setParam(upsertLine, j + 1, upsertParams[j], i);
+                        upsertLine.addBatch();
+                    }
+                    upsertLine.executeBatch();
+                } else {
+                    for (int i = 0; i < ids.size(); i++) {
+                        setLine.setLong(1, versions.getLong(i));
+                        setLine.setBytes(2, data.get(i));
+                        setLine.setLong(3, ids.getLong(i));
+                        setLine.addBatch();
+                    }
+                    final int[] counts = setLine.executeBatch();
+                    boolean inserts = false;
+                    for (int i = 0; i < ids.size(); i++) {
+                        if (counts[i] == 0) { // Statement.SUCCESS_NO_INFO is taken to mean the line exists
+                            LOG.debug("Setting line {} failed. Inserting.", ids.getLong(i));
+                            insertLine.setLong(1, ids.getLong(i));
+                            insertLine.setShort(2, owners.getShort(i));
+                            insertLine.setLong(3, versions.getLong(i));
+                            insertLine.setBytes(4, data.get(i));
+                            insertLine.addBatch();
+                            inserts = true;
+                        }
+                    }
+                    if (inserts)
+                        insertLine.executeBatch();
+                }
+            } finally {
+                clearPending();
+            }
         }
-    }
 
-    private PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) {
-        try {
-            assertDuringInitialization();
-            return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
-        } catch (SQLException e) {
-            LOG.error("Error while preparing statement: " + sql, e);
-            throw new Error(e);
+        private void setParam(PreparedStatement stmt, int index, int param, int row) throws SQLException {
+            switch (param) {
+                case ID:
+                    stmt.setLong(index, ids.getLong(row));
+                    break;
+                case OWNER:
+                    stmt.setShort(index, owners.getShort(row));
+                    break;
+                case VERSION:
+                    stmt.setLong(index, versions.getLong(row));
+                    break;
+                case DATA:
+                    stmt.setBytes(index, data.get(row));
+                    break;
+            }
         }
-    }
 
+        void insert(long id, short owner, long version, byte[] data) throws SQLException {
+            insertLine.setLong(1, id);
+            insertLine.setShort(2, owner);
+            insertLine.setLong(3, version);
+            insertLine.setBytes(4, data);
+            insertLine.executeUpdate();
+        }
+
+        short selectOwner(long id) throws SQLException {
+            getOwner.setLong(1, id);
+            try (ResultSet rs = getOwner.executeQuery()) {
+                final short res = rs.next() ? rs.getShort(1) : (short) -1;
+                commitUnlessInTransaction(this);
+                return res;
+            }
+        }
+
+        short casOwnerUpdateableCursor(long id, short oldNode, short newNode) throws SQLException {
+            final short res;
+            casOwner.setLong(1, id);
+            try (ResultSet rs = casOwner.executeQuery()) {
+                if (rs.next()) {
+                    final short currentOwner = rs.getShort(1);
+                    if (currentOwner != oldNode) {
+                        LOG.debug("CAS owner failed (UC).");
+                        res = currentOwner;
+                    } else {
+                        rs.updateShort(1, newNode);
+                        LOG.debug("CAS owner succeeded (UC).");
+                        res = newNode;
+                    }
+                    commitUnlessInTransaction(this);
+                    return res;
+                } else {
+                    LOG.debug("CAS owner failed (UC).");
+                    return -1;
+                }
+            }
+        }
+
+        short casOwnerUpdate(long id, short oldNode, short newNode) throws SQLException {
+            final short res;
+            casOwner.setLong(2, id);
+            casOwner.setShort(3, oldNode);
+            casOwner.setShort(1, newNode);
+            int rows = casOwner.executeUpdate();
+            if (rows > 0) {
+                LOG.debug("CAS owner succeeded.");
+                res = newNode;
+            } else {
+                LOG.debug("CAS owner failed.");
+                res = selectOwner(id);
+            }
+            commitUnlessInTransaction(this);
+            return res;
+        }
+    }
 }
@@ -0,0 +1,928 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.logdb;
+
+import static co.paralleluniverse.common.logging.LoggingUtils.hex;
+import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.server.AllocationIndex;
+import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import co.paralleluniverse.galaxy.server.OwnerLookup;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ShortMap;
+import it.unimi.dsi.fastutil.longs.Long2ShortOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import java.beans.ConstructorProperties;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+
+/**
+ * A {@link MainMemoryDB} that appends all writes to memory-mapped, log-structured segment files.
+ * <p>
+ * The location of each line's latest record is kept in an in-memory index, and line owners are kept in a separate in-memory table.
+ * Each transaction is appended as a single checksummed batch, so it is recovered in its entirety or not at all. Segments whose live
+ * data has dropped below {@code compactionThreshold} are compacted in the background. The index is periodically checkpointed, so
+ * that on restart only the segments written after the last checkpoint need to be scanned.
+ * <p>
+ * Like {@link co.paralleluniverse.galaxy.berkeleydb.BerkeleyDB BerkeleyDB}, when the server restarts all lines are owned by the server.
+ *
+ * @author pron
+ */
+public class LogDB extends Component implements MainMemoryDB, OwnerLookup {
+    // Batch layout: length (int), crc (int), entries.
+    // Entry layout: type (byte), id (long), version (long), owner (short), data length (int, -1 for null), data
+    private static final Logger LOG = LoggerFactory.getLogger(LogDB.class);
+    private static final byte WRITE = 1;
+    private static final byte DELETE = 2;
+    private static final byte CREATE = 3; // a line that has an owner but no data yet
+    private static final int PREFIX_SIZE = 4 + 4;
+    private static final int ENTRY_HEADER_SIZE = 1 + 8 + 8 + 2 + 4;
+    private static final int ALLOCATION_SIZE = 8 + 4 + 2;
+    private static final int CHECKPOINT_MAGIC = 0x6c6f6764;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private final File dir;
+    private boolean truncate = false;
+    private int segmentSize = 64 * 1024 * 1024;
+    private boolean syncOnCommit = true;
+    private double compactionThreshold = 0.5;
+    private long compactionPeriodMillis = 10000;
+    private long checkpointPeriodMillis = 60000;
+    //
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment head;
+    private final Long2LongOpenHashMap index = new Long2LongOpenHashMap(); // line -> location of its latest record
+    private final Long2ShortOpenHashMap owners = new Long2ShortOpenHashMap();
+    private final AllocationIndex allocations = new AllocationIndex();
+    private FileChannel allocationFile;
+    private final Object checkpointLock = new Object();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("logdb-%d").setDaemon(true).build());
+
+    @ConstructorProperties({"name", "directory"})
+    public LogDB(String name, String directory) {
+        super(name);
+        this.dir = new File(directory);
+        index.defaultReturnValue(-1);
+        owners.defaultReturnValue((short) -1);
+    }
+
+    public void setTruncate(boolean truncate) {
+        assertDuringInitialization();
+        this.truncate = truncate;
+    }
+
+    @ManagedAttribute
+    public boolean isTruncate() {
+        return truncate;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        assertDuringInitialization();
+        this.segmentSize = segmentSize;
+    }
+
+    @ManagedAttribute
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSyncOnCommit(boolean syncOnCommit) {
+        assertDuringInitialization();
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    @ManagedAttribute
+    public boolean isSyncOnCommit() {
+        return syncOnCommit;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        assertDuringInitialization();
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @ManagedAttribute
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public void setCompactionPeriod(long compactionPeriodMillis) {
+        assertDuringInitialization();
+        this.compactionPeriodMillis = compactionPeriodMillis;
+    }
+
+    @ManagedAttribute
+    public long getCompactionPeriod() {
+        return compactionPeriodMillis;
+    }
+
+    public void setCheckpointPeriod(long checkpointPeriodMillis) {
+        assertDuringInitialization();
+        this.checkpointPeriodMillis = checkpointPeriodMillis;
+    }
+
+    @ManagedAttribute
+    public long getCheckpointPeriod() {
+        return checkpointPeriodMillis;
+    }
+
+    @ManagedAttribute(currencyTimeLimit = -1, description = "The LogDB directory")
+    public String getDirectory() {
+        return dir.getPath();
+    }
+
+    @ManagedAttribute
+    public int getNumSegments() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @ManagedAttribute
+    public int getNumLines() {
+        lock.readLock().lock();
+        try {
+            return owners.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+        if (truncate) {
+            LOG.info("Truncating database in {}", dir);
+            for (File file : dir.listFiles()) {
+                if (!file.delete())
+                    throw new IOException("Cannot delete " + file);
+            }
+        }
+
+        LOG.info("Opening database in {}", dir);
+        final long start = System.nanoTime();
+        openAllocations();
+        lock.writeLock().lock();
+        try {
+            for (File file : listSegmentFiles()) {
+                final Segment segment = openSegment(segmentNumber(file), file, false);
+                segments.put(segment.number, segment);
+            }
+            recover();
+            roll(); // we never append to a segment that may have a torn tail
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Database contains {} lines in {} segments. Recovered in {} ms", new Object[]{owners.size(), segments.size(), TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS)});
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    LOG.error("Exception while compacting", e);
+                }
+            }
+        }, compactionPeriodMillis, compactionPeriodMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (Exception e) {
+                    LOG.error("Exception while checkpointing", e);
+                }
+            }
+        }, checkpointPeriodMillis, checkpointPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values())
+                segment.close();
+            segments.clear();
+            allocationFile.close();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="Owners">
+    /////////////////////////// Owners ///////////////////////////////////////////
+    @Override
+    public short casOwner(long id, short oldNode, short newNode) {
+        lock.writeLock().lock();
+        try {
+            final short current = owners.get(id);
+            if (current < 0) {
+                if (oldNode >= 0)
+                    return -1;
+                append(new Txn(CREATE, id, 0, newNode, null)); // so that the line survives a restart
+                owners.put(id, newNode);
+                return newNode;
+            }
+            if (current != oldNode)
+                return current;
+            owners.put(id, newNode);
+            return newNode;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public short getOwner(long id) {
+        lock.readLock().lock();
+        try {
+            return owners.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeOwner(short node) {
+        lock.writeLock().lock();
+        try {
+            for (ObjectIterator<Long2ShortMap.Entry> it = owners.long2ShortEntrySet().fastIterator(); it.hasNext();) {
+                final Long2ShortMap.Entry e = it.next();
+                if (e.getShortValue() == node)
+                    e.setValue((short) 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Transactions">
+    /////////////////////////// Transactions ///////////////////////////////////////////
+    @Override
+    public Object beginTransaction() {
+        return new Txn();
+    }
+
+    @Override
+    public void commit(Object txn) {
+        final Txn t = (Txn) txn;
+        if (t.size() == 0)
+            return;
+        final Segment segment;
+        lock.writeLock().lock();
+        try {
+            segment = append(t);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (syncOnCommit)
+            segment.buffer.force();
+    }
+
+    @Override
+    public void abort(Object txn) {
+        ((Txn) txn).clear();
+    }
+
+    @Override
+    public void write(long id, short owner, long version, byte[] data, Object txn) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("WRITE " + hex(id) + " ver: " + version + " data: " + (data != null ? "(" + data.length + " bytes)" : "null"));
+        if (txn != null)
+            ((Txn) txn).add(WRITE, id, version, owner, data);
+        else
+            commit(new Txn(WRITE, id, version, owner, data));
+    }
+
+    @Override
+    public void delete(long id, Object txn) {
+        if (txn != null)
+            ((Txn) txn).add(DELETE, id, 0, (short) 0, null);
+        else
+            commit(new Txn(DELETE, id, 0, (short) 0, null));
+    }
+
+    @Override
+    public MainMemoryEntry read(long id) {
+        lock.readLock().lock();
+        try {
+            final long location = index.get(id);
+            if (location < 0)
+                return null;
+            final ByteBuffer b = segment(location).buffer;
+            final int pos = offset(location); // a WRITE or a CREATE, which has no data
+            final long version = b.getLong(pos + 1 + 8);
+            final int dataLength = b.getInt(pos + 1 + 8 + 8 + 2);
+            byte[] data = null;
+            if (dataLength >= 0) {
+                data = new byte[dataLength];
+                final ByteBuffer src = b.duplicate();
+                src.position(pos + ENTRY_HEADER_SIZE);
+                src.get(data);
+            }
+            return new MainMemoryEntry(version, data);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Allocations">
+    /////////////////////////// Allocations ///////////////////////////////////////////
+    @Override
+    public void allocate(short owner, long start, int num) {
+        synchronized (allocations) {
+            try {
+                final ByteBuffer record = ByteBuffer.allocate(ALLOCATION_SIZE);
+                record.putLong(start).putInt(num).putShort(owner).flip();
+                while (record.hasRemaining())
+                    allocationFile.write(record);
+                allocationFile.force(false);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            allocations.add(start, start + num - 1, owner);
+        }
+    }
+
+    @Override
+    public short findAllocation(long ref) {
+        return allocations.find(ref);
+    }
+
+    @Override
+    public long getMaxId() {
+        final long maxId = allocations.getMaxId();
+        LOG.info("Allocation max id: {}", maxId);
+        return maxId;
+    }
+
+    private void openAllocations() throws IOException {
+        final File file = new File(dir, "allocations");
+        this.allocationFile = new RandomAccessFile(file, "rw").getChannel();
+        final long size = allocationFile.size() - allocationFile.size() % ALLOCATION_SIZE; // ignore a torn record
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && allocationFile.read(buffer, buffer.position()) >= 0) {
+        }
+        buffer.flip();
+        final List<AllocationIndex.Allocation> loaded = new ArrayList<AllocationIndex.Allocation>();
+        while (buffer.remaining() >= ALLOCATION_SIZE) {
+            final long start = buffer.getLong();
+            final int num = buffer.getInt();
+            final short owner = buffer.getShort();
+            loaded.add(new AllocationIndex.Allocation(start, start + num - 1, owner));
+        }
+        allocations.addAll(loaded);
+        allocationFile.truncate(size);
+        allocationFile.position(size);
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Log">
+    /////////////////////////// Log ///////////////////////////////////////////
+    private Segment append(Txn txn) {
+        assert lock.isWriteLockedByCurrentThread();
+        final int length = txn.byteSize();
+        if (PREFIX_SIZE + length > segmentSize)
+            throw new IllegalArgumentException("Transaction (" + length + " bytes) exceeds the segment size");
+        if (head.position + PREFIX_SIZE + length > head.buffer.capacity())
+            roll();
+
+        final Segment segment = head;
+        final ByteBuffer b = segment.buffer;
+        final int start = segment.position;
+        b.position(start + PREFIX_SIZE);
+        for (int i = 0; i < txn.size(); i++) {
+            final long location = location(segment.number, b.position());
+            final byte type = txn.types.getByte(i);
+            final long id = txn.ids.getLong(i);
+            final byte[] data = txn.data.get(i);
+            b.put(type);
+            b.putLong(id);
+            b.putLong(txn.versions.getLong(i));
+            b.putShort(txn.owners.getShort(i));
+            b.putInt(data != null ? data.length : -1);
+            if (data != null)
+                b.put(data);
+
+            apply(type, id, txn.owners.getShort(i), location);
+        }
+        final CRC32 crc = new CRC32();
+        final ByteBuffer batch = b.duplicate();
+        batch.position(start + PREFIX_SIZE);
+        batch.limit(start + PREFIX_SIZE + length);
+        crc.update(toArray(batch), 0, length);
+        b.putInt(start, length);
+        b.putInt(start + 4, (int) crc.getValue());
+        segment.position = start + PREFIX_SIZE + length;
+        return segment;
+    }
+
+    private void apply(byte type, long id, short owner, long location) {
+        switch (type) {
+            case WRITE:
+                putLine(id, location);
+                if (!owners.containsKey(id))
+                    owners.put(id, owner);
+                break;
+            case CREATE:
+                if (index.get(id) < 0)
+                    putLine(id, location);
+                if (!owners.containsKey(id))
+                    owners.put(id, owner);
+                break;
+            case DELETE:
+                removeLine(id);
+                owners.remove(id);
+                break;
+            default:
+                throw new AssertionError("Unknown entry type " + type);
+        }
+    }
+
+    private void putLine(long id, long location) {
+        final long old = index.put(id, location);
+        if (old >= 0)
+            segment(old).liveBytes -= entrySize(old);
+        segment(location).liveBytes += entrySize(location);
+    }
+
+    private void removeLine(long id) {
+        final long old = index.remove(id);
+        if (old >= 0)
+            segment(old).liveBytes -= entrySize(old);
+    }
+
+    private int entrySize(long location) {
+        final int dataLength = segment(location).buffer.getInt(offset(location) + 1 + 8 + 8 + 2);
+        return ENTRY_HEADER_SIZE + Math.max(dataLength, 0);
+    }
+
+    /**
+     * Scans a segment from the given position, applying all complete batches.
+     */
+    private void scan(Segment segment, int pos) {
+        final ByteBuffer b = segment.buffer;
+        while (pos + PREFIX_SIZE + ENTRY_HEADER_SIZE <= b.capacity()) {
+            final int length = b.getInt(pos);
+            if (length < ENTRY_HEADER_SIZE || pos + PREFIX_SIZE + length > b.capacity())
+                break;
+            final ByteBuffer batch = b.duplicate();
+            batch.position(pos + PREFIX_SIZE);
+            batch.limit(pos + PREFIX_SIZE + length);
+            final CRC32 crc = new CRC32();
+            crc.update(toArray(batch), 0, length);
+            if ((int) crc.getValue() != b.getInt(pos + 4)) {
+                LOG.warn("Corrupt batch in segment {} at {}. Ignoring rest of segment.", segment.file, pos);
+                break;
+            }
+            for (int p = pos + PREFIX_SIZE; p < pos + PREFIX_SIZE + length;) {
+                final byte type = b.get(p);
+                final long id = b.getLong(p + 1);
+                final short owner = b.getShort(p + 1 + 8 + 8);
+                apply(type, id, owner, location(segment.number, p));
+                p += entrySize(location(segment.number, p));
+            }
+            pos += PREFIX_SIZE + length;
+        }
+        segment.position = pos;
+    }
+
+    private void roll() {
+        final int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        final Segment segment = openSegment(number, new File(dir, String.format("%010d", number) + SEGMENT_SUFFIX), true);
+        segments.put(number, segment);
+        head = segment;
+        LOG.debug("Opened segment {}", segment.file);
+    }
+
+    private Segment openSegment(int number, File file, boolean create) {
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if (create)
+                raf.setLength(segmentSize);
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            return new Segment(number, file, raf, buffer);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open segment " + file, e);
+        }
+    }
+
+    private File[] listSegmentFiles() {
+        final File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files); // names are zero-padded
+        return files;
+    }
+
+    private static int segmentNumber(File file) {
+        final String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Segment segment(long location) {
+        return segments.get((int) (location >>> 32));
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Compaction">
+    /////////////////////////// Compaction ///////////////////////////////////////////
+    void compact() {
+        final List<Segment> compacted = new ArrayList<Segment>();
+        for (;;) {
+            lock.writeLock().lock();
+            try {
+                final Segment segment = findSparseSegment();
+                if (segment == null)
+                    break;
+                LOG.debug("Compacting segment {} ({} live bytes of {})", new Object[]{segment.number, segment.liveBytes, segment.position});
+                compact(segment, segment.number == segments.firstKey());
+                segments.remove(segment.number);
+                compacted.add(segment);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (compacted.isEmpty())
+            return;
+
+        checkpoint(); // the checkpoint must not refer to the compacted segments before we delete them
+        for (Segment segment : compacted)
+            segment.delete();
+    }
+
+    private void compact(Segment segment, boolean oldest) {
+        final ByteBuffer b = segment.buffer;
+        final Txn txn = new Txn();
+        for (int pos = 0; pos < segment.position;) {
+            final int length = b.getInt(pos);
+            for (int p = pos + PREFIX_SIZE; p < pos + PREFIX_SIZE + length;) {
+                final long location = location(segment.number, p);
+                final byte type = b.get(p);
+                final long id = b.getLong(p + 1);
+                final int size = entrySize(location);
+                if (type != DELETE && index.get(id) == location) {
+                    final int dataLength = b.getInt(p + 1 + 8 + 8 + 2);
+                    byte[] data = null;
+                    if (dataLength >= 0) {
+                        final ByteBuffer src = b.duplicate();
+                        src.position(p + ENTRY_HEADER_SIZE);
+                        src.limit(p + ENTRY_HEADER_SIZE + dataLength);
+                        data = toArray(src);
+                    }
+                    txn.add(type, id, b.getLong(p + 1 + 8), b.getShort(p + 1 + 8 + 8), data);
+                } else if (type == DELETE && !oldest && index.get(id) < 0)
+                    txn.add(DELETE, id, 0, (short) 0, null); // older segments may still hold records of this line
+
+                if (txn.byteSize() > segmentSize / 4)
+                    relocate(txn);
+                p += size;
+            }
+            pos += PREFIX_SIZE + length;
+        }
+        relocate(txn);
+    }
+
+    private void relocate(Txn txn) {
+        if (txn.size() == 0)
+            return;
+        for (int i = 0; i < txn.size(); i++) {
+            if (txn.types.getByte(i) != DELETE)
+                index.remove(txn.ids.getLong(i)); // the segment is discarded, so we don't bother with its live bytes
+        }
+        append(txn); // owners of existing lines are left unchanged
+        txn.clear();
+    }
+
+    private Segment findSparseSegment() {
+        for (Segment segment : segments.values()) {
+            if (segment != head && (segment.liveBytes == 0 || segment.liveBytes < compactionThreshold * segment.position))
+                return segment;
+        }
+        return null;
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Checkpoints">
+    /////////////////////////// Checkpoints ///////////////////////////////////////////
+    /**
+     * Writes the index to disk, so that recovery only needs to scan the segments written afterwards.
+     */
+    public void checkpoint() {
+        synchronized (checkpointLock) {
+            final long[] ids;
+            final long[] locations;
+            final int[] sizes;
+            final List<Segment> toForce;
+            final int segmentNumber;
+            final int position;
+            final int[] segmentNumbers;
+            final int[] segmentPositions;
+            lock.writeLock().lock();
+            try {
+                if (head == null)
+                    return;
+                segmentNumber = head.number;
+                position = head.position;
+                segmentNumbers = new int[segments.size()];
+                segmentPositions = new int[segments.size()];
+                int j = 0;
+                for (Segment segment : segments.values()) {
+                    segmentNumbers[j] = segment.number;
+                    segmentPositions[j] = segment.position;
+                    j++;
+                }
+                ids = new long[index.size()];
+                locations = new long[index.size()];
+                sizes = new int[index.size()];
+                int i = 0;
+                for (ObjectIterator<Long2LongMap.Entry> it = index.long2LongEntrySet().fastIterator(); it.hasNext(); i++) {
+                    final Long2LongMap.Entry e = it.next();
+                    ids[i] = e.getLongKey();
+                    locations[i] = e.getLongValue();
+                    sizes[i] = entrySize(locations[i]);
+                }
+                toForce = new ArrayList<Segment>(segments.values());
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            for (Segment segment : toForce)
+                segment.buffer.force(); // the checkpoint must not refer to data that isn't on disk
+
+            final File tmp = new File(dir, "checkpoint.tmp");
+            try {
+                final CRC32 crc = new CRC32();
+                try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), crc))) {
+                    out.writeInt(CHECKPOINT_MAGIC);
+                    out.writeInt(segmentNumber);
+                    out.writeInt(position);
+                    out.writeInt(segmentNumbers.length);
+                    for (int i = 0; i < segmentNumbers.length; i++) {
+                        out.writeInt(segmentNumbers[i]);
+                        out.writeInt(segmentPositions[i]);
+                    }
+                    out.writeInt(ids.length);
+                    for (int i = 0; i < ids.length; i++) {
+                        out.writeLong(ids[i]);
+                        out.writeLong(locations[i]);
+                        out.writeInt(sizes[i]);
+                    }
+                    out.flush();
+                    final int checksum = (int) crc.getValue();
+                    out.writeInt(checksum);
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                    raf.getFD().sync();
+                }
+                Files.move(tmp.toPath(), new File(dir, "checkpoint").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                LOG.debug("Checkpointed {} lines at segment {} position {}", new Object[]{ids.length, segmentNumber, position});
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        final File file = new File(dir, "checkpoint");
+        if (file.exists() && loadCheckpoint(file))
+            return;
+
+        LOG.info("No valid checkpoint. Scanning all segments.");
+        index.clear();
+        owners.clear();
+        for (Segment segment : segments.values())
+            segment.liveBytes = 0;
+        for (Segment segment : segments.values())
+            scan(segment, 0);
+        resetOwners();
+    }
+
+    private boolean loadCheckpoint(File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (in.readInt() != CHECKPOINT_MAGIC)
+                return false;
+            final int segmentNumber = in.readInt();
+            final int position = in.readInt();
+            if (!segments.containsKey(segmentNumber))
+                return false;
+            final int numSegments = in.readInt();
+            for (int i = 0; i < numSegments; i++) {
+                final Segment segment = segments.get(in.readInt());
+                final int segmentPosition = in.readInt();
+                if (segment != null)
+                    segment.position = segmentPosition; // so that compaction knows where older segments end without scanning them
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final long id = in.readLong();
+                final long location = in.readLong();
+                final int size = in.readInt();
+                final Segment segment = segment(location);
+                if (segment == null) {
+                    LOG.warn("Checkpoint refers to missing segment {}", location >>> 32);
+                    return false;
+                }
+                index.put(id, location); // we don't read the segments, so restarts don't fault-in their pages
+                segment.liveBytes += size;
+                owners.put(id, (short) 0);
+            }
+            final int checksum = (int) crc.getValue();
+            if (in.readInt() != checksum) {
+                LOG.warn("Corrupt checkpoint");
+                return false;
+            }
+
+            LOG.info("Loaded checkpoint with {} lines. Scanning segments from {} position {}", new Object[]{count, segmentNumber, position});
+            for (Segment segment : segments.tailMap(segmentNumber, true).values())
+                scan(segment, segment.number == segmentNumber ? position : 0);
+            resetOwners();
+            return true;
+        } catch (EOFException e) {
+            LOG.warn("Truncated checkpoint");
+            return false;
+        }
+    }
+
+    private void resetOwners() {
+        for (ObjectIterator<Long2ShortMap.Entry> it = owners.long2ShortEntrySet().fastIterator(); it.hasNext();)
+            it.next().setValue((short) 0);
+    }
+    //</editor-fold>
+
+    @Override
+    public void dump(PrintStream ps) {
+        ps.println();
+        ps.println("LOGDB " + dir.getAbsolutePath());
+        ps.println("=====================================");
+        ps.println();
+        lock.readLock().lock();
+        try {
+            for (ObjectIterator<Long2ShortMap.Entry> it = owners.long2ShortEntrySet().fastIterator(); it.hasNext();) {
+                final Long2ShortMap.Entry e = it.next();
+                final long location = index.get(e.getLongKey());
+                final String version = location >= 0 && segment(location).buffer.get(offset(location)) == WRITE
+                        ? Long.toString(segment(location).buffer.getLong(offset(location) + 1 + 8)) : "-";
+                ps.println("Id : " + hex(e.getLongKey()) + " owner: " + e.getShortValue() + " version: " + version);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        ps.println();
+    }
+
+    private static class Txn {
+        final ByteArrayList types = new ByteArrayList();
+        final LongArrayList ids = new LongArrayList();
+        final LongArrayList versions = new LongArrayList();
+        final ShortArrayList owners = new ShortArrayList();
+        final List<byte[]> data = new ArrayList<byte[]>();
+        private int byteSize;
+
+        Txn() {
+        }
+
+        Txn(byte type, long id, long version, short owner, byte[] data) {
+            add(type, id, version, owner, data);
+        }
+
+        final void add(byte type, long id, long version, short owner, byte[] data) {
+            types.add(type);
+            ids.add(id);
+            versions.add(version);
+            owners.add(owner);
+            this.data.add(data);
+            byteSize += ENTRY_HEADER_SIZE + (data != null ? data.length : 0);
+        }
+
+        int size() {
+            return ids.size();
+        }
+
+        int byteSize() {
+            return byteSize;
+        }
+
+        void clear() {
+            types.clear();
+            ids.clear();
+            versions.clear();
+            owners.clear();
+            data.clear();
+            byteSize = 0;
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        int position;
+        long liveBytes;
+
+        Segment(int number, File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.warn("Exception while closing segment " + file, e);
+            }
+        }
+
+        void delete() {
+            close();
+            if (!file.delete())
+                LOG.warn("Could not delete segment {}", file);
+        }
+    }
+}
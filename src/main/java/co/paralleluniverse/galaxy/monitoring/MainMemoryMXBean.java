@@ -29,4 +29,8 @@ public interface MainMemoryMXBean {
     int getWrites();
     
     int getAllocations();
+
+    int getReadCacheHits();
+
+    int getReadCacheMisses();
 }
@@ -25,4 +25,9 @@ public interface OffHeapLocalStorageMXBean extends LocalStorageMXBean {
     Map<Integer, Integer> getBinsAllocated();
 
     Map<Integer, Integer> getBinsDeallocated();
+
+    /**
+     * The fraction of each size class's memory that is not taken by allocated cells.
+     */
+    Map<Integer, Double> getBinsFragmentation();
 }
@@ -23,6 +23,9 @@ import static co.paralleluniverse.galaxy.netty.IpConstants.*;
 import java.beans.ConstructorProperties;
 import java.net.InetAddress;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,6 +70,23 @@ class TcpSlaveClientComm extends AbstractTcpClient {
 
     };
 
+    @Override
+    protected ChannelPipeline getPipeline() throws Exception {
+        final ChannelPipeline pipeline = super.getPipeline();
+        pipeline.addLast("sync", new SimpleChannelUpstreamHandler() {
+            @Override
+            public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                super.channelConnected(ctx, e);
+                // tell the master how far behind we are so it only replicates what we've missed
+                backup.beginReplication();
+                final Message sync = backup.getSyncPoint();
+                LOG.info("Connected to master. Requesting replication since {}", sync);
+                ctx.getChannel().write(sync);
+            }
+        });
+        return pipeline;
+    }
+
 //    @Override
 //    protected ChannelPipeline getPipeline() throws Exception {
 //        final ChannelPipeline pipeline = super.getPipeline();
@@ -22,6 +22,7 @@ import co.paralleluniverse.galaxy.core.Message;
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKETACK;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_SYNC;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import co.paralleluniverse.galaxy.core.SlaveComm;
 import static co.paralleluniverse.galaxy.netty.IpConstants.*;
@@ -72,7 +73,7 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
     private static final Logger LOG = LoggerFactory.getLogger(TcpSlaveServerComm.class);
     private Backup backup;
     private boolean sentSlave; // Set<Channel> sentSlaves; use a simple flag for one server, just to keep track. not really necessary with one slave.
-    private final ConcurrentMap<Channel, Iterator<BACKUP>> replIters = new ConcurrentHashMap<Channel, Iterator<BACKUP>>();
+    private final ConcurrentMap<Channel, Replication> replIters = new ConcurrentHashMap<Channel, Replication>();
     private long lastId;
     private volatile Thread replThread;
 
@@ -169,11 +170,7 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
                     ctx.getChannel().close();
                     return;
                 }
-
-                replIters.put(ctx.getChannel(), backup.iterOwned());
-                synchronized (replIters) {
-                    replIters.notify();
-                }
+                // replication starts when the slave tells us its sync point (see startReplication)
                 super.channelConnected(ctx, e);
             }
 
@@ -197,6 +194,9 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
             case INVACK:
                 invack(ctx, (LineMessage) message);
                 break;
+            case BACKUP_SYNC:
+                startReplication(ctx.getChannel(), (BACKUP_SYNC) message);
+                break;
             default:
                 LOG.warn("Unhandled message: {}", message);
         }
@@ -228,6 +228,15 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
         backup.slavesInvAck(invack.getLine());
     }
 
+    private void startReplication(Channel channel, BACKUP_SYNC since) {
+        LOG.info("Slave {} reports sync point {}", channel, since);
+        final BACKUP_SYNC end = backup.getSyncPoint(); // must be taken before we start iterating
+        replIters.put(channel, new Replication(backup.iterOwned(since), end));
+        synchronized (replIters) {
+            replIters.notify();
+        }
+    }
+
     private static NodeInfo getNodeInfo(Channel channel) {
         return ChannelNodeInfo.nodeInfo.get(channel);
     }
@@ -350,10 +359,10 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
                                 replIters.wait();
                         }
 
-                        for (Iterator<Map.Entry<Channel, Iterator<BACKUP>>> entryIter = replIters.entrySet().iterator(); entryIter.hasNext();) {
-                            final Map.Entry<Channel, Iterator<BACKUP>> entry = entryIter.next();
+                        for (Iterator<Map.Entry<Channel, Replication>> entryIter = replIters.entrySet().iterator(); entryIter.hasNext();) {
+                            final Map.Entry<Channel, Replication> entry = entryIter.next();
                             final Channel channel = entry.getKey();
-                            final Iterator<BACKUP> iter = entry.getValue();
+                            final Iterator<BACKUP> iter = entry.getValue().iter;
 
                             for (int i = 0; i < 10; i++) {
                                 if (iter.hasNext()) {
@@ -361,7 +370,7 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
                                     LOG.debug("Replicating {} to channel {}", backup, channel);
                                     channel.write(backup);
                                 } else {
-                                    channel.write(Message.BACKUP(-1, -1, null)); // marks the end of the stream
+                                    channel.write(entry.getValue().end); // marks the end of the stream
                                     LOG.debug("Finished replicating to channel {}", channel);
                                     entryIter.remove(); // we're done
                                     break;
@@ -381,4 +390,14 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
         replThread.start();
     }
 
+    private static class Replication {
+        final Iterator<BACKUP> iter;
+        final BACKUP_SYNC end;
+
+        Replication(Iterator<BACKUP> iter, BACKUP_SYNC end) {
+            this.iter = iter;
+            this.end = end;
+        }
+    }
+
 }
@@ -13,14 +13,11 @@
  */
 package co.paralleluniverse.galaxy.objects;
 
-import co.paralleluniverse.common.io.ByteBufferInputStream;
 import co.paralleluniverse.common.io.Persistable;
 import co.paralleluniverse.galaxy.Cache;
 import co.paralleluniverse.galaxy.CacheListener;
 import co.paralleluniverse.galaxy.Grid;
 import co.paralleluniverse.io.serialization.Serialization;
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 /**
@@ -33,7 +30,10 @@ public class DistributedReference<T> implements CacheListener, Persistable, java
     private final long id;
     private transient volatile T obj;
     private transient volatile long version;
-    private transient byte[] tmpBuffer;
+    private transient byte[] received; // the version not yet deserialized
+    private transient volatile boolean loaded = true; // false while obj is stale and received holds the current version
+    private transient Serialization serializedBy;
+    private transient ByteBuffer serialized; // the result of size(), used by write() if it is still valid
 
     public DistributedReference(long id, T obj) {
         this.obj = obj;
@@ -43,10 +43,17 @@ public class DistributedReference<T> implements CacheListener, Persistable, java
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + "[" + Long.toHexString(id) + " (" + version + "): " + (obj != null ? (obj.getClass().getName() + "@" + System.identityHashCode(obj)) : "null") + "]";
+        final T obj = this.obj;
+        return getClass().getSimpleName() + "[" + Long.toHexString(id) + " (" + version + "): " + (!loaded ? "(not deserialized)" : obj != null ? (obj.getClass().getName() + "@" + System.identityHashCode(obj)) : "null") + "]";
     }
 
+    /**
+     * Returns the referenced object, deserializing it if a new version has been received since it was last returned.
+     * Once returned, the object may be modified in place, so it is serialized again whenever the reference is written.
+     */
     public T get() {
+        if (!loaded)
+            load();
         return obj;
     }
 
@@ -55,7 +62,13 @@ public class DistributedReference<T> implements CacheListener, Persistable, java
     }
 
     protected void clear() {
-        this.obj = null;
+        synchronized (this) {
+            this.obj = null;
+            this.received = null;
+            this.serialized = null;
+            this.serializedBy = null;
+            this.loaded = true;
+        }
     }
 
     @Override
@@ -89,7 +102,8 @@ public class DistributedReference<T> implements CacheListener, Persistable, java
 //        if (obj instanceof Persistable)
 //            return ((Persistable) obj).size();
 //        else
-        return obj != null ? getSerialized().length : 0;
+        final ByteBuffer s = getSerialized();
+        return s != null ? s.remaining() : 0;
     }
 
     /**
@@ -100,16 +114,37 @@ public class DistributedReference<T> implements CacheListener, Persistable, java
 //        if (obj instanceof Persistable)
 //            ((Persistable) obj).write(buffer);
 //        else {
-        if (obj != null)
-            buffer.put(getSerialized());
-        tmpBuffer = null;
+        synchronized (this) {
+            if (serialized != null && (serializedBy == null || (serializedBy == Serialization.getInstance() && serializedBy.isCurrent(serialized))))
+                buffer.put(serialized.duplicate());
+            else if (!loaded)
+                buffer.put(received);
+            else if (obj != null)
+                serialize(buffer, obj); // size() was called on another thread, or something else has been serialized since
+            serialized = null;
+            serializedBy = null;
+        }
 //        }
     }
 
-    byte[] getSerialized() {
-        if (tmpBuffer == null)
-            tmpBuffer = serialize(obj);
-        return tmpBuffer;
+    synchronized ByteBuffer getSerialized() {
+        if (!loaded) {
+            // the object has not been handed out since this version was received, so it cannot have been modified
+            serialized = ByteBuffer.wrap(received);
+            serializedBy = null;
+        } else if (obj != null) {
+            final Serialization serialization = Serialization.getInstance();
+            serialized = serialize(serialization, obj);
+            serializedBy = serialization;
+        } else {
+            serialized = null;
+            serializedBy = null;
+        }
+        return serialized;
+    }
+
+    boolean isLoaded() {
+        return loaded;
     }
 
     @Override
@@ -123,7 +158,21 @@ public class DistributedReference<T> implements CacheListener, Persistable, java
          * The returned PUTX will call received which will overwrite the object (which we wanted to set as the value
          * for the line)
          */
-        this.obj = deserialize(new ByteBufferInputStream(buffer));
+        // the buffer is only valid during this call, so we keep a copy and deserialize it when (and if) the object is requested
+        final byte[] s = new byte[buffer.remaining()];
+        buffer.get(s);
+        synchronized (this) {
+            this.received = s;
+            this.loaded = false;
+        }
+    }
+
+    private synchronized void load() {
+        if (loaded)
+            return;
+        this.obj = received.length > 0 ? deserialize(ByteBuffer.wrap(received)) : null;
+        this.received = null;
+        this.loaded = true;
     }
 
     @Override
@@ -131,19 +180,26 @@ public class DistributedReference<T> implements CacheListener, Persistable, java
     }
 
     protected void set(T obj) {
-        this.obj = obj;
+        synchronized (this) {
+            this.obj = obj;
+            this.received = null;
+            this.loaded = true;
+        }
+    }
+
+    /**
+     * Serializes the object into the serialization's reusable buffer; the result is valid until the next write on the given instance.
+     */
+    protected ByteBuffer serialize(Serialization serialization, T obj) {
+        return serialization.writeBuffered(obj);
     }
 
-    protected byte[] serialize(T obj) {
-        return obj != null ? Serialization.getInstance().write(obj) : null;
+    protected void serialize(ByteBuffer buffer, T obj) {
+        Serialization.getInstance().write(buffer, obj);
     }
 
-    protected T deserialize(InputStream is) {
-        try {
-            return (T) Serialization.getInstance().read(is);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    protected T deserialize(ByteBuffer buffer) {
+        return (T) Serialization.getInstance().read(buffer);
     }
 
     protected Object writeReplace() {
@@ -0,0 +1,49 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.record;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a fixed-layout record stored in a single item.
+ * <p>
+ * The annotated type must be an interface whose methods are getters ({@code int getCount()}, {@code boolean isValid()}) and, optionally,
+ * setters ({@code void setCount(int count)}) of primitive-typed properties. Galaxy's annotation processor ({@link RecordProcessor}), which
+ * runs when galaxy's {@code processor} jar is on the processor path or when it is named with {@code javac -processor}, generates for each such interface {@code Foo} a class {@code FooFlyweight} in the
+ * same package. The properties are laid out in the item's {@code ByteBuffer} one after the other, in the order their getters are declared,
+ * and accessed in place, so reading or updating a property never materializes an object.
+ * <p>
+ * The generated class implements the record interface and {@link co.paralleluniverse.common.io.Persistable Persistable}, so it can be
+ * passed to any of the {@link co.paralleluniverse.galaxy.Store Store}'s data methods, and it provides {@code forRead} and {@code forWrite}
+ * methods that return a per-thread flyweight over the line inside a {@link co.paralleluniverse.galaxy.LineFunction LineFunction}:
+ * <pre>{@code
+ * public Long invoke(LineAccess access) {
+ *     final AccountFlyweight account = AccountFlyweight.forWrite(access);
+ *     account.setBalance(account.getBalance() + amount);
+ *     return account.getBalance();
+ * }
+ * }</pre>
+ * Appending properties to the end of the interface keeps the layout of the existing ones; reordering or removing them does not.
+ *
+ * @author pron
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Record {
+}
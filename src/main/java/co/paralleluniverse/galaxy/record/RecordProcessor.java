@@ -0,0 +1,331 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.record;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the flyweight implementations of {@link Record} interfaces.
+ *
+ * @author pron
+ */
+@SupportedAnnotationTypes("co.paralleluniverse.galaxy.record.Record")
+public class RecordProcessor extends AbstractProcessor {
+    static final String SUFFIX = "Flyweight";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(Record.class)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                error(element, "@Record may only be applied to interfaces");
+                continue;
+            }
+            final TypeElement type = (TypeElement) element;
+            final List<Property> properties = getProperties(type);
+            if (properties == null)
+                continue;
+            try {
+                generate(type, properties);
+            } catch (IOException e) {
+                error(type, "Could not generate " + type.getSimpleName() + SUFFIX + ": " + e);
+            }
+        }
+        return true;
+    }
+
+    private List<Property> getProperties(TypeElement type) {
+        if (!type.getInterfaces().isEmpty()) {
+            error(type, "@Record interfaces may not extend other interfaces");
+            return null;
+        }
+        boolean valid = true;
+        final Map<String, Property> properties = new LinkedHashMap<String, Property>();
+        final List<ExecutableElement> setters = new ArrayList<ExecutableElement>();
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT))
+                continue;
+            final String name = method.getSimpleName().toString();
+            final TypeMirror returnType = method.getReturnType();
+            if (method.getParameters().isEmpty() && returnType.getKind().isPrimitive()
+                    && ((name.startsWith("get") && name.length() > 3)
+                    || (name.startsWith("is") && name.length() > 2 && returnType.getKind() == TypeKind.BOOLEAN))) {
+                final String property = name.substring(name.startsWith("is") ? 2 : 3);
+                if (properties.containsKey(property)) {
+                    error(method, "Property " + property + " has more than one getter");
+                    valid = false;
+                } else
+                    properties.put(property, new Property(property, name, returnType.getKind()));
+            } else if (name.startsWith("set") && name.length() > 3 && method.getParameters().size() == 1
+                    && returnType.getKind() == TypeKind.VOID)
+                setters.add(method);
+            else {
+                error(method, "Record methods must be getters or setters of primitive properties");
+                valid = false;
+            }
+        }
+        for (ExecutableElement setter : setters) {
+            final Property property = properties.get(setter.getSimpleName().toString().substring(3));
+            if (property == null) {
+                error(setter, "Setter has no corresponding getter");
+                valid = false;
+            } else if (setter.getParameters().get(0).asType().getKind() != property.kind) {
+                error(setter, "Setter type does not match the getter's");
+                valid = false;
+            } else
+                property.setter = setter.getSimpleName().toString();
+        }
+        if (properties.isEmpty()) {
+            error(type, "Record has no properties");
+            valid = false;
+        }
+        return valid ? new ArrayList<Property>(properties.values()) : null;
+    }
+
+    private void generate(TypeElement type, List<Property> properties) throws IOException {
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        final String packageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
+        final String recordName = type.getQualifiedName().toString();
+        final String className = type.getSimpleName() + SUFFIX;
+
+        int size = 0;
+        for (Property p : properties) {
+            p.offset = size;
+            size += p.size();
+        }
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(packageName != null ? packageName + '.' + className : className, type).openWriter())) {
+            if (packageName != null) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("import co.paralleluniverse.common.io.Persistable;");
+            out.println("import co.paralleluniverse.galaxy.LineFunction;");
+            out.println("import java.nio.ByteBuffer;");
+            out.println();
+            out.println("/**");
+            out.println(" * A flyweight over the {@link " + recordName + "} record layout.");
+            out.println(" * Generated by {@link co.paralleluniverse.galaxy.record.RecordProcessor}; do not edit.");
+            out.println(" */");
+            out.println("public final class " + className + " implements " + recordName + ", Persistable {");
+            out.println("    public static final int SIZE = " + size + ";");
+            for (Property p : properties)
+                out.println("    public static final int " + p.constant() + " = " + p.offset + ";");
+            out.println("    private static final ThreadLocal<" + className + "> flyweight = new ThreadLocal<" + className + ">() {");
+            out.println("        @Override");
+            out.println("        protected " + className + " initialValue() {");
+            out.println("            return new " + className + "(null);");
+            out.println("        }");
+            out.println("    };");
+            out.println("    private ByteBuffer own;");
+            out.println("    private ByteBuffer buffer;");
+            out.println("    private int offset;");
+            out.println();
+            out.println("    /**");
+            out.println("     * Creates a record backed by a buffer of its own.");
+            out.println("     */");
+            out.println("    public " + className + "() {");
+            out.println("        this.own = ByteBuffer.allocate(SIZE);");
+            out.println("        this.buffer = own;");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Creates a flyweight over the record at the given buffer's position.");
+            out.println("     */");
+            out.println("    public " + className + "(ByteBuffer buffer) {");
+            out.println("        if (buffer != null)");
+            out.println("            wrap(buffer);");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Returns this thread's flyweight over the line accessed by a {@link LineFunction}, for reading.");
+            out.println("     * The flyweight may only be used until the next call to {@code forRead} or {@code forWrite} on this thread.");
+            out.println("     */");
+            out.println("    public static " + className + " forRead(LineFunction.LineAccess access) {");
+            out.println("        return flyweight.get().wrap(access.getForRead(), 0);");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Returns this thread's flyweight over the line accessed by a {@link LineFunction}, for reading and writing.");
+            out.println("     * The line is resized to hold exactly one record.");
+            out.println("     * The flyweight may only be used until the next call to {@code forRead} or {@code forWrite} on this thread.");
+            out.println("     */");
+            out.println("    public static " + className + " forWrite(LineFunction.LineAccess access) {");
+            out.println("        final ByteBuffer buffer = access.getForWrite(SIZE);");
+            out.println("        buffer.limit(SIZE);");
+            out.println("        buffer.position(SIZE); // the line is flipped when the function returns");
+            out.println("        return flyweight.get().wrap(buffer, 0);");
+            out.println("    }");
+            out.println();
+            out.println("    public " + className + " wrap(ByteBuffer buffer) {");
+            out.println("        return wrap(buffer, buffer.position());");
+            out.println("    }");
+            out.println();
+            out.println("    public " + className + " wrap(ByteBuffer buffer, int offset) {");
+            out.println("        this.buffer = buffer;");
+            out.println("        this.offset = offset;");
+            out.println("        return this;");
+            out.println("    }");
+            for (Property p : properties) {
+                out.println();
+                out.println("    @Override");
+                out.println("    public " + p.typeName() + " " + p.getter + "() {");
+                out.println("        return " + p.read("buffer", "offset + " + p.constant()) + ";");
+                out.println("    }");
+                if (p.setter != null) {
+                    out.println();
+                    out.println("    @Override");
+                    out.println("    public void " + p.setter + "(" + p.typeName() + " value) {");
+                    out.println("        " + p.write("buffer", "offset + " + p.constant(), "value") + ";");
+                    out.println("    }");
+                }
+            }
+            out.println();
+            out.println("    @Override");
+            out.println("    public int size() {");
+            out.println("        return SIZE;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public void write(ByteBuffer buffer) {");
+            out.println("        final ByteBuffer b = this.buffer.duplicate();");
+            out.println("        b.limit(offset + SIZE);");
+            out.println("        b.position(offset);");
+            out.println("        buffer.put(b);");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public void read(ByteBuffer buffer) {");
+            out.println("        if (own == null)");
+            out.println("            own = ByteBuffer.allocate(SIZE);");
+            out.println("        final ByteBuffer b = buffer.duplicate();");
+            out.println("        b.limit(b.position() + SIZE);");
+            out.println("        own.clear();");
+            out.println("        own.put(b);");
+            out.println("        buffer.position(b.position());");
+            out.println("        wrap(own, 0);");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public String toString() {");
+            final StringBuilder sb = new StringBuilder();
+            sb.append("\"").append(type.getSimpleName()).append("[\"");
+            for (int i = 0; i < properties.size(); i++) {
+                final Property p = properties.get(i);
+                sb.append(" + \"").append(i > 0 ? ", " : "").append(p.name).append(": \" + ").append(p.getter).append("()");
+            }
+            sb.append(" + \"]\"");
+            out.println("        return " + sb + ";");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static class Property {
+        final String name;
+        final String getter;
+        final TypeKind kind;
+        String setter;
+        int offset;
+
+        Property(String name, String getter, TypeKind kind) {
+            this.name = name;
+            this.getter = getter;
+            this.kind = kind;
+        }
+
+        String constant() {
+            return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase() + "_OFFSET";
+        }
+
+        String typeName() {
+            return kind.name().toLowerCase();
+        }
+
+        int size() {
+            switch (kind) {
+                case BOOLEAN:
+                case BYTE:
+                    return 1;
+                case SHORT:
+                case CHAR:
+                    return 2;
+                case INT:
+                case FLOAT:
+                    return 4;
+                case LONG:
+                case DOUBLE:
+                    return 8;
+                default:
+                    throw new AssertionError(kind);
+            }
+        }
+
+        String read(String buffer, String index) {
+            switch (kind) {
+                case BOOLEAN:
+                    return buffer + ".get(" + index + ") != 0";
+                case BYTE:
+                    return buffer + ".get(" + index + ")";
+                default:
+                    return buffer + ".get" + accessor() + "(" + index + ")";
+            }
+        }
+
+        String write(String buffer, String index, String value) {
+            switch (kind) {
+                case BOOLEAN:
+                    return buffer + ".put(" + index + ", (byte) (" + value + " ? 1 : 0))";
+                case BYTE:
+                    return buffer + ".put(" + index + ", " + value + ")";
+                default:
+                    return buffer + ".put" + accessor() + "(" + index + ", " + value + ")";
+            }
+        }
+
+        private String accessor() {
+            final String t = typeName();
+            return Character.toUpperCase(t.charAt(0)) + t.substring(1);
+        }
+    }
+}
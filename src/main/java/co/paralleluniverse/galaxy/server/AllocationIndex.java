@@ -0,0 +1,134 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-memory, sorted index of id allocations, which {@link MainMemoryDB} implementations may use to serve
+ * {@link MainMemoryDB#findAllocation(long) findAllocation} without a query.
+ * <p>
+ * Allocations are kept in a skip-list keyed by their last id, so lookups don't lock, and {@link #add(long, long, short) adding} an
+ * allocation takes logarithmic time. Allocations loaded from the store on startup should be added together with
+ * {@link #addAll(Collection) addAll}, which sorts them once. Allocations may not overlap.
+ *
+ * @author pron
+ */
+public class AllocationIndex {
+    private volatile ConcurrentNavigableMap<Long, Allocation> allocations = new ConcurrentSkipListMap<Long, Allocation>(); // by last id
+
+    /**
+     * Adds an allocation.
+     *
+     * @param start the first id in the allocation.
+     * @param last the last id in the allocation.
+     * @param owner the node the ids were allocated to.
+     * @throws IllegalArgumentException if the allocation overlaps one that has already been added.
+     */
+    public synchronized void add(long start, long last, short owner) {
+        final Allocation allocation = new Allocation(start, last, owner);
+        final Map.Entry<Long, Allocation> next = allocations.ceilingEntry(start); // the first allocation ending at or after start
+        if (next != null && next.getValue().start <= last)
+            throw new IllegalArgumentException(allocation + " overlaps " + next.getValue());
+        allocations.put(last, allocation);
+    }
+
+    /**
+     * Adds many allocations at once. They are sorted and checked for overlaps together, and become visible to lookups together.
+     *
+     * @throws IllegalArgumentException if any two allocations overlap, in which case none are added.
+     */
+    public synchronized void addAll(Collection<Allocation> added) {
+        final List<Allocation> all = new ArrayList<Allocation>(allocations.size() + added.size());
+        all.addAll(allocations.values());
+        all.addAll(added);
+        Collections.sort(all, new Comparator<Allocation>() {
+            @Override
+            public int compare(Allocation a1, Allocation a2) {
+                return Long.compare(a1.start, a2.start);
+            }
+        });
+
+        final TreeMap<Long, Allocation> sorted = new TreeMap<Long, Allocation>();
+        Allocation previous = null;
+        for (Allocation allocation : all) {
+            if (previous != null && previous.last >= allocation.start)
+                throw new IllegalArgumentException(allocation + " overlaps " + previous);
+            sorted.put(allocation.last, allocation);
+            previous = allocation;
+        }
+        this.allocations = new ConcurrentSkipListMap<Long, Allocation>(sorted); // built in linear time from a sorted map
+    }
+
+    /**
+     * Returns the node the given id was allocated to, or {@code -1} if it has not been allocated.
+     */
+    public short find(long id) {
+        final Map.Entry<Long, Allocation> entry = allocations.ceilingEntry(id); // the first allocation ending at or after id
+        if (entry == null || entry.getValue().start > id)
+            return -1;
+        return entry.getValue().owner;
+    }
+
+    /**
+     * Returns the largest allocated id, or {@code 0} if there are no allocations.
+     */
+    public long getMaxId() {
+        final Map.Entry<Long, Allocation> last = allocations.lastEntry();
+        return last == null ? 0 : last.getKey();
+    }
+
+    /**
+     * Returns the number of allocations. Takes time linear in their number.
+     */
+    public int size() {
+        return allocations.size();
+    }
+
+    public synchronized void clear() {
+        this.allocations = new ConcurrentSkipListMap<Long, Allocation>();
+    }
+
+    public static class Allocation {
+        final long start;
+        final long last;
+        final short owner;
+
+        /**
+         * @param start the first id in the allocation.
+         * @param last the last id in the allocation.
+         * @param owner the node the ids were allocated to.
+         */
+        public Allocation(long start, long last, short owner) {
+            if (last < start)
+                throw new IllegalArgumentException("Allocation ending at " + last + " starts after it, at " + start);
+            this.start = start;
+            this.last = last;
+            this.owner = owner;
+        }
+
+        @Override
+        public String toString() {
+            return "Allocation{" + start + ".." + last + " owner: " + owner + '}';
+        }
+    }
+}
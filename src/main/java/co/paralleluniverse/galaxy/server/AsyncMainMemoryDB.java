@@ -0,0 +1,33 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The asynchronous counterpart of {@link MainMemoryDB}. Operations that may block on I/O return futures, so that many of them may
+ * be in flight at once. Writes are buffered in the transaction and only reach the store when it's {@link #commit(Object) committed}.
+ *
+ * @author pron
+ */
+public interface AsyncMainMemoryDB {
+    ListenableFuture<MainMemoryEntry> read(long id);
+
+    Object beginTransaction();
+    void write(long id, short owner, long version, byte[] data, Object txn);
+    ListenableFuture<Void> commit(Object txn);
+    void abort(Object txn);
+
+    void close();
+}
@@ -0,0 +1,124 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the operations of a synchronous {@link MainMemoryDB}, such as {@code BerkeleyDB} or {@code SQLDB}, on a pool of threads.
+ * The store must support concurrent access by that many threads (for {@code SQLDB}, its {@code poolSize} should be at least as large).
+ *
+ * @author pron
+ */
+public class AsyncMainMemoryDBAdapter implements AsyncMainMemoryDB {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncMainMemoryDBAdapter.class);
+    private final MainMemoryDB store;
+    private final ListeningExecutorService executor;
+
+    public AsyncMainMemoryDBAdapter(String name, MainMemoryDB store, int threads) {
+        this.store = store;
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build()));
+    }
+
+    public MainMemoryDB getStore() {
+        return store;
+    }
+
+    @Override
+    public ListenableFuture<MainMemoryEntry> read(final long id) {
+        return executor.submit(new Callable<MainMemoryEntry>() {
+            @Override
+            public MainMemoryEntry call() throws Exception {
+                return store.read(id);
+            }
+        });
+    }
+
+    @Override
+    public Object beginTransaction() {
+        return new Txn();
+    }
+
+    @Override
+    public void write(long id, short owner, long version, byte[] data, Object txn) {
+        ((Txn) txn).add(id, owner, version, data);
+    }
+
+    @Override
+    public ListenableFuture<Void> commit(Object txn) {
+        final Txn t = (Txn) txn;
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final Object stxn = store.beginTransaction();
+                try {
+                    for (int i = 0; i < t.ids.size(); i++)
+                        store.write(t.ids.getLong(i), t.owners.getShort(i), t.versions.getLong(i), t.data.get(i), stxn);
+                    store.commit(stxn);
+                    return null;
+                } catch (Exception e) {
+                    LOG.error("Exception during DB operation. Aborting transaction.", e);
+                    store.abort(stxn);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void abort(Object txn) {
+        // nothing has been written
+    }
+
+    /**
+     * Waits for all submitted operations to complete. Does not close the underlying store.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+                LOG.warn("Store operations still pending on close");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Txn {
+        final LongArrayList ids = new LongArrayList();
+        final ShortArrayList owners = new ShortArrayList();
+        final LongArrayList versions = new LongArrayList();
+        final List<byte[]> data = new ArrayList<byte[]>();
+
+        void add(long id, short owner, long version, byte[] data) {
+            ids.add(id);
+            owners.add(owner);
+            versions.add(version);
+            this.data.add(data);
+        }
+    }
+}
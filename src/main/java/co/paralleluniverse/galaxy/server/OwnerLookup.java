@@ -0,0 +1,27 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.server;
+
+/**
+ * May be implemented by a {@link MainMemoryDB} that can read a line's owner without writing it. The owners of lines in stores that
+ * don't implement it are read with a {@link MainMemoryDB#casOwner(long, short, short) casOwner} that leaves the owner unchanged.
+ *
+ * @author pron
+ */
+public interface OwnerLookup {
+    /**
+     * Returns the owner of the given line, or {@code -1} if the line does not exist.
+     */
+    short getOwner(long id);
+}
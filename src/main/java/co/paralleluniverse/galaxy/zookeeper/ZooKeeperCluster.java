@@ -102,6 +102,11 @@ public class ZooKeeperCluster extends AbstractCluster implements RootLocker, Ref
         super.init(); // super.init() must be called after setControlTree()
     }
 
+    @Override
+    protected boolean isControlTreeDurable() {
+        return true; // persistent znodes are kept on the ZooKeeper ensemble's disks
+    }
+
     private void initRefIdCounter() throws Exception {
         this.refIdCounter = new DistributedAtomicLong(client, REF_COUNTER, retryPolicy);
         AtomicValue<Long> av;
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2013-2014, Parallel Universe Software Co. All rights reserved.
+ * 
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *  
+ *   or (per the licensee's choosing)
+ *  
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.io.serialization;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes objects directly from and to (heap or direct) {@link ByteBuffer}s, starting at the buffer's position, which is
+ * advanced past the object.
+ *
+ * @author pron
+ */
+public interface ByteBufferSerializer {
+    Object read(ByteBuffer buffer);
+
+    /**
+     * Writes the object into the given buffer. The buffer's remaining bytes are the maximum size of the serialized object.
+     *
+     * @throws java.nio.BufferOverflowException if the serialized object does not fit in the buffer.
+     */
+    void write(ByteBuffer buffer, Object object);
+}
@@ -12,6 +12,7 @@
  */
 package co.paralleluniverse.io.serialization;
 
+import co.paralleluniverse.common.io.ByteBufferInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
@@ -25,6 +26,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -32,7 +34,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
  *
  * @author pron
  */
-public final class JDKSerializer implements ByteArraySerializer, IOStreamSerializer {
+public final class JDKSerializer implements ByteArraySerializer, IOStreamSerializer, ByteBufferSerializer {
     private final List<WriteReplaceEntry> writeReplace = new CopyOnWriteArrayList<>();
 
     public void registerWriteReplace(Class<?> clazz, WriteReplace wr) {
@@ -77,6 +79,20 @@ public final class JDKSerializer implements ByteArraySerializer, IOStreamSeriali
         }
     }
 
+    @Override
+    public void write(ByteBuffer buffer, Object object) {
+        buffer.put(write(object));
+    }
+
+    @Override
+    public Object read(ByteBuffer buffer) {
+        try {
+            return read(new ByteBufferInputStream(buffer));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public void write(OutputStream os, Object object) throws IOException {
         final ObjectOutput oo = toObjectOutput(os);
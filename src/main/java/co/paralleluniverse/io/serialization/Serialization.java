@@ -17,6 +17,7 @@ import com.esotericsoftware.kryo.Kryo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -34,6 +35,8 @@ public final class Serialization {
 
     private final ByteArraySerializer bas;
     private final IOStreamSerializer ioss;
+    private final ByteBufferSerializer bbs;
+    private ByteBuffer buffered;
 
     public static Serialization getInstance() {
         if (instance != null)
@@ -56,6 +59,7 @@ public final class Serialization {
     private Serialization(ByteArraySerializer bas) {
         this.bas = bas;
         this.ioss = (IOStreamSerializer) bas;
+        this.bbs = (ByteBufferSerializer) bas;
     }
 
     public Object read(byte[] buf) {
@@ -67,14 +71,51 @@ public final class Serialization {
     }
 
     public byte[] write(Object object) {
+        buffered = null;
         return bas.write(object);
     }
 
+    /**
+     * Reads an object directly from the given buffer, starting at its position, which is advanced past the object.
+     */
+    public Object read(ByteBuffer buffer) {
+        return bbs.read(buffer);
+    }
+
+    /**
+     * Writes an object directly into the given buffer, whose remaining bytes are the maximum size of the serialized object.
+     *
+     * @throws java.nio.BufferOverflowException if the serialized object does not fit in the buffer.
+     */
+    public void write(ByteBuffer buffer, Object object) {
+        bbs.write(buffer, object);
+    }
+
+    /**
+     * Serializes an object into a reusable buffer, and returns a buffer wrapping the result. The result is valid only as long as
+     * {@link #isCurrent(ByteBuffer) isCurrent} returns {@code true}, i.e. until the next write on this instance.
+     */
+    public ByteBuffer writeBuffered(Object object) {
+        final ByteBuffer buffer = bas instanceof KryoSerializer
+                ? ((KryoSerializer) bas).writeToOutputBuffer(object)
+                : ByteBuffer.wrap(bas.write(object));
+        this.buffered = buffer;
+        return buffer;
+    }
+
+    /**
+     * Tests whether a buffer returned by {@link #writeBuffered(Object) writeBuffered} still holds the serialized object.
+     */
+    public boolean isCurrent(ByteBuffer buffered) {
+        return buffered != null && buffered == this.buffered;
+    }
+
     public Object read(InputStream is) throws IOException {
         return ioss.read(is);
     }
 
     public void write(OutputStream os, Object object) throws IOException {
+        buffered = null;
         ioss.write(os, object);
     }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2013-2014, Parallel Universe Software Co. All rights reserved.
+ * 
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *  
+ *   or (per the licensee's choosing)
+ *  
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.io.serialization.kryo;
+
+/**
+ * A shared mapping of class names to small integer ids, used by {@link RegistryClassResolver} to write classes that have not been
+ * registered explicitly as ids rather than as their full names.
+ * <p>
+ * All parties exchanging serialized objects must see the same registry, and an id, once assigned, must never be reassigned to
+ * another class.
+ *
+ * @author pron
+ */
+public interface ClassRegistry {
+    /**
+     * Returns the id of the given class, if it has one. If it doesn't, the registry should assign it one, so that later calls return it.
+     * This method is called during serialization, so it must not block.
+     *
+     * @param className the class's name, as returned by {@link Class#getName()}.
+     * @return the class's id, or {@code -1} if it has not (yet) been assigned one.
+     */
+    int getId(String className);
+
+    /**
+     * Returns the name of the class with the given id.
+     *
+     * @param id the class id.
+     * @return the class's name, or {@code null} if no class has been assigned the given id.
+     */
+    String getClassName(int id);
+}
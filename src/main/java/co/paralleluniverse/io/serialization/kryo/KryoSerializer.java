@@ -13,15 +13,21 @@
 package co.paralleluniverse.io.serialization.kryo;
 
 import co.paralleluniverse.io.serialization.ByteArraySerializer;
+import co.paralleluniverse.io.serialization.ByteBufferSerializer;
 import co.paralleluniverse.io.serialization.IOStreamSerializer;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.Registration;
 import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -30,11 +36,13 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  *
  * @author pron
  */
-public class KryoSerializer implements ByteArraySerializer, IOStreamSerializer {
+public class KryoSerializer implements ByteArraySerializer, IOStreamSerializer, ByteBufferSerializer {
     private static Queue<Registration> registrations = new ConcurrentLinkedQueue<Registration>();
     public final Kryo kryo;
     private Input input;
     private Output output;
+    private ByteBufferInput bbInput;
+    private ByteBufferOutput bbOutput;
 
     public KryoSerializer() {
         this.kryo = KryoUtil.newKryo();
@@ -76,6 +84,17 @@ public class KryoSerializer implements ByteArraySerializer, IOStreamSerializer {
             output = new Output(4096, -1);
         return output;
     }
+    private ByteBufferInput getByteBufferInput() {
+        if (bbInput == null)
+            bbInput = new ByteBufferInput();
+        return bbInput;
+    }
+
+    private ByteBufferOutput getByteBufferOutput() {
+        if (bbOutput == null)
+            bbOutput = new ByteBufferOutput();
+        return bbOutput;
+    }
     private static Serializer NULL_SERIALIZER = new Serializer<Object>() {
         @Override
         public void write(Kryo kryo, Output output, Object object) {
@@ -108,6 +127,42 @@ public class KryoSerializer implements ByteArraySerializer, IOStreamSerializer {
         return out.toBytes();
     }
 
+    /**
+     * Serializes the object into this serializer's output buffer, and returns a buffer wrapping the result.
+     * The returned buffer's contents are only valid until the next write.
+     */
+    public ByteBuffer writeToOutputBuffer(Object object) {
+        final Output out = getOutput();
+        out.clear();
+        kryo.writeClassAndObject(out, object);
+        return ByteBuffer.wrap(out.getBuffer(), 0, out.position());
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, Object object) {
+        final ByteBuffer b = buffer.slice();
+        final ByteBufferOutput out = getByteBufferOutput();
+        out.setBuffer(b, b.capacity());
+        try {
+            kryo.writeClassAndObject(out, object);
+        } catch (KryoException e) {
+            if (e.getMessage() != null && e.getMessage().startsWith("Buffer overflow"))
+                throw (BufferOverflowException) new BufferOverflowException().initCause(e);
+            throw e;
+        }
+        buffer.position(buffer.position() + out.position());
+    }
+
+    @Override
+    public Object read(ByteBuffer buffer) {
+        final ByteBuffer b = buffer.slice();
+        final ByteBufferInput in = getByteBufferInput();
+        in.setBuffer(b);
+        final Object object = kryo.readClassAndObject(in);
+        buffer.position(buffer.position() + in.position());
+        return object;
+    }
+
     @Override
     public Object read(byte[] buf) {
         return read(buf, 0);
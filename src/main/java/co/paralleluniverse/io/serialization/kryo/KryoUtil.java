@@ -30,6 +30,22 @@ import org.objenesis.strategy.SerializingInstantiatorStrategy;
  * @author pron
  */
 public final class KryoUtil {
+    private static volatile ClassRegistry classRegistry;
+
+    /**
+     * Installs the {@link ClassRegistry} used by all {@link Kryo} instances created by {@link #newKryo()} to assign ids to classes that
+     * haven't been registered explicitly.
+     *
+     * @param registry the registry, or {@code null} to write such classes by name.
+     */
+    public static void setClassRegistry(ClassRegistry registry) {
+        classRegistry = registry;
+    }
+
+    public static ClassRegistry getClassRegistry() {
+        return classRegistry;
+    }
+
     public static Kryo newKryo() {
         Kryo kryo = new ReplaceableObjectKryo();
 
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013-2014, Parallel Universe Software Co. All rights reserved.
+ * 
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *  
+ *   or (per the licensee's choosing)
+ *  
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.io.serialization.kryo;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DefaultClassResolver} that registers classes that haven't been registered explicitly with the ids assigned to them by the
+ * {@link KryoUtil#setClassRegistry(ClassRegistry) installed} {@link ClassRegistry}, so that they're written as a short varint
+ * rather than by name. Ids read that aren't known locally are looked up in the registry.
+ * <p>
+ * Serialization never waits for the registry: until the registry has an id for a class, the class name is written as usual (and the
+ * registry assigns the id in the background). Registry ids are offset by {@link #FIRST_REGISTRY_ID} so as not to clash with explicit
+ * registrations. If no registry is installed, class names are always written.
+ *
+ * @author pron
+ */
+public class RegistryClassResolver extends DefaultClassResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(RegistryClassResolver.class);
+    /**
+     * The Kryo registration id of the class with registry id 0.
+     */
+    public static final int FIRST_REGISTRY_ID = 1024;
+    private final Map<Class<?>, Registration> unassigned = new HashMap<Class<?>, Registration>(); // written by name until they get an id
+
+    @Override
+    @SuppressWarnings("rawtypes") // the signature is Kryo's
+    public Registration registerImplicit(Class type) {
+        final ClassRegistry registry = KryoUtil.getClassRegistry();
+        if (registry == null)
+            return super.registerImplicit(type);
+
+        int id = -1;
+        try {
+            id = registry.getId(type.getName());
+        } catch (Exception e) {
+            LOG.warn("Could not obtain a registry id for " + type.getName(), e);
+        }
+        Registration registration = unassigned.get(type);
+        if (id >= 0) {
+            unassigned.remove(type);
+            return register(new Registration(type, registration != null ? registration.getSerializer() : kryo.getDefaultSerializer(type), FIRST_REGISTRY_ID + id));
+        }
+        if (registration == null) {
+            // not registered, so that we ask the registry again next time
+            registration = new Registration(type, kryo.getDefaultSerializer(type), NAME);
+            unassigned.put(type, registration);
+        }
+        return registration;
+    }
+
+    @Override
+    public Registration readClass(Input input) {
+        final int classID = input.readVarInt(true);
+        switch (classID) {
+            case Kryo.NULL:
+                return null;
+            case NAME + 2:
+                return readName(input);
+        }
+        final int id = classID - 2;
+        Registration registration = idToRegistration.get(id);
+        if (registration == null && id >= FIRST_REGISTRY_ID)
+            registration = registerFromRegistry(id);
+        if (registration == null)
+            throw new KryoException("Encountered unregistered class ID: " + id);
+        return registration;
+    }
+
+    private Registration registerFromRegistry(int id) {
+        final ClassRegistry registry = KryoUtil.getClassRegistry();
+        if (registry == null)
+            return null;
+        final String className = registry.getClassName(id - FIRST_REGISTRY_ID);
+        if (className == null)
+            return null;
+        final Class<?> type;
+        try {
+            type = Class.forName(className, false, kryo.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new KryoException("Unable to find class: " + className, e);
+        }
+        final Registration registration = new Registration(type, kryo.getDefaultSerializer(type), id);
+        if (classToRegistration.get(type) == null)
+            register(registration);
+        else
+            idToRegistration.put(id, registration); // keep writing the class the way we did
+        return registration;
+    }
+}
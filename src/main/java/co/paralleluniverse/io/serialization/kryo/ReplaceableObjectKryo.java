@@ -18,6 +18,7 @@ import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.FieldSerializer;
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -57,6 +58,7 @@ public class ReplaceableObjectKryo extends Kryo {
     }
 
     public ReplaceableObjectKryo() {
+        super(new RegistryClassResolver(), new MapReferenceResolver());
     }
 
     @Override
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.common.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class KeyOrderedExecutorTest {
+    private static final int KEYS = 16;
+    private static final int TASKS_PER_KEY = 10000;
+    private KeyOrderedExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new KeyOrderedExecutor(4, 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testTasksOfAKeyRunSeriallyInOrder() throws Exception {
+        final CountDownLatch done = new CountDownLatch(KEYS * TASKS_PER_KEY);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final int[] last = new int[KEYS];
+        final AtomicInteger[] running = new AtomicInteger[KEYS];
+        for (int k = 0; k < KEYS; k++)
+            running[k] = new AtomicInteger();
+
+        final Thread[] submitters = new Thread[KEYS / 4];
+        for (int s = 0; s < submitters.length; s++) {
+            final int firstKey = s * 4;
+            submitters[s] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= TASKS_PER_KEY; i++) {
+                        for (int k = firstKey; k < firstKey + 4; k++) {
+                            final int key = k;
+                            final int seq = i;
+                            executor.execute(key, new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (running[key].incrementAndGet() != 1 || last[key] != seq - 1)
+                                        failed.set(true);
+                                    last[key] = seq;
+                                    running[key].decrementAndGet();
+                                    done.countDown();
+                                }
+                            });
+                        }
+                    }
+                }
+            });
+            submitters[s].start();
+        }
+
+        assertThat(done.await(30, TimeUnit.SECONDS), is(true));
+        assertThat(failed.get(), is(false));
+        for (int k = 0; k < KEYS; k++)
+            assertThat(last[k], is(TASKS_PER_KEY));
+    }
+
+    @Test
+    public void whenKeyIdleThenRemoveItsQueue() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            executor.execute(i, new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        assertThat(executor.getNumQueues(), is(0));
+    }
+
+    @Test
+    public void testKeysRunInParallel() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        executor.execute("slow", new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        assertThat(blocked.await(5, TimeUnit.SECONDS), is(true));
+
+        executor.execute("fast", new Runnable() {
+            @Override
+            public void run() {
+                released.countDown();
+            }
+        });
+        assertThat(released.await(5, TimeUnit.SECONDS), is(true));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author pron
+ */
+public class ArenaLocalStorageTest {
+    static final int MAX_ITEM_SIZE = 1000;
+    ArenaLocalStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new ArenaLocalStorage("storage", 1, MAX_ITEM_SIZE, null);
+        storage.setSlabSize(4096);
+        storage.afterPropertiesSet();
+    }
+
+    @Test
+    public void testSizeClasses() {
+        final int[] sizes = storage.getCellSizes();
+        assertEquals(16, sizes[0]);
+        assertEquals(1000, sizes[sizes.length - 1]);
+        for (int i = 1; i < sizes.length; i++) {
+            assertTrue(sizes[i] > sizes[i - 1]);
+            assertTrue(sizes[i] <= Math.ceil(sizes[i - 1] * 1.25) + 8);
+        }
+    }
+
+    @Test
+    public void whenAllocateThenCellFitsSize() {
+        for (int size = 1; size <= MAX_ITEM_SIZE; size++) {
+            final ByteBuffer buffer = storage.allocateStorage(size);
+            assertTrue(buffer.capacity() >= size);
+            assertTrue(buffer.capacity() <= Math.max(16, Math.ceil(size * 1.25) + 8));
+            assertEquals(0, buffer.position());
+            storage.deallocateStorage(0, buffer);
+        }
+        assertEquals(0, storage.getTotalAllocatedSize());
+    }
+
+    @Test
+    public void whenDeallocatedThenCellReused() {
+        final ByteBuffer b1 = storage.allocateStorage(100);
+        final ByteBuffer b2 = storage.allocateStorage(100);
+        b2.putLong(8, 1234L);
+        storage.deallocateStorage(0, b1);
+        final ByteBuffer b3 = storage.allocateStorage(100);
+
+        assertEquals(storage.getOffset(b1), storage.getOffset(b3));
+        assertEquals(1234L, b2.getLong(8));
+    }
+
+    @Test
+    public void whenArenaExhaustedThenOutOfMemoryError() {
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        try {
+            for (int i = 0; i < 1024 * 1024; i++)
+                buffers.add(storage.allocateStorage(MAX_ITEM_SIZE));
+            fail();
+        } catch (OutOfMemoryError e) {
+        }
+        assertEquals(1024 * 1024 / 4096 * (4096 / MAX_ITEM_SIZE), buffers.size());
+
+        storage.deallocateStorage(0, buffers.get(0));
+        storage.allocateStorage(MAX_ITEM_SIZE);
+    }
+
+    @Test
+    public void whenArenaHasSeveralChunksThenCellsAreAddressedAcrossThem() throws Exception {
+        storage = new ArenaLocalStorage("storage", 1, MAX_ITEM_SIZE, null);
+        storage.setSlabSize(4096);
+        storage.setMaxChunkSize(3 * 4096 + 100); // 86 chunks of 3 slabs
+        storage.afterPropertiesSet();
+
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 1024; i++) {
+            final ByteBuffer buffer = storage.allocateStorage(MAX_ITEM_SIZE);
+            buffer.putInt(0, i);
+            buffers.add(buffer);
+        }
+        for (int i = 0; i < buffers.size(); i++) {
+            final long offset = storage.getOffset(buffers.get(i));
+            assertEquals(i, storage.getCell(offset).getInt(0));
+            storage.deallocateStorage(0, buffers.get(i));
+        }
+        assertEquals(0, storage.getTotalAllocatedSize());
+    }
+
+    @Test
+    public void whenDeallocatedTwiceThenIllegalArgumentException() {
+        final ByteBuffer buffer = storage.allocateStorage(100);
+        storage.deallocateStorage(0, buffer);
+        try {
+            storage.deallocateStorage(0, buffer);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            storage.deallocateStorage(0, ByteBuffer.allocate(buffer.capacity()));
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.core.Message.BACKUP;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_SYNC;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+import static co.paralleluniverse.galaxy.core.MessageMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class BackupImplTest {
+    private static final short NODE = 1;
+    private Cluster cluster;
+    private SlaveComm slaveComm;
+    private Cache cache;
+    private BackupImpl backup;
+    private final List<Cache.CacheLine> owned = new ArrayList<Cache.CacheLine>();
+
+    @Before
+    public void setUp() throws Exception {
+        cluster = mock(Cluster.class);
+        when(cluster.getMyNodeId()).thenReturn(NODE);
+        slaveComm = mock(SlaveComm.class);
+        cache = mock(Cache.class);
+        when(cache.ownedIterator()).thenAnswer(new org.mockito.stubbing.Answer<Iterator<Cache.CacheLine>>() {
+            @Override
+            public Iterator<Cache.CacheLine> answer(org.mockito.invocation.InvocationOnMock invocation) {
+                return new ArrayList<Cache.CacheLine>(owned).iterator();
+            }
+        });
+        backup = new BackupImpl("backup", cluster, null, slaveComm, BackupImpl.createMonitor(null, "backup"));
+        backup.setCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        backup.shutdown();
+    }
+
+    @Test
+    public void whenSlaveIsInSyncThenReplicateOnlyLinesModifiedSince() throws Exception {
+        becomeMaster();
+        final Cache.CacheLine line1 = ownedLine(1);
+        final Cache.CacheLine line2 = ownedLine(2);
+
+        backupAndFlush(line1);
+        final BACKUP_SYNC syncPoint = backup.getSyncPoint();
+        backupAndFlush(line2);
+
+        assertThat(ids(backup.iterOwned(syncPoint)), equalTo(Arrays.asList(2L)));
+        assertThat(ids(backup.iterOwned(backup.getSyncPoint())), equalTo(Collections.<Long>emptyList()));
+        assertThat(ids(backup.iterOwned(Message.BACKUP_SYNC(syncPoint.getEpoch() + 1, syncPoint.getSequence()))), equalTo(Arrays.asList(1L, 2L)));
+    }
+
+    @Test
+    public void whenLineInvalidatedSinceSyncPointThenSendTombstone() throws Exception {
+        becomeMaster();
+        final Cache.CacheLine line1 = ownedLine(1);
+        final Cache.CacheLine line2 = ownedLine(2);
+
+        backupAndFlush(line1);
+        backupAndFlush(line2);
+        final BACKUP_SYNC syncPoint = backup.getSyncPoint();
+
+        owned.remove(line2);
+        when(line2.getState()).thenReturn(Cache.State.I);
+        backup.inv(2, (short) 3);
+        reset(slaveComm);
+
+        assertThat(ids(backup.iterOwned(syncPoint)), equalTo(Collections.<Long>emptyList()));
+        final ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(slaveComm).send(sent.capture());
+        assertThat(sent.getValue(), equalTo((Message) Message.INV(NODE, 2, (short) -1)));
+        assertThat(sent.getValue().isReplyRequired(), is(false));
+    }
+
+    @Test
+    public void slaveSyncPointFollowsContiguousPackets() throws Exception {
+        when(cluster.isMaster()).thenReturn(false);
+
+        backup.beginReplication();
+        backup.receive(Message.BACKUP_PACKET(5, Collections.<BACKUP>emptyList()));
+        backup.receive(Message.BACKUP_SYNC(77, 4));
+        assertThat(backup.getSyncPoint().getEpoch(), is(77L));
+        assertThat(backup.getSyncPoint().getSequence(), is(5L));
+
+        backup.receive(Message.BACKUP_PACKET(6, Collections.<BACKUP>emptyList()));
+        assertThat(backup.getSyncPoint().getSequence(), is(6L));
+
+        backup.beginReplication(); // reconnecting; packets don't count until replication completes
+        backup.receive(Message.BACKUP_PACKET(7, Collections.<BACKUP>emptyList()));
+        assertThat(backup.getSyncPoint().getSequence(), is(6L));
+        backup.receive(Message.BACKUP_SYNC(77, 7));
+        assertThat(backup.getSyncPoint().getSequence(), is(7L));
+
+        backup.receive(Message.BACKUP_PACKET(9, Collections.<BACKUP>emptyList())); // missed 8
+        assertThat(backup.getSyncPoint().getEpoch(), is(0L));
+        assertThat(backup.getSyncPoint().getSequence(), is(-1L));
+    }
+
+    @Test
+    public void slaveAppliesTombstonesWithoutAck() throws Exception {
+        when(cluster.isMaster()).thenReturn(false);
+        when(cache.getLine(2)).thenReturn(mock(Cache.CacheLine.class));
+
+        backup.receive(Message.INV(NODE, 2, (short) -1).setReplyRequired(false));
+        backup.receive(Message.INV(NODE, 3, (short) -1).setReplyRequired(false)); // we don't have it
+        verify(cache).receive(argThat(equalTo((Message) Message.INV(NODE, 2, (short) -1))));
+        verify(cache, times(1)).receive(argThat(ofType(Message.Type.INV)));
+        verify(slaveComm, never()).send(org.mockito.Matchers.any(Message.class));
+
+        final Message.INV inv = Message.INV(NODE, 4, (short) 3);
+        backup.receive(inv);
+        verify(slaveComm).send(argThat(equalTo(Message.INVACK(inv))));
+    }
+
+    private void becomeMaster() {
+        when(cluster.isMaster()).thenReturn(true);
+        backup.start(true);
+    }
+
+    private Cache.CacheLine ownedLine(long id) {
+        final Cache.CacheLine line = mock(Cache.CacheLine.class);
+        when(line.getId()).thenReturn(id);
+        when(line.getVersion()).thenReturn(1L);
+        when(line.getState()).thenReturn(Cache.State.E);
+        when(line.getData()).thenReturn(ByteBuffer.wrap(new byte[]{(byte) id}));
+        when(cache.getLine(id)).thenReturn(line);
+        owned.add(line);
+        return line;
+    }
+
+    private void backupAndFlush(Cache.CacheLine line) {
+        final boolean locked = backup.startBackup();
+        backup.backup(line.getId(), line.getVersion());
+        backup.endBackup(locked);
+        backup.flush();
+        verify(cache, timeout(5000)).receive(argThat(equalTo((Message) Message.BACKUPACK((short) 0, line.getId(), line.getVersion()))));
+    }
+
+    private static List<Long> ids(Iterator<BACKUP> it) {
+        final List<Long> ids = new ArrayList<Long>();
+        while (it.hasNext())
+            ids.add(it.next().getLine());
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.core.Message.BACKUP;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class BackupJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final List<BackupJournal> journals = new ArrayList<BackupJournal>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (BackupJournal journal : journals)
+            journal.destroy();
+    }
+
+    @Test
+    public void whenRestartedAfterCrashThenRecoverLatestVersions() throws Exception {
+        final BackupJournal journal = open(64 * 1024);
+        final AtomicInteger durable = new AtomicInteger();
+        journal.append(Arrays.asList(backup(1, 1), backup(2, 1), backup(3, 1)), counter(durable));
+        journal.append(Arrays.asList(backup(1, 2)), counter(durable));
+        journal.invalidate(2, counter(durable));
+        journal.sync();
+        assertThat(durable.get(), is(3));
+
+        // "crash": open the same directory without shutting down the first journal
+        final Map<Long, Long> recovered = recover(open(64 * 1024));
+        assertThat(recovered.toString(), is("{1=2, 3=1}"));
+    }
+
+    @Test
+    public void whenTailIsCorruptThenIgnoreIt() throws Exception {
+        final BackupJournal journal = open(64 * 1024);
+        journal.append(Arrays.asList(backup(1, 1), backup(2, 1)), null);
+        journal.append(Arrays.asList(backup(3, 1)), null);
+        journal.sync();
+
+        final File segment = folder.getRoot().listFiles()[0];
+        final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            final int recordSize = 4 + 4 + 1 + 8 + 8 + 4 + 8;
+            raf.seek(2 * recordSize + 4 + 4 + 1 + 8 + 8 + 4); // line 3's data
+            raf.write(0xff);
+        } finally {
+            raf.close();
+        }
+
+        final BackupJournal restarted = open(64 * 1024);
+        assertThat(recover(restarted).toString(), is("{1=1, 2=1}"));
+
+        restarted.append(Arrays.asList(backup(3, 2)), null); // we don't append after the torn tail
+        restarted.sync();
+        assertThat(recover(open(64 * 1024)).toString(), is("{1=1, 2=1, 3=2}"));
+    }
+
+    @Test
+    public void whenCompactedThenReclaimSegmentsAndKeepLines() throws Exception {
+        final BackupJournal journal = open(1024);
+        for (int version = 1; version <= 20; version++) {
+            for (long id = 1; id <= 10; id++)
+                journal.append(Collections.singletonList(backup(id, version)), null);
+        }
+        journal.invalidate(4, null);
+        journal.sync();
+        final int segments = journal.getNumSegments();
+
+        journal.compact();
+        assertThat(journal.getNumSegments() < segments / 2, is(true));
+        assertThat(journal.getNumLines(), is(9));
+
+        final Map<Long, Long> recovered = recover(open(1024));
+        assertThat(recovered.size(), is(9));
+        assertThat(recovered.containsKey(4L), is(false));
+        for (Map.Entry<Long, Long> e : recovered.entrySet())
+            assertThat(e.getValue(), is(20L));
+    }
+
+    @Test
+    public void whenCheckpointedThenKeepOnlyGivenLinesAndLaterModifications() throws Exception {
+        final BackupJournal journal = open(1024);
+        for (int version = 1; version <= 10; version++) {
+            for (long id = 1; id <= 10; id++)
+                journal.append(Collections.singletonList(backup(id, version)), null);
+        }
+        journal.sync();
+
+        final Iterator<BACKUP> owned = Arrays.asList(backup(1, 10), backup(2, 10), backup(3, 10)).iterator();
+        journal.checkpoint(new Iterator<BACKUP>() {
+            @Override
+            public boolean hasNext() {
+                return owned.hasNext();
+            }
+
+            @Override
+            public BACKUP next() {
+                final BACKUP next = owned.next();
+                if (next.getLine() == 2) {
+                    journal.append(Collections.singletonList(backup(2, 11)), null); // modified during the checkpoint
+                    journal.invalidate(3, null);
+                }
+                return next;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+        assertThat(journal.getNumSegments(), is(1));
+        assertThat(recover(open(1024)).toString(), is("{1=10, 2=11}"));
+    }
+
+    @Test
+    public void whenCheckpointFailsThenKeepOldSegments() throws Exception {
+        final BackupJournal journal = open(1024);
+        for (long id = 1; id <= 10; id++)
+            journal.append(Collections.singletonList(backup(id, 1)), null);
+        journal.sync();
+        final int segments = journal.getNumSegments();
+
+        final Iterator<BACKUP> owned = Arrays.asList(backup(1, 2), backup(2, 2)).iterator();
+        try {
+            journal.checkpoint(new Iterator<BACKUP>() {
+                @Override
+                public boolean hasNext() {
+                    return true;
+                }
+
+                @Override
+                public BACKUP next() {
+                    if (!owned.hasNext())
+                        throw new IllegalStateException("failed");
+                    return owned.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertThat(journal.getNumSegments() > segments, is(true));
+        assertThat(journal.getNumLines(), is(10));
+        assertThat(recover(journal).toString(), is("{1=2, 2=2, 3=1, 4=1, 5=1, 6=1, 7=1, 8=1, 9=1, 10=1}"));
+        journal.sync();
+        assertThat(recover(open(1024)).toString(), is("{1=2, 2=2, 3=1, 4=1, 5=1, 6=1, 7=1, 8=1, 9=1, 10=1}"));
+    }
+
+    private BackupJournal open(int segmentSize) throws Exception {
+        final BackupJournal journal = new BackupJournal("journal", folder.getRoot().getPath());
+        journal.setSegmentSize(segmentSize);
+        journal.setCompactionPeriod(1000000);
+        journal.afterPropertiesSet();
+        journals.add(journal);
+        return journal;
+    }
+
+    private static Map<Long, Long> recover(BackupJournal journal) {
+        final Map<Long, Long> lines = new TreeMap<Long, Long>();
+        for (Iterator<BACKUP> it = journal.recover(); it.hasNext();) {
+            final BACKUP backup = it.next();
+            assertThat(backup.getData().getLong(0), is(backup.getLine() * 1000 + backup.getVersion()));
+            lines.put(backup.getLine(), backup.getVersion());
+        }
+        return lines;
+    }
+
+    private static BACKUP backup(long id, long version) {
+        final ByteBuffer data = ByteBuffer.allocate(8);
+        data.putLong(0, id * 1000 + version);
+        return Message.BACKUP(id, version, data);
+    }
+
+    private static Runnable counter(final AtomicInteger counter) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                counter.incrementAndGet();
+            }
+        };
+    }
+}
@@ -370,6 +370,63 @@ public class CacheTest {
         verify(comm).send(argThat(equalTo(Message.PUT(get2, 1234L, 2, toBuffer("hello")))));
     }
 
+    /**
+     * When a GET carries the current version, PUT is sent without the data.
+     */
+    @Test
+    public void whenGETWithCurrentVersionThenPUTWithoutData() throws Exception {
+        PUTX(1234L, sh(10), 2, "hello", 20, 30, 40);
+        if (hasServer())
+            cache.receive(Message.INVACK(Message.INV(sh(0), 1234L, sh(10))));
+
+        final LineMessage get1 = Message.GET(sh(50), 1234L, 2);
+        final LineMessage get2 = Message.GET(sh(60), 1234L, 1);
+        cache.receive(get1);
+        cache.receive(get2);
+
+        verify(comm).send(argThat(equalTo(Message.PUT(get1, 1234L, 2, null))));
+        verify(comm).send(argThat(equalTo(Message.PUT(get2, 1234L, 2, toBuffer("hello")))));
+    }
+
+    /**
+     * Lines recovered from persistent storage are revalidated with their version, and keep their data if it hasn't changed.
+     */
+    @Test
+    public void whenLineRecoveredThenGETWithVersionAndKeepData() throws Exception {
+        storage = new HeapPersistentStorage(new PersistentCacheStorage.StoredLine(1234L, 3, toBuffer("hello")));
+        cache = makeCache(10000);
+        cache.setReceiver(mock(MessageReceiver.class));
+
+        Object res = cache.runOp(new Op(GET, 1234L, null));
+        assertThat(res, is(PENDING));
+        assertState(1234L, I, S);
+        verify(comm).send(argThat(equalTo(Message.GET(sh(-1), 1234L, 3))));
+
+        cache.receive(Message.PUT(sh(10), 1234L, 3, null).setMessageId(++messageId));
+
+        assertState(1234L, S, null);
+        assertVersion(1234L, 3);
+        assertThat(get(1234L), is("hello"));
+    }
+
+    static class HeapPersistentStorage extends HeapLocalStorage implements PersistentCacheStorage {
+        final Collection<StoredLine> lines;
+
+        HeapPersistentStorage(StoredLine... lines) {
+            super("test", null);
+            this.lines = Arrays.asList(lines);
+        }
+
+        @Override
+        public void persist(Collection<StoredLine> lines) {
+        }
+
+        @Override
+        public Collection<StoredLine> recover() {
+            return lines;
+        }
+    }
+
     public static LineFunction<Long> storefunc(final long set) {
         return new LineFunction<Long>() {
             @Override
@@ -2078,6 +2135,24 @@ public class CacheTest {
         }
     }
 
+    /**
+     * The last known owner of an evicted line is used as a node hint, until that node is removed.
+     */
+    @Test
+    public void whenLineEvictedThenGETSentToLastKnownOwner() throws Exception {
+        PUT(1234L, sh(10), 1L, "hello");
+        PUT(2222L, sh(10), 1L, "foo");
+        evict(1234L, false);
+        evict(2222L, false);
+
+        cache.runOp(new Op(GET, 1234L, null));
+        verify(comm).send(argThat(equalTo(matchingMessage(GET, sh(10), 1234L))));
+
+        cache.nodeRemoved(sh(10));
+        cache.runOp(new Op(GET, 2222L, null));
+        verify(comm).send(argThat(equalTo(matchingMessage(GET, sh(-1), 2222L))));
+    }
+
     /**
      * When TIMEOUT is received, all pending ops should be interrupted with a TimeoutException.
      */
@@ -0,0 +1,94 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.io.serialization.kryo.KryoSerializer;
+import co.paralleluniverse.io.serialization.kryo.KryoUtil;
+import java.io.Serializable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author pron
+ */
+public class DistributedTreeClassRegistryTest {
+    static final String ROOT = "/classes";
+    LocalTree tree;
+
+    @Before
+    public void setUp() {
+        tree = new LocalTree();
+    }
+
+    @After
+    public void tearDown() {
+        KryoUtil.setClassRegistry(null);
+    }
+
+    @Test
+    public void whenClassesRegisteredThenIdsAgreeAcrossRegistries() throws Exception {
+        final DistributedTreeClassRegistry r1 = new DistributedTreeClassRegistry(tree, ROOT);
+        final DistributedTreeClassRegistry r2 = new DistributedTreeClassRegistry(tree, ROOT);
+
+        assertEquals(-1, r1.getId("com.acme.A")); // assigned in the background
+        final int a = id(r1, "com.acme.A");
+        final int b = id(r2, "com.acme.B");
+
+        assertEquals(0, a);
+        assertEquals(1, b);
+        assertEquals(a, r2.getId("com.acme.A")); // learned from the tree
+        assertEquals(b, r1.getId("com.acme.B"));
+        assertEquals("com.acme.B", r1.getClassName(b));
+        assertNull(r1.getClassName(2));
+
+        final DistributedTreeClassRegistry r3 = new DistributedTreeClassRegistry(tree, ROOT);
+        assertEquals(a, r3.getId("com.acme.A"));
+        assertEquals(2, id(r3, "com.acme.C"));
+    }
+
+    @Test
+    public void whenRegistryInstalledThenClassWrittenAsId() throws Exception {
+        final byte[] byName = new KryoSerializer().write(new Foo(3));
+
+        final DistributedTreeClassRegistry registry = new DistributedTreeClassRegistry(tree, ROOT);
+        KryoUtil.setClassRegistry(registry);
+        final KryoSerializer serializer = new KryoSerializer();
+        assertEquals(byName.length, serializer.write(new Foo(3)).length); // until the class is assigned an id
+        registry.awaitAssignments();
+        final byte[] byId = serializer.write(new Foo(3));
+        assertTrue(byId.length < byName.length - Foo.class.getName().length() / 2);
+
+        KryoUtil.setClassRegistry(new DistributedTreeClassRegistry(tree, ROOT)); // a different node
+        final Foo foo = (Foo) new KryoSerializer().read(byId);
+        assertEquals(3, foo.x);
+    }
+
+    private static int id(DistributedTreeClassRegistry registry, String className) throws Exception {
+        registry.getId(className);
+        registry.awaitAssignments();
+        return registry.getId(className);
+    }
+
+    static class Foo implements Serializable {
+        private static final long serialVersionUID = 5286351077293618014L;
+        int x;
+
+        Foo(int x) {
+            this.x = x;
+        }
+    }
+}
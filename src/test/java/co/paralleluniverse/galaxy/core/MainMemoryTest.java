@@ -21,6 +21,7 @@ package co.paralleluniverse.galaxy.core;
 
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import co.paralleluniverse.galaxy.server.OwnerLookup;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
@@ -45,7 +46,10 @@ import static co.paralleluniverse.galaxy.core.Cache.MAX_RESERVED_REF_ID;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.common.io.Persistables;
 import co.paralleluniverse.galaxy.Cluster;
+import java.util.concurrent.CountDownLatch;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  *
@@ -53,7 +57,7 @@ import org.mockito.InOrder;
  */
 public class MainMemoryTest {
     MainMemory mm;
-    MainMemoryDB store;
+    Store store;
     Cluster cluster;
     Comm comm;
     MainMemoryMonitor monitor;
@@ -67,7 +71,7 @@ public class MainMemoryTest {
         cluster = mock(Cluster.class);
         when(cluster.hasServer()).thenReturn(true);
 
-        store = mock(MainMemoryDB.class);
+        store = mock(Store.class);
         comm = mock(Comm.class);
         monitor = mock(MainMemoryMonitor.class);
 
@@ -96,6 +100,32 @@ public class MainMemoryTest {
         verifyNoMoreInteractions(monitor);
     }
 
+    /**
+     * When owners are cached, INVs change the owner in memory, and only the final owner is written to the store
+     */
+    @Test
+    public void whenINVAndCacheOwnersThenWriteBehind() throws Exception {
+        mm.setCacheOwners(true);
+        mm.setOwnerWriteBehindPeriod(100000);
+        mm.init();
+
+        when(store.getOwner(id(154))).thenReturn(sh(5));
+        when(store.casOwner(id(154), sh(5), sh(20))).thenReturn(sh(20));
+        final Message.INV inv1 = Message.INV(sh(10), id(154), sh(5));
+        final Message.INV inv2 = Message.INV(sh(20), id(154), sh(10));
+        mm.receive(inv1);
+        mm.receive(inv2);
+
+        verify(comm).send(argThat(equalTo(Message.INVACK(inv1))));
+        verify(comm).send(argThat(equalTo(Message.INVACK(inv2))));
+        verify(store, times(1)).getOwner(id(154));
+        verify(store, never()).casOwner(anyLong(), anyShort(), anyShort());
+
+        mm.shutdown();
+
+        verify(store).casOwner(id(154), sh(5), sh(20));
+    }
+
     /**
      * When INV is received but previous owner is wrong, don't change the owner and reply INV.
      */
@@ -200,6 +230,81 @@ public class MainMemoryTest {
         verify(store).removeOwner(sh(10));
     }
 
+    /**
+     * When nodeRemoved is fired with several workers, owners are removed only once the partitions are done with the messages they've received
+     */
+    @Test
+    public void whenNodeRemovedAndWorkersThenRemoveOwnerBetweenMessages() throws Exception {
+        mm.setWorkers(2);
+        mm.init();
+
+        final CountDownLatch casing = new CountDownLatch(1);
+        final CountDownLatch cas = new CountDownLatch(1);
+        when(store.casOwner(id(154), sh(10), sh(20))).thenAnswer(new Answer<Short>() {
+            @Override
+            public Short answer(InvocationOnMock invocation) throws Throwable {
+                casing.countDown();
+                cas.await();
+                return sh(20);
+            }
+        });
+        mm.receive(Message.INV(sh(20), id(154), sh(10)));
+        casing.await();
+
+        final Thread remover = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mm.nodeRemoved(sh(10));
+            }
+        });
+        remover.start();
+        Thread.sleep(100);
+        verify(store, never()).removeOwner(anyShort());
+
+        cas.countDown();
+        remover.join(1000);
+        InOrder inOrder = inOrder(store);
+        inOrder.verify(store).casOwner(id(154), sh(10), sh(20));
+        inOrder.verify(store).removeOwner(sh(10));
+
+        mm.shutdown();
+    }
+
+    /**
+     * When owners are revoked lazily, a line owned by a removed node is returned to the server when it's accessed,
+     * before the store has been cleaned up
+     */
+    @Test
+    public void whenNodeRemovedAndLazyOwnerRevocationThenRevokeOnAccess() throws Exception {
+        mm.setLazyOwnerRevocation(true);
+        mm.init();
+
+        final CountDownLatch removing = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                removing.await();
+                return null;
+            }
+        }).when(store).removeOwner(sh(10));
+        when(store.getOwner(id(154))).thenReturn(sh(10));
+        when(store.casOwner(id(154), sh(10), sh(0))).thenReturn(sh(0));
+        when(store.casOwner(id(154), sh(0), sh(20))).thenReturn(sh(20));
+        when(store.read(id(154))).thenReturn(new MainMemoryEntry(1234, new byte[]{3, 4, 5}));
+
+        mm.nodeRemoved(sh(10));
+        final LineMessage get = Message.GET(sh(20), id(154));
+        mm.receive(get);
+
+        verify(store).casOwner(id(154), sh(10), sh(0));
+        verify(comm).send(argThat(equalTo(Message.PUTX(get, id(154), new short[0], 0, 1234, ByteBuffer.wrap(new byte[]{3, 4, 5})))));
+
+        removing.countDown();
+        mm.shutdown();
+        verify(store).removeOwner(sh(10));
+        assertEquals(0, mm.getNumRevokedNodes());
+    }
+
     /**
      * When BACKUP_PACKET is received, updates are written to store
      */
@@ -227,6 +332,205 @@ public class MainMemoryTest {
         verifyNoMoreInteractions(monitor);
     }
 
+    /**
+     * When BACKUP_PACKET is received with several workers, each partition commits its updates and the packet is acked once, after all commits
+     */
+    @Test
+    public void whenBACKUP_PACKETAndWorkersThenCommitPartitionsAndAckOnce() throws Exception {
+        mm.setWorkers(2);
+        mm.init();
+
+        final ByteBuffer buffer1 = randomBuffer(50);
+        final ByteBuffer buffer2 = randomBuffer(50);
+        final ByteBuffer buffer3 = randomBuffer(50);
+
+        final BACKUP_PACKET bp = Message.BACKUP_PACKET(7, Arrays.asList(
+                Message.BACKUP(id(1), 4, buffer1),
+                Message.BACKUP(id(2), 5, buffer2),
+                Message.BACKUP(id(3), 6, buffer3)));
+        bp.setNode(sh(10));
+        mm.receive(bp);
+
+        verify(comm, timeout(1000)).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp))));
+        verify(store, times(2)).beginTransaction();
+        verify(store, times(2)).commit(anyObject());
+        verify(store).write(eq(id(1)), eq(sh(10)), eq(4L), eq(Persistables.toByteArray(buffer1)), anyObject());
+        verify(store).write(eq(id(2)), eq(sh(10)), eq(5L), eq(Persistables.toByteArray(buffer2)), anyObject());
+        verify(store).write(eq(id(3)), eq(sh(10)), eq(6L), eq(Persistables.toByteArray(buffer3)), anyObject());
+        verify(comm, times(1)).send(any(Message.class));
+        verify(monitor).addTransaction(3);
+
+        mm.shutdown();
+    }
+
+    /**
+     * When the read cache is enabled, a line served by the server is read from the store once, until it's written
+     */
+    @Test
+    public void whenReadCacheThenReadOnceUntilWritten() throws Exception {
+        mm.setReadCacheSize(1024);
+        mm.init();
+
+        when(store.casOwner(id(154), sh(0), sh(10))).thenReturn(sh(10));
+        when(store.read(id(154))).thenReturn(new MainMemoryEntry(1234, new byte[]{3, 4, 5}));
+
+        final LineMessage get1 = Message.GET(sh(10), id(154));
+        final LineMessage get2 = Message.GET(sh(10), id(154));
+        mm.receive(get1);
+        mm.receive(get2);
+
+        verify(store, times(1)).read(id(154));
+        verify(comm, times(2)).send(argThat(equalTo(Message.PUTX(get2, id(154), new short[0], 0, 1234, ByteBuffer.wrap(new byte[]{3, 4, 5})))));
+        verify(monitor).addReadCacheMiss();
+        verify(monitor).addReadCacheHit();
+
+        final BACKUP_PACKET bp = Message.BACKUP_PACKET(7, Arrays.asList(Message.BACKUP(id(154), 1235, randomBuffer(10))));
+        bp.setNode(sh(10));
+        mm.receive(bp);
+        mm.receive(Message.GET(sh(10), id(154)));
+
+        verify(store, times(2)).read(id(154));
+        verify(monitor, times(2)).addReadCacheMiss();
+    }
+
+    /**
+     * When the store is used asynchronously, BACKUP_PACKETACK is sent once the commit completes, and PUTX once the read completes,
+     * and a GET of a line waits for the commit of its backup
+     */
+    @Test
+    public void whenAsyncStoreThenReplyWhenStoreOperationCompletes() throws Exception {
+        mm.setAsyncStoreThreads(2);
+        mm.init();
+
+        final CountDownLatch committing = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                committing.await();
+                return null;
+            }
+        }).when(store).commit(anyObject());
+        when(store.casOwner(id(1), sh(0), sh(20))).thenReturn(sh(20));
+        when(store.read(id(1))).thenReturn(new MainMemoryEntry(4, new byte[]{3, 4, 5}));
+
+        final ByteBuffer buffer1 = randomBuffer(50);
+        final BACKUP_PACKET bp = Message.BACKUP_PACKET(7, Arrays.asList(Message.BACKUP(id(1), 4, buffer1)));
+        bp.setNode(sh(10));
+        mm.receive(bp);
+
+        verify(comm, never()).send(any(Message.class));
+
+        final LineMessage get = Message.GET(sh(20), id(1));
+        final Thread getter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mm.receive(get);
+            }
+        });
+        getter.start();
+        getter.join(100);
+        assertTrue(getter.isAlive()); // waits for the commit
+        verify(store, never()).read(anyLong());
+
+        committing.countDown();
+        getter.join();
+        verify(comm, timeout(5000).times(2)).send(any(Message.class)); // in either order
+        verify(comm).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp))));
+        verify(comm).send(argThat(equalTo(Message.PUTX(get, id(1), new short[0], 0, 4, ByteBuffer.wrap(new byte[]{3, 4, 5})))));
+        verify(store).write(eq(id(1)), eq(sh(10)), eq(4L), eq(Persistables.toByteArray(buffer1)), anyObject());
+        InOrder inOrder = inOrder(store);
+        inOrder.verify(store).commit(anyObject());
+        inOrder.verify(store).read(id(1));
+
+        mm.shutdown();
+    }
+
+    /**
+     * When the store is used asynchronously, a BACKUP_PACKET is committed only after the earlier packets that back up the same lines
+     */
+    @Test
+    public void whenAsyncStoreThenCommitBackupsOfLineInOrder() throws Exception {
+        mm.setAsyncStoreThreads(2);
+        mm.init();
+
+        final CountDownLatch committing = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                committing.await();
+                return null;
+            }
+        }).doNothing().when(store).commit(anyObject());
+
+        final BACKUP_PACKET bp1 = Message.BACKUP_PACKET(7, Arrays.asList(Message.BACKUP(id(1), 4, randomBuffer(50))));
+        bp1.setNode(sh(10));
+        mm.receive(bp1);
+        final BACKUP_PACKET bp2 = Message.BACKUP_PACKET(8, Arrays.asList(Message.BACKUP(id(1), 5, randomBuffer(50))));
+        bp2.setNode(sh(10));
+        mm.receive(bp2);
+
+        Thread.sleep(100);
+        verify(store, never()).write(anyLong(), anyShort(), eq(5L), any(byte[].class), anyObject()); // waits for the first commit
+
+        committing.countDown();
+        verify(comm, timeout(5000).times(2)).send(any(Message.class));
+        InOrder inOrder = inOrder(store, comm);
+        inOrder.verify(store).write(eq(id(1)), eq(sh(10)), eq(4L), any(byte[].class), anyObject());
+        inOrder.verify(comm).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp1))));
+        inOrder.verify(store).write(eq(id(1)), eq(sh(10)), eq(5L), any(byte[].class), anyObject());
+        inOrder.verify(comm).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp2))));
+
+        mm.shutdown();
+    }
+
+    /**
+     * When an asynchronous read fails, the line is returned to the server and the requester gets NOT_FOUND
+     */
+    @Test
+    public void whenAsyncReadFailsThenReplyNOT_FOUND() throws Exception {
+        mm.setAsyncStoreThreads(2);
+        mm.init();
+
+        when(store.casOwner(id(1), sh(0), sh(20))).thenReturn(sh(20));
+        when(store.read(id(1))).thenThrow(new RuntimeException("read failed"));
+
+        final LineMessage get = Message.GET(sh(20), id(1));
+        mm.receive(get);
+
+        verify(comm, timeout(5000)).send(argThat(equalTo(Message.NOT_FOUND(get))));
+        verify(store).casOwner(id(1), sh(20), sh(0));
+
+        mm.shutdown();
+    }
+
+    /**
+     * When BACKUP_PACKETs from different nodes arrive within the group commit window, they're committed in one transaction and then both acked
+     */
+    @Test
+    public void whenBACKUP_PACKETsInGroupCommitWindowThenCommitOnceAndAckAll() throws Exception {
+        mm.setGroupCommitWindow(100000);
+        mm.init();
+
+        final ByteBuffer buffer1 = randomBuffer(50);
+        final ByteBuffer buffer2 = randomBuffer(50);
+
+        final BACKUP_PACKET bp1 = Message.BACKUP_PACKET(7, Arrays.asList(Message.BACKUP(id(1), 4, buffer1)));
+        bp1.setNode(sh(10));
+        final BACKUP_PACKET bp2 = Message.BACKUP_PACKET(3, Arrays.asList(Message.BACKUP(id(2), 5, buffer2)));
+        bp2.setNode(sh(20));
+        mm.receive(bp1);
+        mm.receive(bp2);
+
+        verify(comm, timeout(1000)).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp1))));
+        verify(comm, timeout(1000)).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp2))));
+        verify(store, times(1)).beginTransaction();
+        verify(store, times(1)).commit(anyObject());
+        verify(store).write(eq(id(1)), eq(sh(10)), eq(4L), eq(Persistables.toByteArray(buffer1)), anyObject());
+        verify(store).write(eq(id(2)), eq(sh(20)), eq(5L), eq(Persistables.toByteArray(buffer2)), anyObject());
+
+        mm.shutdown();
+    }
+
     /////////////////////////////////////////////////////////////////////////////////
     short sh(int x) {
         return (short) x;
@@ -250,4 +554,7 @@ public class MainMemoryTest {
         buffer.flip();
         return buffer;
     }
+
+    interface Store extends MainMemoryDB, OwnerLookup {
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.core.PersistentCacheStorage.StoredLine;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author pron
+ */
+public class MappedLocalStorageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    String file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "cache").getPath();
+    }
+
+    @Test
+    public void whenRestartedThenRecoverPersistedLines() throws Exception {
+        MappedLocalStorage storage = newStorage(true);
+        final List<StoredLine> lines = new ArrayList<StoredLine>();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer data = storage.allocateStorage(10 + i * 5);
+            data.limit(10 + i * 5);
+            for (int j = 0; j < data.limit(); j++)
+                data.put(j, (byte) (i + j));
+            if (i % 2 == 0)
+                lines.add(new StoredLine(1000 + i, i + 1, data));
+            else
+                storage.deallocateStorage(1000 + i, data);
+        }
+        final long totalSize = storage.getTotalAllocatedSize();
+        storage.persist(lines);
+
+        storage = newStorage(true);
+        final Collection<StoredLine> recovered = storage.recover();
+        assertEquals(50, recovered.size());
+        assertEquals(totalSize, storage.getTotalAllocatedSize());
+        final Set<Long> offsets = new HashSet<Long>();
+        for (StoredLine line : recovered) {
+            final int i = (int) (line.id - 1000);
+            assertEquals(i + 1, line.version);
+            assertEquals(10 + i * 5, line.data.limit());
+            for (int j = 0; j < line.data.limit(); j++)
+                assertEquals((byte) (i + j), line.data.get(j));
+            offsets.add(storage.getOffset(line.data));
+        }
+
+        for (int i = 0; i < 1000; i++) // new cells don't overlap recovered ones
+            assertFalse(offsets.contains(storage.getOffset(storage.allocateStorage(10 + (i % 100) * 5))));
+
+        assertTrue(newStorage(true).recover().isEmpty()); // the index is read only once
+    }
+
+    @Test
+    public void whenNotWarmRestartThenRecoverNothing() throws Exception {
+        MappedLocalStorage storage = newStorage(false);
+        final List<StoredLine> lines = new ArrayList<StoredLine>();
+        lines.add(new StoredLine(1, 1, storage.allocateStorage(100)));
+        storage.persist(lines);
+
+        assertTrue(newStorage(true).recover().isEmpty());
+    }
+
+    private MappedLocalStorage newStorage(boolean warmRestart) throws Exception {
+        final MappedLocalStorage storage = new MappedLocalStorage("storage", file, 1, 1024, null);
+        storage.setSlabSize(4096);
+        storage.setWarmRestart(warmRestart);
+        storage.afterPropertiesSet();
+        return storage;
+    }
+}
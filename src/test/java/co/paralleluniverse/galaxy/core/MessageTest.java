@@ -29,6 +29,8 @@ import co.paralleluniverse.galaxy.core.Message.INV;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import co.paralleluniverse.galaxy.core.Message.MSG;
 import co.paralleluniverse.galaxy.core.Message.ALLOC_REF;
+import co.paralleluniverse.galaxy.LineFunctionRegistry;
+import co.paralleluniverse.galaxy.PersistableLineFunction;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -188,6 +190,11 @@ public class MessageTest {
         testSerialize(Message.BACKUP_PACKET(rand.nextLong(), Collections.EMPTY_LIST));
     }
 
+    @Test
+    public void testBACKUP_SYNCSer() {
+        testSerialize(Message.BACKUP_SYNC(rand.nextLong(), rand.nextLong()));
+    }
+
     @Test
     public void testALLOC_REFSer() {
         testSerialize(Message.ALLOC_REF((short) rand.nextInt(), rand.nextInt()));
@@ -215,6 +222,65 @@ public class MessageTest {
         testSerialize(Message.MSGACK(msg1));
     }
 
+    @Test
+    public void testRegisteredINVOKESer() {
+        LineFunctionRegistry.register(1001, AddFunction.class);
+        final Message.INVOKE msg = Message.INVOKE((short) 5, rand.nextLong(), new AddFunction(17));
+        testSerialize(msg);
+
+        final Message.INVOKE msg2 = (Message.INVOKE) Message.fromByteArray(msg.toByteArray());
+        assertThat(msg2.sizeNoHeader(), is(8 + 2 + 2 + 8));
+        final AddFunction f = (AddFunction) msg2.getFunction();
+        assertThat(f.delta, is(17L));
+        final Message.INVOKE msg3 = Message.INVOKE((short) 5, rand.nextLong(), new AddFunction(18));
+        assertThat(((AddFunction) ((Message.INVOKE) Message.fromByteArray(msg3.toByteArray())).getFunction()).delta, is(18L));
+        assertThat(f.delta, is(17L)); // each read makes a new instance
+    }
+
+    @Test
+    public void testINVRESSer() {
+        final LineMessage msg = Message.GET((short) 5, rand.nextLong());
+        for (Object result : new Object[]{null, true, 123, 12345678901L, "foo"}) {
+            final Message.INVRES res = Message.INVRES(msg, rand.nextLong(), result);
+            testSerialize(res);
+            assertThat(((Message.INVRES) Message.fromByteArray(res.toByteArray())).getResult(), is(result));
+        }
+    }
+
+    static class AddFunction implements PersistableLineFunction<Long> {
+        long delta;
+
+        AddFunction() {
+        }
+
+        AddFunction(long delta) {
+            this.delta = delta;
+        }
+
+        @Override
+        public Long invoke(LineAccess lineAccess) {
+            final ByteBuffer buffer = lineAccess.getForWrite(-1);
+            final long value = buffer.getLong(0) + delta;
+            buffer.putLong(0, value);
+            return value;
+        }
+
+        @Override
+        public int size() {
+            return 8;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.putLong(delta);
+        }
+
+        @Override
+        public void read(ByteBuffer buffer) {
+            delta = buffer.getLong();
+        }
+    }
+
     /////////////////////////////////////////////////////////////
     private void testSerialize(Message message) {
         testArraySerialize(message);
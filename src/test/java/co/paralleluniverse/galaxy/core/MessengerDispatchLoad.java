@@ -0,0 +1,122 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.MessageListener;
+import co.paralleluniverse.galaxy.core.MessengerImpl.DispatchOrdering;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.*;
+
+/**
+ * Measures the throughput of messages sent from several nodes to one node on many topics, under each {@link DispatchOrdering}.
+ * Each sender runs its own {@link MessengerImpl}, whose messages are handed to the receiving messenger as if they came over the network.
+ * Listeners do a little work per message, and the listener of topic 0 is much slower than the rest.
+ *
+ * @author pron
+ */
+public class MessengerDispatchLoad {
+    private static final int NODES = 4;
+    private static final int TOPICS = 256;
+    private static final int MESSAGES_PER_NODE = 200000;
+    private static final long WORK_NANOS = 1000;
+    private static final long SLOW_WORK_NANOS = 50000;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < 2; i++) { // the first round warms up
+            for (DispatchOrdering ordering : DispatchOrdering.values())
+                run(ordering);
+        }
+    }
+
+    private static void run(DispatchOrdering ordering) throws Exception {
+        final Cache receiverCache = mock(Cache.class);
+        final MessengerImpl receiver = new MessengerImpl("messenger", receiverCache, new NodeOrderedThreadPoolExecutor(mock(Cluster.class),
+                2, 8, 5000, TimeUnit.MILLISECONDS, -1));
+        receiver.setDispatchOrdering(ordering);
+        receiver.afterPropertiesSet();
+        final ArgumentCaptor<MessageReceiver> captor = ArgumentCaptor.forClass(MessageReceiver.class);
+        verify(receiverCache).setReceiver(captor.capture());
+        final MessageReceiver network = captor.getValue();
+
+        final CountDownLatch done = new CountDownLatch(NODES * MESSAGES_PER_NODE);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        for (int t = 0; t < TOPICS; t++) {
+            final long work = t == 0 ? SLOW_WORK_NANOS : WORK_NANOS;
+            receiver.addMessageListener(t, new MessageListener() {
+                private final int[] lastSeq = new int[NODES];
+
+                @Override
+                public void messageReceived(short fromNode, byte[] message) {
+                    final int seq = ByteBuffer.wrap(message).getInt();
+                    synchronized (lastSeq) { // with TOPIC_AND_NODE, different nodes may call us concurrently
+                        if (seq <= lastSeq[fromNode - 1])
+                            error.compareAndSet(null, "Message " + seq + " from node " + fromNode + " after " + lastSeq[fromNode - 1]);
+                        lastSeq[fromNode - 1] = seq;
+                    }
+                    final long end = System.nanoTime() + work;
+                    while (System.nanoTime() < end)
+                        ;
+                    done.countDown();
+                }
+            });
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int n = 1; n <= NODES; n++) {
+            final short node = (short) n;
+            final Cache senderCache = mock(Cache.class);
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    final Message.MSG msg = (Message.MSG) invocation.getArguments()[0];
+                    network.receive(Message.MSG(node, -1, true, msg.getData()));
+                    return null;
+                }
+            }).when(senderCache).send(any(Message.MSG.class));
+            final MessengerImpl sender = new MessengerImpl("messenger", senderCache, new NodeOrderedThreadPoolExecutor(mock(Cluster.class),
+                    1, 1, 5000, TimeUnit.MILLISECONDS, -1));
+            sender.afterPropertiesSet();
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 1; i <= MESSAGES_PER_NODE; i++)
+                        sender.send((short) 0, (long) (i % TOPICS), ByteBuffer.allocate(4).putInt(0, i).array());
+                }
+            }).start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long millis = TimeUnit.MILLISECONDS.convert(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        receiver.destroy();
+
+        final long messages = (long) NODES * MESSAGES_PER_NODE;
+        System.out.println(ordering + ": " + messages + " messages on " + TOPICS + " topics in " + millis + " ms ("
+                + (messages / Math.max(millis, 1)) + " K/s)" + (error.get() != null ? " - ORDERING VIOLATED: " + error.get() : ""));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.MessageListener;
+import co.paralleluniverse.galaxy.RequestListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author pron
+ */
+public class MessengerImplTest {
+    private Cache cache;
+    private MessengerImpl messenger;
+    private MessageReceiver receiver;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = mock(Cache.class);
+        messenger = new MessengerImpl("messenger", cache, new NodeOrderedThreadPoolExecutor(mock(Cluster.class), 1, 1, 5000, TimeUnit.MILLISECONDS, -1));
+        messenger.setMaxBatchSize(10);
+        messenger.afterPropertiesSet();
+        final ArgumentCaptor<MessageReceiver> captor = ArgumentCaptor.forClass(MessageReceiver.class);
+        verify(cache).setReceiver(captor.capture());
+        receiver = captor.getValue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        messenger.destroy();
+    }
+
+    @Test
+    public void testSendBatch() throws Exception {
+        final List<byte[]> data = Arrays.asList(new byte[]{1, 2, 3}, new byte[]{4, 5}, new byte[]{6}, new byte[]{7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18});
+        messenger.sendBatch((short) 2, 5L, data);
+
+        final ArgumentCaptor<Message.MSG> sent = ArgumentCaptor.forClass(Message.MSG.class);
+        verify(cache, times(3)).send(sent.capture()); // [1,2,3][4,5] + [6] + [7..18]
+        for (Message.MSG msg : sent.getAllValues())
+            assertThat(msg.getNode(), is((short) 2));
+
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch latch = new CountDownLatch(data.size());
+        messenger.addMessageListener(5L, new MessageListener() {
+            @Override
+            public void messageReceived(short fromNode, byte[] message) {
+                received.add(message);
+                latch.countDown();
+            }
+        });
+        for (Message.MSG msg : sent.getAllValues())
+            receiver.receive(Message.MSG((short) 3, -1, true, msg.getData()));
+
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < data.size(); i++)
+            assertArrayEquals(data.get(i), received.get(i));
+    }
+
+    @Test
+    public void testBroadcast() throws Exception {
+        messenger.broadcast("foo", new byte[]{1, 2, 3});
+
+        final ArgumentCaptor<Message.MSG> sent = ArgumentCaptor.forClass(Message.MSG.class);
+        verify(cache).send(sent.capture());
+        final Message.MSG msg = sent.getValue();
+        assertThat(msg.isBroadcast(), is(true));
+        assertThat(msg.getLine(), is(-1L));
+        assertThat(msg.isMessenger(), is(true));
+        assertThat(msg.isReplyRequired(), is(false));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        messenger.addMessageListener("foo", new MessageListener() {
+            @Override
+            public void messageReceived(short fromNode, byte[] message) {
+                assertThat(fromNode, is((short) 3));
+                assertArrayEquals(new byte[]{1, 2, 3}, message);
+                latch.countDown();
+            }
+        });
+        receiver.receive(Message.MSG((short) 3, -1, true, msg.getData()));
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void testRequest() throws Exception {
+        loopback();
+        messenger.addMessageListener(5L, new MessageListener() {
+            @Override
+            public void messageReceived(short fromNode, byte[] message) {
+                fail("Requests should only be passed to the request listener");
+            }
+        });
+        messenger.addMessageListener(5L, new RequestListener() {
+            @Override
+            public byte[] requestReceived(short fromNode, byte[] request) {
+                return new byte[]{(byte) (request[0] + 1)};
+            }
+
+            @Override
+            public void messageReceived(short fromNode, byte[] message) {
+            }
+        });
+
+        assertArrayEquals(new byte[]{2}, messenger.request((short) 3, 5L, new byte[]{1}, 5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{8}, messenger.request((short) 3, 5L, new byte[]{7}, 5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRequestWithoutListenerFails() throws Exception {
+        loopback();
+        try {
+            messenger.request((short) 3, "nobody", new byte[]{1}, 5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), containsString("No request listener"));
+        }
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        try {
+            messenger.request((short) 3, 5L, new byte[]{1}, 50, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(co.paralleluniverse.galaxy.TimeoutException.class));
+        }
+    }
+
+    /**
+     * Passes every sent message back to the messenger, as if it came from node 3.
+     */
+    private void loopback() {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                final Message.MSG msg = (Message.MSG) invocation.getArguments()[0];
+                receiver.receive(Message.MSG((short) 3, -1, true, msg.getData()));
+                return null;
+            }
+        }).when(cache).send(org.mockito.Matchers.any(Message.MSG.class));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Like {@link OffHeapLocalStorageLoad}, but measures the throughput of deallocate/allocate pairs with 1 to 32 threads, with and
+ * without per-thread magazines.
+ *
+ * @author pron
+ */
+public class OffHeapLocalStorageScalingLoad {
+    private static final int MAX_THREADS = 32;
+    private static final int NUM_BUFFERS = 1000;
+    private static final int OPS_PER_THREAD = 2000000;
+    private static final int MAX_POWER_TWO = 10;
+
+    public static void main(String[] args) throws Exception {
+        for (int magazineSize : new int[]{0, 32}) {
+            for (int threads = 1; threads <= MAX_THREADS; threads *= 2)
+                run(magazineSize, threads);
+        }
+    }
+
+    private static void run(int magazineSize, int numThreads) throws Exception {
+        final OffHeapLocalStorage storage = new OffHeapLocalStorage("storage", 1 << (MAX_POWER_TWO - 10 + 2), 1 << MAX_POWER_TWO, null);
+        storage.setMagazineSize(magazineSize);
+        storage.afterPropertiesSet();
+
+        final CountDownLatch ready = new CountDownLatch(numThreads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final ByteBuffer[] buffers = new ByteBuffer[NUM_BUFFERS];
+                    for (int i = 0; i < buffers.length; i++)
+                        buffers[i] = storage.allocateStorage(randSize());
+                    ready.countDown();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int n = 0; n < OPS_PER_THREAD; n++) {
+                        final int i = ThreadLocalRandom.current().nextInt(0, buffers.length);
+                        storage.deallocateStorage(-1, buffers[i]);
+                        buffers[i] = storage.allocateStorage(randSize());
+                    }
+                    for (ByteBuffer buffer : buffers)
+                        storage.deallocateStorage(-1, buffer);
+                    done.countDown();
+                }
+            }).start();
+        }
+        ready.await();
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long millis = TimeUnit.MILLISECONDS.convert(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        final long ops = (long) numThreads * OPS_PER_THREAD;
+        System.out.println("magazineSize: " + magazineSize + " threads: " + numThreads + " - " + ops + " deallocate/allocate pairs in "
+                + millis + " ms (" + (ops / Math.max(millis, 1)) + " K/s)");
+    }
+
+    private static int randSize() {
+        int n = 1 << ThreadLocalRandom.current().nextInt(0, MAX_POWER_TWO);
+        return n + ThreadLocalRandom.current().nextInt(0, n);
+    }
+}
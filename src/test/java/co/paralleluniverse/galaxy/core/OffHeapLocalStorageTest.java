@@ -0,0 +1,142 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author pron
+ */
+public class OffHeapLocalStorageTest {
+    static final int CELL_SIZE = 64;
+    static final int BIN = 3; // 8, 16, 32, 64
+    static final int CELLS_PER_PAGE = 1024 / CELL_SIZE;
+    OffHeapLocalStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new OffHeapLocalStorage("storage", 1, 1024, null);
+        storage.setMagazineSize(0); // cells held in a magazine keep their pages from being freed
+        storage.afterPropertiesSet();
+    }
+
+    @Test
+    public void whenAllCellsDeallocatedThenFreeAllButOnePage() {
+        final List<ByteBuffer> buffers = allocate(10 * CELLS_PER_PAGE);
+        assertEquals(10, storage.getNumPages(BIN));
+
+        for (ByteBuffer buffer : buffers)
+            storage.deallocateStorage(0, buffer);
+        storage.compact();
+
+        assertEquals(1, storage.getNumPages(BIN));
+        assertEquals(0, storage.getTotalAllocatedSize());
+    }
+
+    @Test
+    public void whenPagesSparseThenRelocateAndFreePages() {
+        final List<ByteBuffer> buffers = allocate(10 * CELLS_PER_PAGE);
+        final List<ByteBuffer> live = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < buffers.size(); i++) {
+            if (i % 8 == 0)
+                live.add(buffers.get(i));
+            else
+                storage.deallocateStorage(0, buffers.get(i));
+        }
+        assertEquals(0.875, storage.getFragmentation(BIN), 0.001);
+
+        storage.setRelocator(new CompactingCacheStorage.Relocator() {
+            @Override
+            public void relocate() {
+                for (int i = 0; i < live.size(); i++) {
+                    final ByteBuffer buffer = live.get(i);
+                    if (storage.shouldRelocate(buffer)) {
+                        final ByteBuffer allocated = storage.allocateStorage(buffer.capacity());
+                        final ByteBuffer contents = buffer.duplicate();
+                        contents.clear();
+                        allocated.put(contents);
+                        allocated.clear();
+                        storage.deallocateStorage(0, buffer);
+                        live.set(i, allocated);
+                    }
+                }
+            }
+        });
+        storage.compact();
+
+        assertEquals(2, storage.getNumPages(BIN));
+        assertEquals(live.size() * CELL_SIZE, storage.getTotalAllocatedSize());
+        for (int i = 0; i < live.size(); i++)
+            assertEquals(i * 8, live.get(i).getInt(4));
+    }
+
+    @Test
+    public void whenMagazineOverflowsThenReturnHalfToPages() throws Exception {
+        storage = newStorage(4);
+        final List<ByteBuffer> buffers = allocate(2 * CELLS_PER_PAGE); // taken from the pages 4 at a time
+        assertEquals(0.0, storage.getFragmentation(BIN), 0.0);
+
+        for (ByteBuffer buffer : buffers)
+            storage.deallocateStorage(0, buffer);
+        assertEquals(0, storage.getTotalAllocatedSize());
+        assertEquals(1.0 - 8.0 / (2 * CELLS_PER_PAGE), storage.getFragmentation(BIN), 0.001); // the magazine keeps up to 8
+
+        storage.allocateStorage(CELL_SIZE); // from the magazine
+        assertEquals(1.0 - 8.0 / (2 * CELLS_PER_PAGE), storage.getFragmentation(BIN), 0.001);
+        assertEquals(0, storage.drainDeadThreads()); // our magazine is not drained while we're alive
+    }
+
+    @Test
+    public void whenThreadTerminatesThenReturnItsMagazinesToPages() throws Exception {
+        storage = newStorage(4);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (ByteBuffer buffer : allocate(3 * CELLS_PER_PAGE))
+                    storage.deallocateStorage(0, buffer);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(0, storage.getTotalAllocatedSize());
+        assertTrue(storage.getFragmentation(BIN) < 1.0);
+
+        storage.compact();
+        assertEquals(1.0, storage.getFragmentation(BIN), 0.0);
+        assertEquals(1, storage.getNumPages(BIN));
+    }
+
+    private OffHeapLocalStorage newStorage(int magazineSize) throws Exception {
+        final OffHeapLocalStorage s = new OffHeapLocalStorage("storage", 1, 1024, null);
+        s.setMagazineSize(magazineSize);
+        s.afterPropertiesSet();
+        return s;
+    }
+
+    private List<ByteBuffer> allocate(int n) {
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(n);
+        for (int i = 0; i < n; i++) {
+            final ByteBuffer buffer = storage.allocateStorage(CELL_SIZE);
+            buffer.putInt(4, i);
+            buffers.add(buffer);
+        }
+        return buffers;
+    }
+}
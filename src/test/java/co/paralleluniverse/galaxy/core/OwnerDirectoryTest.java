@@ -0,0 +1,97 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import co.paralleluniverse.galaxy.server.OwnerLookup;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.Matchers.anyLong;
+
+/**
+ *
+ * @author pron
+ */
+public class OwnerDirectoryTest {
+    private static final int STRIPES = 64; // lines whose ids differ by a multiple of this share a stripe
+    private MainMemoryTest.Store store;
+    private OwnerDirectory owners;
+
+    @Before
+    public void setUp() {
+        store = mock(MainMemoryTest.Store.class);
+        when(store.getOwner(anyLong())).thenReturn((short) 5);
+        owners = new OwnerDirectory(store, 2 * STRIPES); // two lines per stripe
+    }
+
+    @Test
+    public void whenFullThenDropLeastRecentlyUsedOwners() throws Exception {
+        owners.getOwner(0);
+        owners.getOwner(STRIPES);
+        owners.getOwner(0);
+        owners.getOwner(2 * STRIPES); // drops line STRIPES
+        assertThat(owners.size(), is(2));
+
+        owners.getOwner(0);
+        verify(store, times(1)).getOwner(0);
+        owners.getOwner(STRIPES);
+        verify(store, times(2)).getOwner(STRIPES);
+    }
+
+    @Test
+    public void whenFullThenKeepOwnersNotYetWritten() throws Exception {
+        assertThat(owners.casOwner(0, (short) 5, (short) 6), is((short) 6));
+        owners.getOwner(STRIPES);
+        owners.getOwner(2 * STRIPES);
+        owners.getOwner(3 * STRIPES);
+        assertThat(owners.getOwner(0), is((short) 6));
+        verify(store, times(1)).getOwner(0);
+
+        when(store.casOwner(0, (short) 5, (short) 6)).thenReturn((short) 6);
+        owners.flush();
+        owners.getOwner(STRIPES);
+        owners.getOwner(2 * STRIPES);
+        owners.getOwner(0);
+        verify(store, times(2)).getOwner(0);
+    }
+
+    @Test
+    public void whenOwnerRemovedThenServerOwnsCachedLinesAndStoreIsUpdated() throws Exception {
+        when(store.getOwner(1)).thenReturn((short) 10);
+        when(store.getOwner(2)).thenReturn((short) 11);
+        owners.getOwner(1);
+        owners.getOwner(2);
+
+        owners.removeOwner((short) 10);
+        assertThat(owners.getOwner(1), is((short) 0));
+        assertThat(owners.getOwner(2), is((short) 11));
+        verify(store).removeOwner((short) 10);
+
+        when(store.casOwner(1, (short) 10, (short) 0)).thenReturn((short) 0);
+        owners.flush();
+        verify(store).casOwner(1, (short) 10, (short) 0); // in case a flush had written node 10 back
+    }
+
+    @Test
+    public void whenStoreCannotLookUpOwnersThenReadOwnerWithCasOwner() throws Exception {
+        final MainMemoryDB store = mock(MainMemoryDB.class);
+        when(store.casOwner(1, (short) 0, (short) 0)).thenReturn((short) 7);
+        when(store.casOwner(2, (short) 0, (short) 0)).thenReturn((short) 0);
+        assertThat(OwnerDirectory.getOwner(store, 1), is((short) 7));
+        assertThat(OwnerDirectory.getOwner(store, 2), is((short) 0));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.common.io.Persistable;
+import co.paralleluniverse.galaxy.CacheListener;
+import co.paralleluniverse.galaxy.StoreTransaction;
+import com.google.common.base.Charsets;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyShort;
+import static org.mockito.Matchers.eq;
+
+/**
+ *
+ * @author pron
+ */
+public class RootDirectoryTest {
+    StoreImpl store;
+    FullCluster cluster;
+    Transaction txn;
+    private Map<Long, ByteBuffer> buffers;
+    private long nextId;
+    private AtomicInteger gets;
+
+    @Before
+    public void setUp() throws Exception {
+        store = mock(StoreImpl.class);
+        cluster = mock(FullCluster.class);
+        txn = mock(Transaction.class);
+        buffers = new HashMap<Long, ByteBuffer>();
+        nextId = 0x100000000L;
+        gets = new AtomicInteger();
+        when(cluster.hasServer()).thenReturn(true);
+        when(store.getMaxItemSize()).thenReturn(1024);
+
+        final Answer<Void> getAnswer = new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                gets.incrementAndGet();
+                read((Long) args[0], (Persistable) (args[1] instanceof Persistable ? args[1] : args[2]));
+                return null;
+            }
+        };
+        doAnswer(getAnswer).when(store).get1(anyLong(), org.mockito.Matchers.any(Persistable.class));
+        doAnswer(getAnswer).when(store).get1(anyLong(), anyShort(), org.mockito.Matchers.any(Persistable.class));
+        doAnswer(getAnswer).when(store).getx1(anyLong(), org.mockito.Matchers.any(Persistable.class), org.mockito.Matchers.any(StoreTransaction.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                write((Long) invocation.getArguments()[0], (Persistable) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(store).set1(anyLong(), org.mockito.Matchers.any(Persistable.class), org.mockito.Matchers.any(StoreTransaction.class));
+        when(store.put(org.mockito.Matchers.any(Persistable.class), org.mockito.Matchers.any(StoreTransaction.class))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                final long id = nextId++;
+                write(id, (Persistable) invocation.getArguments()[0]);
+                return id;
+            }
+        });
+        when(store.put(org.mockito.Matchers.any(byte[].class), org.mockito.Matchers.any(StoreTransaction.class))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return nextId++;
+            }
+        });
+    }
+
+    @Test
+    public void whenNewRootThenCreateItOnceAndRememberIt() throws Exception {
+        final RootDirectory directory = new RootDirectory(store, cluster);
+        final long root = directory.get("a", txn);
+        verify(txn).add(root);
+        verify(store).get1(eq(RootDirectory.DIRECTORY_ID), eq(Comm.SERVER), org.mockito.Matchers.any(Persistable.class));
+
+        final Transaction txn2 = mock(Transaction.class);
+        final int getsBefore = gets.get();
+        assertThat(directory.get("a", txn2), is(root));
+        assertThat(gets.get(), is(getsBefore));
+        verify(txn2, never()).add(anyLong());
+
+        // another node finds it with two shared gets
+        final RootDirectory other = new RootDirectory(store, cluster);
+        final Transaction txn3 = mock(Transaction.class);
+        gets.set(0);
+        assertThat(other.get("a", txn3), is(root));
+        assertThat(gets.get(), is(2));
+        verify(txn3, never()).add(anyLong());
+        verify(store, never()).getx1(eq(root), org.mockito.Matchers.any(Persistable.class), org.mockito.Matchers.any(StoreTransaction.class));
+    }
+
+    @Test
+    public void whenManyRootsThenDirectoryGrowsAndAllRootsAreFound() throws Exception {
+        when(store.getMaxItemSize()).thenReturn(256); // a directory of at most 16 buckets, so we get chains, too
+        final RootDirectory node1 = new RootDirectory(store, cluster);
+        final RootDirectory node2 = new RootDirectory(store, cluster);
+        final long[] roots = new long[1000];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = node1.get("root" + i, txn);
+            if (i % 100 == 0)
+                assertThat(node2.get("root" + i, mock(Transaction.class)), is(roots[i])); // node2's directory goes stale
+        }
+
+        final ByteBuffer dir = buffers.get(RootDirectory.DIRECTORY_ID);
+        assertThat(dir.getShort(0), is((short) 4));
+
+        for (int i = 0; i < roots.length; i++) {
+            final Transaction txn2 = mock(Transaction.class);
+            assertThat(node2.get("root" + i, txn2), is(roots[i]));
+            assertThat(new RootDirectory(store, cluster).get("root" + i, txn2), is(roots[i]));
+            verify(txn2, never()).add(anyLong());
+        }
+    }
+
+    @Test
+    public void whenDirectoryInvalidatedThenGetItAgain() throws Exception {
+        final RootDirectory directory = new RootDirectory(store, cluster);
+        directory.get("a", txn);
+        final ArgumentCaptor<CacheListener> listener = ArgumentCaptor.forClass(CacheListener.class);
+        verify(store).setListenerIfAbsent(eq(RootDirectory.DIRECTORY_ID), listener.capture());
+
+        directory.get("b", txn);
+        verify(store, never()).get1(eq(RootDirectory.DIRECTORY_ID), org.mockito.Matchers.any(Persistable.class));
+
+        listener.getValue().invalidated(null, RootDirectory.DIRECTORY_ID);
+        directory.get("c", txn);
+        verify(store).get1(eq(RootDirectory.DIRECTORY_ID), org.mockito.Matchers.any(Persistable.class));
+    }
+
+    @Test
+    public void whenRootInLegacyChainThenUseIt() throws Exception {
+        final String str = "a";
+        final ByteBuffer page = ByteBuffer.allocate(100);
+        page.putLong(-1);
+        page.putShort((short) 1);
+        final byte[] chars = str.getBytes(Charsets.UTF_8);
+        page.putShort((short) chars.length);
+        page.put(chars);
+        page.putLong(1234);
+        page.flip();
+        buffers.put((long) str.hashCode(), page);
+
+        assertThat(new RootDirectory(store, cluster).get(str, txn), is(1234L));
+        verify(txn, never()).add(anyLong());
+
+        buffers.remove((long) str.hashCode());
+        assertThat(new RootDirectory(store, cluster).get(str, txn), is(1234L));
+        verify(txn, never()).add(anyLong());
+    }
+
+    private void read(long id, Persistable p) {
+        final ByteBuffer buffer = buffers.get(id);
+        p.read(buffer);
+        if (buffer != null)
+            buffer.rewind();
+    }
+
+    private void write(long id, Persistable p) {
+        final ByteBuffer buffer = ByteBuffer.allocate(p.size());
+        p.write(buffer);
+        buffer.flip();
+        buffers.put(id, buffer);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.jdbc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+
+/**
+ * Measures SQLDB write throughput on an embedded Derby database, with and without upserts and with several connections.
+ *
+ * @author pron
+ */
+public class SQLDBLoad {
+    private static final int NUM_LINES = 20000;
+    private static final int TRANSACTIONS_PER_THREAD = 500;
+    private static final int WRITES_PER_TRANSACTION = 50;
+    private static final int DATA_SIZE = 200;
+
+    public static void main(String[] args) throws Exception {
+        int run = 0;
+        for (boolean upsert : new boolean[]{false, true}) {
+            for (int connections : new int[]{1, 4})
+                run("galaxy" + (run++), upsert, connections, connections);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String dbName, boolean upsert, int poolSize, int numThreads) throws Exception {
+        final EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:" + dbName);
+        dataSource.setCreateDatabase("create");
+
+        final SQLDB db = new SQLDB("db", dataSource);
+        db.setUseUpsert(upsert);
+        db.setPoolSize(poolSize);
+        db.setMaxItemSize(DATA_SIZE);
+        db.afterPropertiesSet();
+
+        final CountDownLatch latch = new CountDownLatch(numThreads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < numThreads; t++) {
+            final int partition = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final ThreadLocalRandom rand = ThreadLocalRandom.current();
+                    final byte[] data = new byte[DATA_SIZE];
+                    for (int i = 0; i < TRANSACTIONS_PER_THREAD; i++) {
+                        final Object txn = db.beginTransaction();
+                        for (int j = 0; j < WRITES_PER_TRANSACTION; j++) {
+                            final long id = rand.nextInt(NUM_LINES / numThreads) * numThreads + partition; // threads don't share lines, like MainMemory's partitions
+                            rand.nextBytes(data);
+                            db.write(id, (short) 1, i, data, txn);
+                        }
+                        db.commit(txn);
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        final long millis = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        final long writes = (long) numThreads * TRANSACTIONS_PER_THREAD * WRITES_PER_TRANSACTION;
+        System.out.println("upsert: " + upsert + " connections: " + poolSize + " threads: " + numThreads
+                + " - " + writes + " writes in " + millis + " ms (" + (writes * 1000 / Math.max(millis, 1)) + " writes/s)");
+        db.close();
+    }
+}
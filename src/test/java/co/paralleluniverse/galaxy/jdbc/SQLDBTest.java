@@ -0,0 +1,167 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.jdbc;
+
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import com.google.common.primitives.Longs;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class SQLDBTest {
+    private static final AtomicInteger dbCounter = new AtomicInteger();
+    private final List<SQLDB> dbs = new ArrayList<SQLDB>();
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.setProperty("derby.stream.error.file", new File(System.getProperty("java.io.tmpdir"), "derby.log").getPath()); // not in the working directory
+    }
+
+    @After
+    public void tearDown() {
+        for (SQLDB db : dbs)
+            db.close();
+    }
+
+    @Test
+    public void testWriteReadDelete() throws Exception {
+        for (boolean upsert : new boolean[]{false, true}) {
+            final SQLDB db = open(upsert);
+            db.write(1, (short) 5, 1, data(1, 1), null);
+            final Object txn = db.beginTransaction();
+            db.write(1, (short) 5, 2, data(1, 2), txn);
+            db.write(2, (short) 5, 1, data(2, 1), txn);
+            db.write(2, (short) 5, 2, data(2, 2), txn); // the same line twice in a batch
+            assertEntry(db.read(2), 2, 2); // the transaction's thread sees its pending writes
+            db.commit(txn);
+
+            assertEntry(db.read(1), 1, 2);
+            assertEntry(db.read(2), 2, 2);
+            assertThat(db.getOwner(1), is((short) 5));
+
+            final Object txn2 = db.beginTransaction();
+            db.write(3, (short) 5, 1, data(3, 1), txn2);
+            db.abort(txn2);
+            assertThat(db.read(3), is(nullValue()));
+
+            db.delete(1, null);
+            assertThat(db.read(1), is(nullValue()));
+            assertThat(db.getOwner(1), is((short) -1));
+        }
+    }
+
+    @Test
+    public void testCasOwner() throws Exception {
+        for (boolean upsert : new boolean[]{false, true}) {
+            final SQLDB db = open(upsert);
+            assertThat(db.casOwner(1, (short) -1, (short) 5), is((short) 5)); // insert
+            assertThat(db.getOwner(1), is((short) 5));
+            assertThat(db.read(1).version, is(-1L));
+            assertThat(db.read(1).data, is(nullValue()));
+
+            assertThat(db.casOwner(1, (short) -1, (short) 6), is((short) 5)); // the line exists
+            assertThat(db.casOwner(1, (short) 6, (short) 7), is((short) 5)); // wrong old owner
+            assertThat(db.casOwner(1, (short) 5, (short) 6), is((short) 6));
+            assertThat(db.getOwner(1), is((short) 6));
+            assertThat(db.casOwner(2, (short) 5, (short) 6), is((short) -1)); // no such line
+        }
+    }
+
+    @Test
+    public void whenWritingLineCreatedByCasOwnerThenKeepItsOwner() throws Exception {
+        for (boolean upsert : new boolean[]{false, true}) {
+            final SQLDB db = open(upsert);
+            db.casOwner(1, (short) -1, (short) 5);
+            db.casOwner(1, (short) 5, (short) 6);
+
+            db.write(1, (short) 5, 1, data(1, 1), null);
+            assertEntry(db.read(1), 1, 1);
+            assertThat(db.getOwner(1), is((short) 6));
+
+            final Object txn = db.beginTransaction();
+            db.write(1, (short) 5, 2, data(1, 2), txn);
+            db.write(2, (short) 5, 1, data(2, 1), txn);
+            db.commit(txn);
+            assertEntry(db.read(1), 1, 2);
+            assertThat(db.getOwner(1), is((short) 6));
+            assertThat(db.getOwner(2), is((short) 5));
+        }
+    }
+
+    @Test
+    public void whenOwnerRemovedThenServerOwnsItsLines() throws Exception {
+        final SQLDB db = open(true);
+        final int numLines = 2500; // more than one batch
+        final Object txn = db.beginTransaction();
+        for (long id = 1; id <= numLines; id++)
+            db.write(id, id % 2 == 0 ? (short) 5 : (short) 6, 1, data(id, 1), txn);
+        db.commit(txn);
+
+        db.removeOwner((short) 5);
+        for (long id = 1; id <= numLines; id++)
+            assertThat(db.getOwner(id), is(id % 2 == 0 ? (short) 0 : (short) 6));
+        assertEntry(db.read(2), 2, 1);
+
+        db.removeOwner((short) 7); // owns nothing
+        assertThat(db.getOwner(1), is((short) 6));
+    }
+
+    @Test
+    public void testAllocations() throws Exception {
+        final SQLDB db = open(true);
+        db.allocate((short) 5, 1000, 100);
+        db.allocate((short) 6, 1100, 100);
+        assertThat(db.findAllocation(1050), is((short) 5));
+        assertThat(db.findAllocation(1199), is((short) 6));
+        assertThat(db.getMaxId(), is(1199L));
+    }
+
+    private SQLDB open(boolean upsert) throws Exception {
+        final EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:sqldbtest" + dbCounter.incrementAndGet());
+        dataSource.setCreateDatabase("create");
+
+        final SQLDB db = new SQLDB("db", dataSource);
+        db.setUseUpsert(upsert);
+        db.setMaxItemSize(16);
+        db.afterPropertiesSet();
+        dbs.add(db);
+        assertThat(db.isUseUpsert(), is(upsert));
+        return db;
+    }
+
+    private static byte[] data(long id, long version) {
+        final byte[] data = new byte[16];
+        System.arraycopy(Longs.toByteArray(id), 0, data, 0, 8);
+        System.arraycopy(Longs.toByteArray(version), 0, data, 8, 8);
+        return data;
+    }
+
+    private static void assertEntry(MainMemoryEntry entry, long id, long version) {
+        assertThat(entry, is(notNullValue()));
+        assertThat(entry.version, is(version));
+        assertThat(entry.data, is(data(id, version)));
+    }
+}
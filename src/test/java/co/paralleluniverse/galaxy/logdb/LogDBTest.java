@@ -0,0 +1,172 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.logdb;
+
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import com.google.common.primitives.Longs;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class LogDBTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final List<LogDB> dbs = new ArrayList<LogDB>();
+
+    @After
+    public void tearDown() {
+        for (LogDB db : dbs)
+            db.close();
+    }
+
+    @Test
+    public void testWriteReadDelete() throws Exception {
+        final LogDB db = open(64 * 1024);
+        db.write(1, (short) 5, 1, data(1, 1), null);
+        final Object txn = db.beginTransaction();
+        db.write(1, (short) 5, 2, data(1, 2), txn);
+        db.write(2, (short) 5, 1, data(2, 1), txn);
+        assertThat(db.read(2), is(nullValue())); // not yet committed
+        db.commit(txn);
+
+        assertEntry(db.read(1), 1, 2);
+        assertEntry(db.read(2), 2, 1);
+        assertThat(db.getOwner(1), is((short) 5));
+
+        db.delete(1, null);
+        assertThat(db.read(1), is(nullValue()));
+        assertThat(db.getOwner(1), is((short) -1));
+        assertThat(db.read(3), is(nullValue()));
+    }
+
+    @Test
+    public void whenLineCreatedByCasOwnerThenReadReturnsEntryWithoutData() throws Exception {
+        final LogDB db = open(64 * 1024);
+        assertThat(db.casOwner(1, (short) -1, (short) 5), is((short) 5));
+        assertThat(db.read(1).data, is(nullValue()));
+        assertThat(db.read(1).version, is(0L));
+
+        final LogDB restarted = open(64 * 1024);
+        assertThat(restarted.getOwner(1), is((short) 0));
+        assertThat(restarted.read(1).data, is(nullValue()));
+    }
+
+    @Test
+    public void whenRestartedAfterCheckpointThenRecoverAllCommittedData() throws Exception {
+        final LogDB db = open(64 * 1024);
+        for (long id = 1; id <= 10; id++)
+            db.write(id, (short) 5, 1, data(id, 1), null);
+        db.checkpoint();
+        db.write(3, (short) 5, 2, data(3, 2), null);
+        db.delete(4, null);
+        db.write(11, (short) 5, 1, data(11, 1), null);
+
+        final LogDB restarted = open(64 * 1024); // "crash": the first instance is never closed
+        assertThat(restarted.getNumLines(), is(10));
+        assertEntry(restarted.read(3), 3, 2);
+        assertThat(restarted.read(4), is(nullValue()));
+        assertEntry(restarted.read(11), 11, 1);
+        assertEntry(restarted.read(1), 1, 1);
+        assertThat(restarted.getOwner(1), is((short) 0)); // all lines are owned by the server after a restart
+    }
+
+    @Test
+    public void whenCompactedThenReclaimSegmentsAndKeepLines() throws Exception {
+        final LogDB db = open(1024);
+        db.write(10, (short) 5, 1, data(10, 1), null); // keeps the first segment partially live
+        for (long version = 1; version <= 20; version++) {
+            for (long id = 1; id <= 9; id++)
+                db.write(id, (short) 5, version, data(id, version), null);
+        }
+        db.delete(4, null);
+        db.checkpoint();
+
+        final LogDB restarted = open(1024); // segments before the checkpoint are not scanned
+        final int segments = restarted.getNumSegments();
+        restarted.compact();
+        assertThat(restarted.getNumSegments() < segments / 2, is(true));
+        assertThat(new File(folder.getRoot(), String.format("%010d", 1) + ".log").exists(), is(false));
+
+        final LogDB compacted = open(1024);
+        assertThat(compacted.getNumLines(), is(9));
+        assertThat(compacted.read(4), is(nullValue()));
+        assertEntry(compacted.read(10), 10, 1);
+        for (long id = 1; id <= 9; id++) {
+            if (id != 4)
+                assertEntry(compacted.read(id), id, 20);
+        }
+    }
+
+    @Test
+    public void whenTailIsCorruptThenIgnoreTheTornTransaction() throws Exception {
+        final LogDB db = open(64 * 1024);
+        db.write(1, (short) 5, 1, data(1, 1), null);
+        final Object txn = db.beginTransaction();
+        db.write(2, (short) 5, 1, data(2, 1), txn);
+        db.write(3, (short) 5, 1, data(3, 1), txn);
+        db.commit(txn);
+
+        final File segment = new File(folder.getRoot(), String.format("%010d", 1) + ".log");
+        final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            final int entrySize = 1 + 8 + 8 + 2 + 4 + 16;
+            raf.seek((4 + 4 + entrySize) + (4 + 4) + entrySize + 1 + 8 + 8 + 2 + 4); // line 3's data
+            raf.write(0xff);
+        } finally {
+            raf.close();
+        }
+
+        final LogDB restarted = open(64 * 1024);
+        assertEntry(restarted.read(1), 1, 1);
+        assertThat(restarted.read(2), is(nullValue())); // the whole transaction is lost
+        assertThat(restarted.read(3), is(nullValue()));
+
+        restarted.write(2, (short) 5, 2, data(2, 2), null); // we don't append after the torn tail
+        assertEntry(open(64 * 1024).read(2), 2, 2);
+    }
+
+    private LogDB open(int segmentSize) throws Exception {
+        final LogDB db = new LogDB("logdb", folder.getRoot().getPath());
+        db.setSegmentSize(segmentSize);
+        db.setCompactionPeriod(1000000);
+        db.setCheckpointPeriod(1000000);
+        db.afterPropertiesSet();
+        dbs.add(db);
+        return db;
+    }
+
+    private static byte[] data(long id, long version) {
+        final byte[] data = new byte[16];
+        System.arraycopy(Longs.toByteArray(id), 0, data, 0, 8);
+        System.arraycopy(Longs.toByteArray(version), 0, data, 8, 8);
+        return data;
+    }
+
+    private static void assertEntry(MainMemoryEntry entry, long id, long version) {
+        assertThat(entry, is(notNullValue()));
+        assertThat(entry.version, is(version));
+        assertThat(entry.data, is(data(id, version)));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.objects;
+
+import co.paralleluniverse.io.serialization.Serialization;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author pron
+ */
+public class DistributedReferenceTest {
+    @Test
+    public void testWriteAndReadHeapBuffer() {
+        testWriteAndRead(ByteBuffer.allocate(1024));
+    }
+
+    @Test
+    public void testWriteAndReadDirectBuffer() {
+        testWriteAndRead(ByteBuffer.allocateDirect(1024));
+    }
+
+    @Test
+    public void whenReceivedThenDeserializeOnGet() {
+        final ByteBuffer buffer = serialized(new Foo("abc", 3));
+        final CountingReference ref = new CountingReference(null);
+        ref.received(null, 1, 5, buffer);
+
+        assertFalse(ref.isLoaded());
+        assertEquals(0, ref.deserializations);
+        assertEquals(new Foo("abc", 3), ref.get());
+        assertEquals(new Foo("abc", 3), ref.get());
+        assertEquals(1, ref.deserializations);
+
+        ref.received(null, 1, 4, serialized(new Foo("old", 0))); // older version
+        assertEquals(new Foo("abc", 3), ref.get());
+    }
+
+    @Test
+    public void whenModifiedInPlaceThenWriteNewState() {
+        final CountingReference ref = new CountingReference(new Foo("abc", 3));
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        ref.size();
+        ref.write(buffer);
+        assertEquals(1, ref.serializations);
+
+        ref.get().n = 4;
+        final ByteBuffer buffer2 = ByteBuffer.allocate(ref.size());
+        ref.write(buffer2);
+        assertEquals(2, ref.serializations);
+
+        buffer2.flip();
+        final CountingReference ref2 = new CountingReference(null);
+        ref2.read(buffer2);
+        assertEquals(new Foo("abc", 4), ref2.get());
+    }
+
+    @Test
+    public void whenReceivedAndWrittenThenNeitherDeserializedNorSerialized() {
+        final ByteBuffer buffer = serialized(new Foo("abc", 3));
+        final int size = buffer.remaining();
+        final CountingReference ref = new CountingReference(null);
+        ref.received(null, 1, 1, buffer);
+
+        final ByteBuffer out = ByteBuffer.allocate(size);
+        assertEquals(size, ref.size());
+        ref.write(out);
+        assertEquals(0, ref.serializations);
+        assertEquals(0, ref.deserializations);
+
+        out.flip();
+        final CountingReference ref2 = new CountingReference(null);
+        ref2.read(out);
+        assertEquals(new Foo("abc", 3), ref2.get());
+    }
+
+    @Test
+    public void whenSerializedOnAnotherThreadThenWriteDirectlyIntoLine() throws Exception {
+        final CountingReference ref = new CountingReference(new Foo("abc", 3));
+        final int[] size = new int[1];
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                size[0] = ref.size();
+            }
+        });
+        t.start();
+        t.join();
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size[0]);
+        ref.write(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(2, ref.serializations);
+
+        buffer.flip();
+        final CountingReference ref2 = new CountingReference(null);
+        ref2.read(buffer);
+        assertEquals(new Foo("abc", 3), ref2.get());
+    }
+
+    private void testWriteAndRead(ByteBuffer buffer) {
+        final DistributedReference<Foo> ref = new DistributedReference<Foo>(1, new Foo("foobar", 6));
+
+        buffer.position(10);
+        final ByteBuffer line = buffer.slice();
+        final int size = ref.size();
+        line.limit(size);
+        ref.write(line);
+        assertEquals(size, line.position());
+        line.flip();
+
+        final DistributedReference<Foo> ref2 = new DistributedReference<Foo>(1, null);
+        ref2.read(line);
+        assertEquals(new Foo("foobar", 6), ref2.get());
+        assertFalse(line.hasRemaining());
+    }
+
+    private static ByteBuffer serialized(Foo foo) {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        new DistributedReference<Foo>(1, foo).write(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    static class CountingReference extends DistributedReference<Foo> {
+        private static final long serialVersionUID = -1849265307147520663L;
+        int serializations;
+        int deserializations;
+
+        CountingReference(Foo obj) {
+            super(1, obj);
+        }
+
+        @Override
+        protected ByteBuffer serialize(Serialization serialization, Foo obj) {
+            serializations++;
+            return super.serialize(serialization, obj);
+        }
+
+        @Override
+        protected void serialize(ByteBuffer buffer, Foo obj) {
+            serializations++;
+            super.serialize(buffer, obj);
+        }
+
+        @Override
+        protected Foo deserialize(ByteBuffer buffer) {
+            deserializations++;
+            return super.deserialize(buffer);
+        }
+    }
+
+    static class Foo implements java.io.Serializable {
+        private static final long serialVersionUID = 3710482290431185902L;
+        final String name;
+        int n;
+
+        Foo(String name, int n) {
+            this.name = name;
+            this.n = n;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Foo && ((Foo) obj).name.equals(name) && ((Foo) obj).n == n;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() ^ n;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.record;
+
+import co.paralleluniverse.galaxy.LineFunction;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author pron
+ */
+public class RecordProcessorTest {
+    @Test
+    public void testLayout() {
+        assertEquals(8 + 4 + 1 + 8, AccountFlyweight.SIZE);
+        assertEquals(0, AccountFlyweight.BALANCE_OFFSET);
+        assertEquals(8, AccountFlyweight.OWNER_ID_OFFSET);
+        assertEquals(12, AccountFlyweight.FROZEN_OFFSET);
+        assertEquals(13, AccountFlyweight.RATE_OFFSET);
+    }
+
+    @Test
+    public void testPersistable() {
+        final AccountFlyweight account = new AccountFlyweight();
+        account.setBalance(1234);
+        account.setFrozen(true);
+        account.setRate(0.5);
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+        buffer.put((byte) 7);
+        account.write(buffer);
+        assertEquals(1 + AccountFlyweight.SIZE, buffer.position());
+        buffer.flip();
+        buffer.get();
+
+        final AccountFlyweight account2 = new AccountFlyweight();
+        account2.read(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(1234, account2.getBalance());
+        assertEquals(0, account2.getOwnerId());
+        assertTrue(account2.isFrozen());
+        assertEquals(0.5, account2.getRate(), 0.0);
+    }
+
+    @Test
+    public void whenForWriteThenUpdateLineInPlace() {
+        final ByteBuffer line = ByteBuffer.allocate(64);
+        line.flip(); // an empty line
+        final LineFunction.LineAccess access = new LineFunction.LineAccess() {
+            @Override
+            public ByteBuffer getForRead() {
+                final ByteBuffer buffer = line.asReadOnlyBuffer();
+                buffer.rewind();
+                return buffer;
+            }
+
+            @Override
+            public ByteBuffer getForWrite(int size) {
+                line.rewind();
+                return line;
+            }
+        };
+
+        final AccountFlyweight account = AccountFlyweight.forWrite(access);
+        account.setBalance(100);
+        account.setBalance(account.getBalance() + 50);
+        line.flip();
+        assertEquals(AccountFlyweight.SIZE, line.remaining());
+        assertEquals(150, line.getLong(AccountFlyweight.BALANCE_OFFSET));
+
+        assertEquals(150, AccountFlyweight.forRead(access).getBalance());
+        assertSame(account, AccountFlyweight.forRead(access));
+    }
+}
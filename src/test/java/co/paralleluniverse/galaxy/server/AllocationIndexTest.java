@@ -0,0 +1,108 @@
+/*
+ * Galaxy
+ * Copyright (c) 2012-2014, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.galaxy.server;
+
+import co.paralleluniverse.galaxy.server.AllocationIndex.Allocation;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author pron
+ */
+public class AllocationIndexTest {
+    AllocationIndex index;
+
+    @Before
+    public void setUp() {
+        index = new AllocationIndex();
+    }
+
+    @Test
+    public void whenEmptyThenNotFound() {
+        assertEquals(-1, index.find(100));
+        assertEquals(0, index.getMaxId());
+    }
+
+    @Test
+    public void whenIdInAllocationThenReturnOwner() {
+        index.add(100, 199, (short) 1);
+        index.add(200, 299, (short) 2);
+        index.add(400, 499, (short) 3);
+
+        assertEquals(1, index.find(100));
+        assertEquals(1, index.find(199));
+        assertEquals(2, index.find(200));
+        assertEquals(3, index.find(450));
+        assertEquals(-1, index.find(99));
+        assertEquals(-1, index.find(300));
+        assertEquals(-1, index.find(500));
+        assertEquals(499, index.getMaxId());
+    }
+
+    @Test
+    public void whenAddedOutOfOrderThenSorted() {
+        index.add(400, 499, (short) 3);
+        index.add(100, 199, (short) 1);
+        index.add(200, 299, (short) 2);
+
+        assertEquals(1, index.find(150));
+        assertEquals(2, index.find(250));
+        assertEquals(3, index.find(450));
+        assertEquals(499, index.getMaxId());
+        assertEquals(3, index.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenAllocationExistsThenThrow() {
+        index.add(100, 199, (short) 1);
+        index.add(150, 199, (short) 2);
+    }
+
+    @Test
+    public void whenAllocationsOverlapThenThrow() {
+        index.add(100, 199, (short) 1);
+        index.add(300, 399, (short) 1);
+        for (long[] range : new long[][]{{50, 100}, {199, 250}, {120, 150}, {50, 500}, {250, 300}}) {
+            try {
+                index.add(range[0], range[1], (short) 2);
+                fail(range[0] + ".." + range[1]);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        index.add(200, 299, (short) 2);
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void whenAddedInBulkThenSorted() {
+        index.add(400, 499, (short) 3);
+        index.addAll(Arrays.asList(new Allocation(200, 299, (short) 2), new Allocation(100, 199, (short) 1)));
+
+        assertEquals(1, index.find(150));
+        assertEquals(2, index.find(250));
+        assertEquals(3, index.find(450));
+        assertEquals(-1, index.find(300));
+        assertEquals(499, index.getMaxId());
+
+        try {
+            index.addAll(Arrays.asList(new Allocation(500, 599, (short) 4), new Allocation(250, 349, (short) 4)));
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(-1, index.find(550)); // none are added
+    }
+}